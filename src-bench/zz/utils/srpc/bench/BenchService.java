@@ -0,0 +1,62 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc.bench;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BenchService implements RIBenchService
+{
+	private final AtomicInteger itsNextId = new AtomicInteger();
+	
+	/**
+	 * Data returned by {@link #fetch(int)}, reused across calls.
+	 */
+	private byte[] itsData = new byte[0];
+	
+	public void ping()
+	{
+	}
+
+	public int add(int a, int b)
+	{
+		return a+b;
+	}
+
+	public int push(byte[] aData)
+	{
+		return aData.length;
+	}
+
+	public byte[] fetch(int aSize)
+	{
+		byte[] theData = itsData;
+		if (theData.length != aSize)
+		{
+			theData = new byte[aSize];
+			for (int i=0;i<aSize;i++) theData[i] = (byte) i;
+			itsData = theData;
+		}
+		return theData;
+	}
+
+	public RIBenchObject newObject()
+	{
+		return new BenchObject(itsNextId.incrementAndGet());
+	}
+	
+	private static class BenchObject implements RIBenchObject
+	{
+		private final int itsId;
+
+		public BenchObject(int aId)
+		{
+			itsId = aId;
+		}
+		
+		public int getId()
+		{
+			return itsId;
+		}
+	}
+}
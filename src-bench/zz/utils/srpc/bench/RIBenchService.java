@@ -0,0 +1,35 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc.bench;
+
+import zz.utils.srpc.IRemote;
+
+/**
+ * The remote service called by the benchmarks.
+ */
+public interface RIBenchService extends IRemote
+{
+	public void ping();
+	public int add(int a, int b);
+	
+	/**
+	 * Returns the size of the given data.
+	 */
+	public int push(byte[] aData);
+	
+	/**
+	 * Returns an array of the given size.
+	 */
+	public byte[] fetch(int aSize);
+	
+	/**
+	 * Returns a new exported object, for which the client creates a new proxy.
+	 */
+	public RIBenchObject newObject();
+	
+	public interface RIBenchObject extends IRemote
+	{
+		public int getId();
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import zz.utils.net.SelectorPool;
+import zz.utils.srpc.SRPCConfig;
+import zz.utils.srpc.SRPCServer;
+
+/**
+ * SRPC benchmarks over the loopback interface: round trip latency, throughput of 
+ * small calls with 1 to 64 caller threads, bandwidth of large payloads, and cost
+ * of creating proxies. 
+ * Each benchmark runs with the blocking and the non-blocking transports.
+ * Run with <code>ant -Djmh.home=&lt;dir of JMH jars&gt; bench</code>; JMH options 
+ * can be given with <code>-Dbench.args="..."</code> (eg. a benchmark name regexp).
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+public class SRPCBenchmark
+{
+	private static int itsNextPort = 8300;
+	
+	/**
+	 * A server and a connection to it, shared by all the threads of a benchmark.
+	 */
+	@State(Scope.Benchmark)
+	public static class Connection
+	{
+		@Param({"socket", "nio"})
+		public String transport;
+		
+		public RIBenchService service;
+		
+		private SRPCServer itsServer;
+		
+		@Setup(Level.Trial)
+		public void setup() throws Exception
+		{
+			SRPCConfig theConfig = new SRPCConfig();
+			if ("nio".equals(transport)) 
+			{
+				theConfig.setSelectorPool(new SelectorPool("SRPC bench selector", 2));
+			}
+			
+			int thePort = itsNextPort++;
+			itsServer = new SRPCServer(thePort, true, theConfig);
+			itsServer.getRegistry().bind("bench", new BenchService());
+			service = (RIBenchService) SRPCServer.connectTo("localhost", thePort, theConfig).lookup("bench");
+			service.ping();
+		}
+		
+		@TearDown(Level.Trial)
+		public void tearDown()
+		{
+			// Each trial runs in its own JVM (see @Fork)
+			itsServer.close();
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class Payload
+	{
+		@Param({"1024", "65536", "1048576"})
+		public int size;
+		
+		public byte[] data;
+		
+		@Setup(Level.Trial)
+		public void setup()
+		{
+			data = new byte[size];
+			for (int i=0;i<size;i++) data[i] = (byte) i;
+		}
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void pingLatency(Connection aConnection)
+	{
+		aConnection.service.ping();
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(1)
+	public int smallCalls_1(Connection aConnection)
+	{
+		return aConnection.service.add(1, 2);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(4)
+	public int smallCalls_4(Connection aConnection)
+	{
+		return aConnection.service.add(1, 2);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(16)
+	public int smallCalls_16(Connection aConnection)
+	{
+		return aConnection.service.add(1, 2);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(64)
+	public int smallCalls_64(Connection aConnection)
+	{
+		return aConnection.service.add(1, 2);
+	}
+	
+	/**
+	 * Client to server bandwidth (multiply by the payload size).
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public int push(Connection aConnection, Payload aPayload)
+	{
+		return aConnection.service.push(aPayload.data);
+	}
+	
+	/**
+	 * Server to client bandwidth (multiply by the payload size).
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public byte[] fetch(Connection aConnection, Payload aPayload)
+	{
+		return aConnection.service.fetch(aPayload.size);
+	}
+	
+	/**
+	 * Export of an object on the server and creation of its proxy on the client.
+	 * Also includes the distributed garbage collection of previous proxies.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Object proxyCreation(Connection aConnection)
+	{
+		return aConnection.service.newObject();
+	}
+}
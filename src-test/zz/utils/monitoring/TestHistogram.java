@@ -0,0 +1,43 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.monitoring;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestHistogram
+{
+	@Test public void percentiles()
+	{
+		Histogram theHistogram = new Histogram();
+		assertEquals(0, theHistogram.getPercentile(50));
+		
+		for (int i=1;i<=1000;i++) theHistogram.record(i);
+		assertEquals(1000, theHistogram.getCount());
+		assertEquals(1000, theHistogram.getMax());
+		assertEquals(500, theHistogram.getMean());
+		
+		// Buckets are within 1/8th of their values
+		long theP50 = theHistogram.getPercentile(50);
+		assertTrue(""+theP50, theP50 >= 500 && theP50 <= 500*9/8);
+		long theP99 = theHistogram.getPercentile(99);
+		assertTrue(""+theP99, theP99 >= 990 && theP99 <= 1000);
+		assertEquals(1000, theHistogram.getPercentile(100));
+		
+		theHistogram.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, theHistogram.getPercentile(100));
+		
+		theHistogram.reset();
+		assertEquals(0, theHistogram.getCount());
+	}
+	
+	@Test public void smallValues()
+	{
+		Histogram theHistogram = new Histogram();
+		for (int i=0;i<16;i++) theHistogram.record(i);
+		assertEquals(7, theHistogram.getPercentile(50));
+		assertEquals(15, theHistogram.getPercentile(100));
+	}
+}
@@ -0,0 +1,504 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.net;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestMultiplexingManager
+{
+	/**
+	 * Connects two managers through an actual socket and returns the 
+	 * given number of virtual socket pairs (client, server).
+	 */
+	private static Socket[][] connect(int aPort, int aCount) throws IOException
+	{
+		return connect(aPort, aCount, null, 0);
+	}
+	
+	/**
+	 * @param aSelectorPool If not null, the managers use non-blocking channels.
+	 */
+	private static Socket[][] connect(int aPort, int aCount, SelectorPool aSelectorPool, long aMaxFlushLatency) throws IOException
+	{
+		MultiplexingManager[] theManagers = connectManagers(aPort, aSelectorPool, aMaxFlushLatency);
+		ServerSocket theVirtualServer = theManagers[0].createServerSocket(1);
+		Socket[][] theSockets = new Socket[aCount][];
+		for (int i=0;i<aCount;i++)
+		{
+			Socket theVirtualClient = theManagers[1].createSocket("server", 1);
+			theSockets[i] = new Socket[] { theVirtualClient, theVirtualServer.accept() };
+		}
+		return theSockets;
+	}
+	
+	/**
+	 * Connects two managers through an actual socket.
+	 * @return The server ("server") and client ("client") managers.
+	 */
+	private static MultiplexingManager[] connectManagers(int aPort, SelectorPool aSelectorPool, long aMaxFlushLatency) throws IOException
+	{
+		return connectManagers(connectActual(aPort, aSelectorPool != null), aSelectorPool, aMaxFlushLatency);
+	}
+	
+	/**
+	 * Opens an actual connection.
+	 * @param aChannels Whether the sockets have channels.
+	 * @return The client and server sockets.
+	 */
+	private static Socket[] connectActual(int aPort, boolean aChannels) throws IOException
+	{
+		Socket theClient;
+		Socket theServer;
+		if (aChannels)
+		{
+			ServerSocketChannel theServerChannel = ServerSocketChannel.open();
+			theServerChannel.socket().bind(new InetSocketAddress(aPort));
+			theClient = SocketChannel.open(new InetSocketAddress("localhost", aPort)).socket();
+			theServer = theServerChannel.accept().socket();
+			theServerChannel.close();
+		}
+		else
+		{
+			ServerSocket theServerSocket = new ServerSocket(aPort);
+			theClient = new Socket("localhost", aPort);
+			theServer = theServerSocket.accept();
+			theServerSocket.close();
+		}
+		return new Socket[] { theClient, theServer };
+	}
+	
+	/**
+	 * @param aActual The client and server actual sockets.
+	 */
+	private static MultiplexingManager[] connectManagers(Socket[] aActual, SelectorPool aSelectorPool, long aMaxFlushLatency) throws IOException
+	{
+		Socket theClient = aActual[0];
+		Socket theServer = aActual[1];
+		
+		MultiplexingManager theServerManager = new MultiplexingManager("server", 4096, aSelectorPool);
+		MultiplexingManager theClientManager = new MultiplexingManager("client", 4096, aSelectorPool);
+		theServerManager.setMaxFlushLatency(aMaxFlushLatency);
+		theClientManager.setMaxFlushLatency(aMaxFlushLatency);
+		theServerManager.addSocket("client", theServer);
+		theClientManager.addSocket("server", theClient);
+		return new MultiplexingManager[] { theServerManager, theClientManager };
+	}
+	
+	private static byte[] createData(int aSize)
+	{
+		byte[] theData = new byte[aSize];
+		for (int i=0;i<theData.length;i++) theData[i] = (byte) i;
+		return theData;
+	}
+	
+	private static Thread write(final Socket aSocket, final byte[] aData)
+	{
+		Thread theThread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					OutputStream theOut = aSocket.getOutputStream();
+					theOut.write(aData);
+					theOut.flush();
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		theThread.start();
+		return theThread;
+	}
+
+	@Test public void slowReaderDoesNotBlockOthers() throws Exception
+	{
+		slowReaderDoesNotBlockOthers(connect(8310, 2));
+	}
+	
+	@Test public void nio() throws Exception
+	{
+		slowReaderDoesNotBlockOthers(connect(8312, 2, new SelectorPool("Multiplexing selector", 2), 0));
+	}
+	
+	private void slowReaderDoesNotBlockOthers(Socket[][] theSockets) throws Exception
+	{
+		byte[] theData = createData(100000);
+		
+		// Nobody reads the first stream yet
+		Thread theSlowWriter = write(theSockets[0][0], theData);
+		Thread theWriter = write(theSockets[1][0], theData);
+		
+		byte[] theReceived = new byte[theData.length];
+		new DataInputStream(theSockets[1][1].getInputStream()).readFully(theReceived);
+		assertArrayEquals(theData, theReceived);
+		theWriter.join(10000);
+		assertFalse(theWriter.isAlive());
+		
+		// The first writer waits for credit
+		assertTrue(theSlowWriter.isAlive());
+		
+		theReceived = new byte[theData.length];
+		new DataInputStream(theSockets[0][1].getInputStream()).readFully(theReceived);
+		assertArrayEquals(theData, theReceived);
+		theSlowWriter.join(10000);
+		assertFalse(theSlowWriter.isAlive());
+	}
+	
+	@Test public void close() throws Exception
+	{
+		Socket[][] theSockets = connect(8311, 1);
+		theSockets[0][0].getOutputStream().write(createData(10));
+		theSockets[0][0].getOutputStream().flush();
+		theSockets[0][0].close();
+		
+		// Buffered data is still delivered, then the end of the stream
+		byte[] theReceived = new byte[20];
+		assertEquals(10, new DataInputStream(theSockets[0][1].getInputStream()).read(theReceived));
+		assertEquals(-1, theSockets[0][1].getInputStream().read());
+	}
+	
+	@Test public void closeAfterRemoteClose() throws Exception
+	{
+		MultiplexingManager[] theManagers = connectManagers(8317, null, 0);
+		ServerSocket theVirtualServer = theManagers[0].createServerSocket(1);
+		Socket[][] theSockets = {{ theManagers[1].createSocket("server", 1), theVirtualServer.accept() }};
+		theSockets[0][0].getOutputStream().write(42);
+		theSockets[0][0].getOutputStream().flush();
+		theSockets[0][0].close();
+		
+		// Read until the end of the stream, then close
+		InputStream theIn = theSockets[0][1].getInputStream();
+		assertEquals(42, theIn.read());
+		assertEquals(-1, theIn.read());
+		theSockets[0][1].close();
+		
+		// The actual connection is still usable
+		Socket theClient = theManagers[1].createSocket("server", 1);
+		Socket theServer = theVirtualServer.accept();
+		theClient.getOutputStream().write(43);
+		theClient.getOutputStream().flush();
+		assertEquals(43, theServer.getInputStream().read());
+		
+		// Both ends close at the same time
+		theClient.close();
+		theServer.close();
+		theClient = theManagers[1].createSocket("server", 1);
+		theServer = theVirtualServer.accept();
+		theServer.getOutputStream().write(44);
+		theServer.getOutputStream().flush();
+		assertEquals(44, theClient.getInputStream().read());
+	}
+	
+	@Test public void connectionLost() throws Exception
+	{
+		connectionLost(8319, null);
+		connectionLost(8320, new SelectorPool("Multiplexing selector", 1));
+	}
+	
+	private void connectionLost(int aPort, SelectorPool aSelectorPool) throws Exception
+	{
+		Socket[] theActual = connectActual(aPort, aSelectorPool != null);
+		MultiplexingManager[] theManagers = connectManagers(theActual, aSelectorPool, 0);
+		ServerSocket theVirtualServer = theManagers[0].createServerSocket(1);
+		Socket theClient = theManagers[1].createSocket("server", 1);
+		final Socket theServer = theVirtualServer.accept();
+		
+		// A reader waits for data, a writer waits for credit
+		final IOException[] theErrors = new IOException[2];
+		Thread theReader = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					theServer.getInputStream().read();
+				}
+				catch (IOException e)
+				{
+					theErrors[0] = e;
+				}
+			}
+		};
+		theReader.start();
+		Thread theWriter = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					OutputStream theOut = theServer.getOutputStream();
+					theOut.write(createData(10000));
+					theOut.flush();
+				}
+				catch (IOException e)
+				{
+					theErrors[1] = e;
+				}
+			}
+		};
+		theWriter.start();
+		Thread.sleep(200);
+		assertTrue(theWriter.isAlive());
+		
+		theActual[0].close();
+		theReader.join(10000);
+		theWriter.join(10000);
+		assertFalse(theReader.isAlive());
+		assertFalse(theWriter.isAlive());
+		assertNotNull(theErrors[0]);
+		assertNotNull(theErrors[1]);
+		
+		// New connections fail at once
+		try
+		{
+			theManagers[0].createSocket("client", 1);
+			fail();
+		}
+		catch (IOException e)
+		{
+		}
+		theClient.close();
+	}
+	
+	@Test public void chunkPipe() throws Exception
+	{
+		final ChunkOutputStream theOut = new ChunkOutputStream(10000);
+		ChunkInputStream theIn = new ChunkInputStream();
+		theOut.connect(theIn);
+		
+		final byte[] theData = createData(1000000);
+		Thread theWriter = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					for (int i=0;i<theData.length;i+=1000) theOut.write(theData, i, 1000);
+					theOut.close();
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		theWriter.start();
+		
+		byte[] theReceived = new byte[theData.length];
+		new DataInputStream(theIn).readFully(theReceived);
+		assertArrayEquals(theData, theReceived);
+		assertEquals(-1, theIn.read());
+	}
+	
+	@Test public void nonBlockingChannel() throws Exception
+	{
+		Socket[][] theSockets = connect(8313, 1, new SelectorPool("Multiplexing selector", 1), 0);
+		MultiplexingManager.VirtualChannel theClient = MultiplexingManager.getChannel(theSockets[0][0]);
+		MultiplexingManager.VirtualChannel theServer = MultiplexingManager.getChannel(theSockets[0][1]);
+		theClient.configureBlocking(false);
+		theServer.configureBlocking(false);
+		
+		final Semaphore theReadable = new Semaphore(0);
+		final Semaphore theWritable = new Semaphore(0);
+		theServer.setReadyListener(new MultiplexingManager.VirtualChannel.IReadyListener()
+		{
+			public void readable(MultiplexingManager.VirtualChannel aChannel)
+			{
+				theReadable.release();
+			}
+			
+			public void writable(MultiplexingManager.VirtualChannel aChannel)
+			{
+			}
+		});
+		theClient.setReadyListener(new MultiplexingManager.VirtualChannel.IReadyListener()
+		{
+			public void readable(MultiplexingManager.VirtualChannel aChannel)
+			{
+			}
+			
+			public void writable(MultiplexingManager.VirtualChannel aChannel)
+			{
+				theWritable.release();
+			}
+		});
+		
+		ByteBuffer theBuffer = ByteBuffer.allocate(100);
+		assertEquals(0, theServer.read(theBuffer));
+		
+		// Writes stop at the receive window of the other end
+		int theWritten = theClient.write(ByteBuffer.wrap(createData(10000)));
+		assertEquals(4096, theWritten);
+		assertEquals(0, theClient.write(ByteBuffer.wrap(createData(10))));
+		
+		// Data buffered by the stream does not make non-blocking writes wait
+		theSockets[0][0].getOutputStream().write(createData(10));
+		assertEquals(0, theClient.write(ByteBuffer.wrap(createData(10))));
+		
+		theBuffer = ByteBuffer.allocateDirect(10000);
+		int theRead = 0;
+		while (theRead < theWritten) 
+		{
+			assertTrue(theReadable.tryAcquire(10, TimeUnit.SECONDS));
+			theRead += theServer.read(theBuffer);
+		}
+		assertEquals(theWritten, theRead);
+		
+		// Reading granted credit back to the writer
+		assertTrue(theWritable.tryAcquire(10, TimeUnit.SECONDS));
+		assertEquals(10, theClient.write(ByteBuffer.wrap(createData(10))));
+		theRead = 0;
+		while (theRead < 20) 
+		{
+			assertTrue(theReadable.tryAcquire(10, TimeUnit.SECONDS));
+			theRead += theServer.read(theBuffer);
+		}
+		
+		theClient.close();
+		int theCount = 0;
+		while (theCount == 0) 
+		{
+			assertTrue(theReadable.tryAcquire(10, TimeUnit.SECONDS));
+			theCount = theServer.read(theBuffer);
+		}
+		assertEquals(-1, theCount);
+	}
+	
+	@Test public void coalescing() throws Exception
+	{
+		coalescing(connect(8314, 2, null, 1000));
+		coalescing(connect(8315, 2, new SelectorPool("Multiplexing selector", 1), 1000));
+	}
+	
+	private void coalescing(Socket[][] aSockets) throws Exception
+	{
+		MultiplexingManager.VirtualChannel theChannel = MultiplexingManager.getChannel(aSockets[1][0]);
+		theChannel.setNoDelay(true);
+		assertTrue(theChannel.isNoDelay());
+		
+		// Fits in the receive window
+		byte[] theData = createData(4000);
+		for (Socket[] thePair : aSockets)
+		{
+			OutputStream theOut = thePair[0].getOutputStream();
+			for (int i=0;i<theData.length;i+=10) theOut.write(theData, i, 10);
+			theOut.flush();
+		}
+		
+		for (Socket[] thePair : aSockets)
+		{
+			byte[] theReceived = new byte[theData.length];
+			new DataInputStream(thePair[1].getInputStream()).readFully(theReceived);
+			assertArrayEquals(theData, theReceived);
+		}
+	}
+	
+	@Test public void scheduler()
+	{
+		SendScheduler<String> theScheduler = new SendScheduler<String>(10);
+		SendScheduler.Flow<String> theBulk = theScheduler.createFlow(1);
+		SendScheduler.Flow<String> theInteractive = theScheduler.createFlow(3);
+		for (int i=0;i<6;i++) theScheduler.offer(theBulk, "b"+i, 10);
+		for (int i=0;i<6;i++) theScheduler.offer(theInteractive, "i"+i, 10);
+		theScheduler.offerPriority("p");
+		
+		StringBuilder theOrder = new StringBuilder();
+		while (! theScheduler.isEmpty()) theOrder.append(theScheduler.poll()).append(' ');
+		assertEquals("p b0 i0 i1 i2 b1 i3 i4 i5 b2 b3 b4 b5 ", theOrder.toString());
+		assertNull(theScheduler.poll());
+	}
+	
+	@Test public void weights() throws Exception
+	{
+		MultiplexingManager[] theManagers = connectManagers(8316, null, 0);
+		MultiplexingManager theServerManager = theManagers[0];
+		MultiplexingManager theClientManager = theManagers[1];
+		
+		ServerSocket theBulkServer = theServerManager.createServerSocket(1);
+		ServerSocket theInteractiveServer = theServerManager.createServerSocket(2, 8);
+		Socket[][] theSockets = {
+				{ theClientManager.createSocket("server", 1), theBulkServer.accept() },
+				{ theClientManager.createSocket("server", 2, 8), theInteractiveServer.accept() } };
+		
+		// Both directions, with concurrent writers
+		byte[] theData = createData(100000);
+		Thread[] theWriters = {
+				write(theSockets[0][0], theData),
+				write(theSockets[1][0], theData),
+				write(theSockets[0][1], theData),
+				write(theSockets[1][1], theData) };
+		
+		for (Socket[] thePair : theSockets)
+		{
+			for (Socket theSocket : thePair)
+			{
+				byte[] theReceived = new byte[theData.length];
+				new DataInputStream(theSocket.getInputStream()).readFully(theReceived);
+				assertArrayEquals(theData, theReceived);
+			}
+		}
+		
+		for (Thread theWriter : theWriters)
+		{
+			theWriter.join(10000);
+			assertFalse(theWriter.isAlive());
+		}
+	}
+	
+	@Test public void rmiFactory() throws Exception
+	{
+		MultiplexingManager[] theManagers = connectManagers(8318, null, 100000);
+		MultiplexRMISocketFactory theServerFactory = new MultiplexRMISocketFactory(theManagers[0]);
+		MultiplexRMISocketFactory theClientFactory = new MultiplexRMISocketFactory(theManagers[1]);
+		
+		ServerSocket theServerSocket = theServerFactory.createServerSocket(1);
+		Socket theClient = theClientFactory.createSocket("server", 1);
+		Socket theServer = theServerSocket.accept();
+		
+		// RMI sets TCP_NODELAY on all its sockets, and ignores failures
+		for (Socket theSocket : new Socket[] { theClient, theServer })
+		{
+			try
+			{
+				theSocket.setTcpNoDelay(true);
+			}
+			catch (Exception e)
+			{
+			}
+			assertFalse(MultiplexingManager.getChannel(theSocket).isNoDelay());
+		}
+		
+		// Small writes are merged, and flushes are still delivered
+		byte[] theData = createData(1000);
+		OutputStream theOut = theClient.getOutputStream();
+		for (int i=0;i<theData.length;i+=10) theOut.write(theData, i, 10);
+		theOut.flush();
+		
+		byte[] theReceived = new byte[theData.length];
+		new DataInputStream(theServer.getInputStream()).readFully(theReceived);
+		assertArrayEquals(theData, theReceived);
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.primitive;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestConcurrentLongMap
+{
+	@Test public void compareWithHashMap()
+	{
+		ConcurrentLongMap<String> theMap = new ConcurrentLongMap<String>(4);
+		Map<Long, String> theReference = new HashMap<Long, String>();
+		Random theRandom = new Random(0);
+
+		for (int i=0;i<200000;i++)
+		{
+			long theKey = theRandom.nextInt(5000);
+			switch(theRandom.nextInt(3))
+			{
+			case 0:
+				assertEquals(theReference.put(theKey, "v"+i), theMap.put(theKey, "v"+i));
+				break;
+			case 1:
+				assertEquals(theReference.remove(theKey), theMap.remove(theKey));
+				break;
+			case 2:
+				assertEquals(theReference.get(theKey), theMap.get(theKey));
+				break;
+			}
+		}
+		assertEquals(theReference.size(), theMap.size());
+
+		for (Map.Entry<Long, String> theEntry : theReference.entrySet())
+		{
+			assertEquals(theEntry.getValue(), theMap.get(theEntry.getKey()));
+		}
+
+		assertEquals(theReference.size(), theMap.clear().size());
+		assertEquals(0, theMap.size());
+	}
+}
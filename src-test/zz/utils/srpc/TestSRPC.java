@@ -0,0 +1,975 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import zz.utils.monitoring.Monitor;
+import zz.utils.net.SelectorPool;
+
+public class TestSRPC
+{
+	private static int itsNextPort = 8110;
+
+	/**
+	 * Starts a server that exports an {@link Echo} object and returns
+	 * a stub to this object, obtained through a new connection.
+	 */
+	private static RIEcho connectEcho() throws Exception
+	{
+		return connectEcho(SRPCConfig.getDefault());
+	}
+	
+	private static RIEcho connectEcho(SRPCConfig aConfig) throws Exception
+	{
+		int thePort = itsNextPort++;
+		SRPCServer theServer = new SRPCServer(thePort, true, aConfig);
+		theServer.getRegistry().bind("echo", new Echo());
+		RIRegistry theRegistry = SRPCServer.connectTo("localhost", thePort, aConfig);
+		return (RIEcho) theRegistry.lookup("echo");
+	}
+
+	@Test public void call() throws Exception
+	{
+		RIEcho theEcho = connectEcho();
+		assertEquals("hello", theEcho.echo("hello"));
+		assertEquals(42, theEcho.add(40, 2));
+	}
+
+	@Test public void async() throws Exception
+	{
+		RIEcho theEcho = connectEcho();
+
+		List<Future<Integer>> theFutures = new ArrayList<Future<Integer>>();
+		for (int i=0;i<500;i++) theFutures.add(theEcho.addAsync(i, 1));
+		for (int i=0;i<500;i++) assertEquals(i+1, theFutures.get(i).get().intValue());
+
+		Future<Object> theFuture = SRPCChannel.callAsync(
+				theEcho,
+				RIEcho.class.getMethod("echo", String.class),
+				"async");
+		assertEquals("async", theFuture.get());
+	}
+
+	@Test public void concurrentCallers() throws Exception
+	{
+		final RIEcho theEcho = connectEcho();
+		final List<Throwable> theErrors = Collections.synchronizedList(new ArrayList<Throwable>());
+		
+		Thread[] theThreads = new Thread[8];
+		for (int i=0;i<theThreads.length;i++)
+		{
+			final int theBase = i*1000;
+			theThreads[i] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						for (int j=0;j<500;j++) assertEquals(theBase+j+1, theEcho.add(theBase+j, 1));
+					}
+					catch (Throwable e)
+					{
+						theErrors.add(e);
+					}
+				}
+			};
+			theThreads[i].start();
+		}
+		for (Thread theThread : theThreads) theThread.join();
+		assertTrue(theErrors.toString(), theErrors.isEmpty());
+	}
+
+	@Test public void clientPool() throws Exception
+	{
+		int thePort = itsNextPort++;
+		SRPCServer theServer = new SRPCServer(thePort, true);
+		theServer.getRegistry().bind("echo", new Echo());
+		SRPCClientPool thePool = new SRPCClientPool("localhost", thePort, 2);
+		final RIEcho theEcho = (RIEcho) thePool.lookup("echo");
+		assertNull(thePool.lookup("none"));
+		
+		assertEquals(42, theEcho.add(40, 2));
+		
+		// A long call occupies one connection, the other one stays available
+		Thread theSleeper = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				theEcho.sleep(1000);
+			}
+		};
+		theSleeper.start();
+		Thread.sleep(100);
+		
+		long t0 = System.currentTimeMillis();
+		for (int i=0;i<20;i++) assertEquals("hello", theEcho.echo("hello"));
+		assertTrue(System.currentTimeMillis()-t0 < 500);
+		theSleeper.join();
+		
+		// Returned remote objects are bound to one connection
+		RIEcho theOther = (RIEcho) theEcho.identity(theEcho);
+		assertEquals(3, theOther.add(1, 2));
+		
+		// Striped stubs of the same object are equal
+		assertEquals(theEcho, theEcho);
+		assertEquals(theEcho, thePool.lookup("echo"));
+		assertEquals(theEcho.hashCode(), thePool.lookup("echo").hashCode());
+		
+		thePool.close();
+		for (int i=0;i<thePool.getSize();i++) assertTrue(thePool.getChannel(i).isClosed());
+		theServer.close();
+	}
+
+	private static long checksum(InputStream aStream) throws IOException
+	{
+		long theSum = 0;
+		int theCount = 0;
+		byte[] theBuffer = new byte[1000];
+		int theRead;
+		while ((theRead = aStream.read(theBuffer)) >= 0)
+		{
+			for (int i=0;i<theRead;i++) 
+			{
+				assertEquals((theCount++) & 0xff, theBuffer[i] & 0xff);
+				theSum += theBuffer[i] & 0xff;
+			}
+		}
+		aStream.close();
+		return theSum;
+	}
+	
+	@Test public void streams() throws Exception
+	{
+		RIEcho theEcho = connectEcho();
+		int theSize = 3*1000*1000;
+		
+		long theExpected = checksum(theEcho.generate(theSize));
+		assertEquals(theExpected, theEcho.checksum(new Echo().generate(theSize)));
+		
+		// Sources that return 0 instead of blocking
+		final InputStream theSource = new Echo().generate(1000);
+		InputStream theLazy = new InputStream()
+		{
+			private boolean itsReady = false;
+			
+			@Override
+			public int read() throws IOException
+			{
+				return theSource.read();
+			}
+			
+			@Override
+			public int read(byte[] aBuffer, int aOffset, int aLength) throws IOException
+			{
+				itsReady = ! itsReady;
+				return itsReady ? theSource.read(aBuffer, aOffset, aLength) : 0;
+			}
+		};
+		assertEquals(checksum(new Echo().generate(1000)), theEcho.checksum(theLazy));
+		
+		// Other calls are not blocked by a stream that is not consumed
+		InputStream theStream = theEcho.generate(theSize);
+		assertEquals(42, theEcho.add(40, 2));
+		assertEquals(0, theStream.read());
+		theStream.close();
+		assertEquals(42, theEcho.add(40, 2));
+		
+		// Streams that are not consumed do not hold the threads of the executor
+		SRPCConfig theConfig = new SRPCConfig();
+		theConfig.setExecutor(SRPCUtils.createExecutor(2));
+		theEcho = connectEcho(theConfig);
+		List<InputStream> theStreams = new ArrayList<InputStream>();
+		for (int i=0;i<10;i++) theStreams.add(theEcho.generate(theSize));
+		assertEquals(42, theEcho.add(40, 2));
+		assertEquals(theExpected, checksum(theStreams.get(9)));
+	}
+
+	@Test public void executorPushback() throws Exception
+	{
+		final ExecutorService theExecutor = SRPCUtils.createExecutor(1, 1);
+		final Object theLock = new Object();
+		Runnable theTask = new Runnable()
+		{
+			public void run()
+			{
+				synchronized (theLock)
+				{
+				}
+			}
+		};
+		
+		// One running task and one queued task: the next submitter waits
+		final AtomicInteger theSubmitted = new AtomicInteger();
+		Thread theSubmitter;
+		synchronized (theLock)
+		{
+			theExecutor.execute(theTask);
+			theExecutor.execute(theTask);
+			theSubmitter = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for (int i=0;i<10;i++) 
+					{
+						theExecutor.execute(new Runnable()
+						{
+							public void run()
+							{
+							}
+						});
+						theSubmitted.incrementAndGet();
+					}
+				}
+			};
+			theSubmitter.start();
+			Thread.sleep(200);
+			assertEquals(0, theSubmitted.get());
+		}
+		theSubmitter.join(10000);
+		assertEquals(10, theSubmitted.get());
+		theExecutor.shutdown();
+	}
+
+	@Test public void timeouts() throws Exception
+	{
+		RIEcho theEcho = connectEcho();
+		Echo.itsInterrupted = false;
+		
+		long t0 = System.currentTimeMillis();
+		try
+		{
+			theEcho.slowCall(5000);
+			fail();
+		}
+		catch (SRPCTimeoutException e)
+		{
+		}
+		assertTrue(System.currentTimeMillis()-t0 < 2000);
+		
+		// The cancellation reaches the remote thread
+		Thread.sleep(200);
+		assertTrue(Echo.itsInterrupted);
+		
+		assertEquals(42, theEcho.add(40, 2));
+	}
+	
+	@Test public void close() throws Exception
+	{
+		int thePort = itsNextPort++;
+		SRPCServer theServer = new SRPCServer(thePort, true);
+		theServer.getRegistry().bind("echo", new Echo());
+		SRPCChannel theChannel = SRPCServer.openChannel("localhost", thePort, SRPCConfig.getDefault());
+		RIEcho theEcho = (RIEcho) theChannel.getRemoteRegistry().lookup("echo");
+		
+		Future<Integer> theFuture = theEcho.addAsync(1, 2);
+		assertEquals(3, theFuture.get().intValue());
+		
+		Future<Object> theSlow = SRPCChannel.callAsync(
+				theEcho, 
+				RIEcho.class.getMethod("sleep", long.class), 
+				10000L);
+		
+		theChannel.close();
+		assertTrue(theChannel.isClosed());
+		try
+		{
+			theSlow.get(2, TimeUnit.SECONDS);
+			fail();
+		}
+		catch (ExecutionException e)
+		{
+			assertTrue(e.getCause() instanceof SRPCRemoteException);
+		}
+		
+		try
+		{
+			theEcho.add(1, 2);
+			fail();
+		}
+		catch (SRPCRemoteException e)
+		{
+		}
+	}
+	
+	@Test public void compression() throws Exception
+	{
+		int thePort = itsNextPort++;
+		SRPCConfig theConfig = new SRPCConfig();
+		theConfig.setCompressionThreshold(256);
+		SRPCServer theServer = new SRPCServer(thePort, true, theConfig);
+		theServer.getRegistry().bind("echo", new Echo());
+		SRPCChannel theChannel = SRPCServer.openChannel("localhost", thePort, theConfig);
+		RIEcho theEcho = (RIEcho) theChannel.getRemoteRegistry().lookup("echo");
+		
+		StringBuilder theBuilder = new StringBuilder();
+		for (int i=0;i<10000;i++) theBuilder.append("item ").append(i%10).append(", ");
+		String theString = theBuilder.toString();
+		
+		assertEquals(theString, theEcho.echo(theString));
+		assertEquals(42, theEcho.add(40, 2));
+		
+		CompressionStats theStats = theChannel.getCompressionStats();
+		assertEquals(1, theStats.getCompressedFrames());
+		assertEquals(1, theStats.getDecompressedFrames());
+		assertTrue(theStats.getCompressionRatio() > 10);
+	}
+	
+	@Test public void distributedGC() throws Exception
+	{
+		int thePort = itsNextPort++;
+		SRPCConfig theConfig = new SRPCConfig();
+		theConfig.setGCInterval(100);
+		theConfig.setGCBatchSize(100);
+		SRPCServer theServer = new SRPCServer(thePort, true, theConfig);
+		theServer.getRegistry().bind("echo", new Echo());
+		SRPCChannel theChannel = SRPCServer.openChannel("localhost", thePort, theConfig);
+		RIEcho theEcho = (RIEcho) theChannel.getRemoteRegistry().lookup("echo");
+		
+		// The server receives stubs to our objects but does not keep them
+		for (int i=0;i<1000;i++) assertFalse(theEcho.isNull(new Echo()));
+		assertTrue(theChannel.getExportedCount() > 0);
+		
+		for (int i=0;i<100 && theChannel.getExportedCount() > 0;i++)
+		{
+			System.gc();
+			Thread.sleep(100);
+		}
+		assertEquals(0, theChannel.getExportedCount());
+		
+		theChannel.close();
+		assertEquals(0, theChannel.getExportedCount());
+	}
+	
+	@Test public void deadPeer() throws Exception
+	{
+		// A peer that completes the handshake and then never answers
+		final ServerSocket theServerSocket = new ServerSocket(0);
+		new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Socket theSocket = theServerSocket.accept();
+					DataOutputStream theOut = new DataOutputStream(theSocket.getOutputStream());
+					theOut.writeInt(SRPCChannel.HANDSHAKE);
+					theOut.writeByte(SRPCChannel.PROTOCOL_VERSION);
+					theOut.writeByte(1);
+					theOut.writeByte(SerializationCodec.ID);
+					theOut.writeLong(-1);
+					theOut.writeInt(-1);
+					theOut.writeBoolean(false);
+					theOut.flush();
+					
+					InputStream theIn = theSocket.getInputStream();
+					while (theIn.read() >= 0);
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}.start();
+		
+		SRPCConfig theConfig = new SRPCConfig();
+		theConfig.setHeartbeatInterval(50);
+		theConfig.setHeartbeatTimeout(300);
+		SRPCChannel theChannel = SRPCServer.openChannel("localhost", theServerSocket.getLocalPort(), theConfig);
+		RIRegistry theRegistry = theChannel.getRemoteRegistry();
+		
+		long t0 = System.currentTimeMillis();
+		try
+		{
+			theRegistry.lookup("echo");
+			fail();
+		}
+		catch (SRPCRemoteException e)
+		{
+		}
+		assertTrue(System.currentTimeMillis()-t0 < 3000);
+		assertTrue(theChannel.isClosed());
+	}
+
+	@Test public void heartbeatWhileSuspended() throws Exception
+	{
+		SRPCConfig theConfig = new SRPCConfig();
+		theConfig.setMaxPendingCalls(1);
+		theConfig.setHeartbeatInterval(100);
+		theConfig.setHeartbeatTimeout(500);
+		RIEcho theEcho = connectEcho(theConfig);
+		
+		// The second call is not read until the first one completes
+		Future<Object> theSlow = SRPCChannel.callAsync(
+				theEcho, 
+				RIEcho.class.getMethod("sleep", long.class), 
+				1500L);
+		Future<Integer> theNext = theEcho.addAsync(1, 2);
+		
+		theSlow.get();
+		assertEquals(3, theNext.get().intValue());
+		assertEquals(42, theEcho.add(40, 2));
+	}
+
+	@Test public void nio() throws Exception
+	{
+		SRPCConfig theConfig = new SRPCConfig();
+		theConfig.setSelectorPool(new SelectorPool("SRPC selector", 2));
+		// Suspends reading while frames are still buffered
+		theConfig.setMaxPendingCalls(4);
+		RIEcho theEcho = connectEcho(theConfig);
+		
+		assertEquals("hello", theEcho.echo("hello"));
+		
+		List<Future<Integer>> theFutures = new ArrayList<Future<Integer>>();
+		for (int i=0;i<500;i++) theFutures.add(theEcho.addAsync(i, 1));
+		for (int i=0;i<500;i++) assertEquals(i+1, theFutures.get(i).get().intValue());
+		
+		// Frame bigger than the read buffer
+		int[] theData = new int[100000];
+		for (int i=0;i<theData.length;i++) theData[i] = i;
+		assertTrue(Arrays.equals(theData, (int[]) theEcho.identity(theData)));
+		assertEquals("hello", theEcho.echo("hello"));
+	}
+
+	@Test public void sharedMemory() throws Exception
+	{
+		int thePort = itsNextPort++;
+		SRPCConfig theConfig = new SRPCConfig();
+		theConfig.setSharedMemoryDirectory(System.getProperty("java.io.tmpdir"));
+		theConfig.setSharedMemorySize(64*1024);
+		SRPCServer theServer = new SRPCServer(thePort, true, theConfig);
+		theServer.getRegistry().bind("echo", new Echo());
+		SRPCChannel theChannel = SRPCServer.openChannel("localhost", thePort, theConfig);
+		assertTrue(theChannel.getTransport() instanceof ShmTransport);
+		RIEcho theEcho = (RIEcho) theChannel.getRemoteRegistry().lookup("echo");
+		
+		assertEquals("hello", theEcho.echo("hello"));
+		
+		List<Future<Integer>> theFutures = new ArrayList<Future<Integer>>();
+		for (int i=0;i<500;i++) theFutures.add(theEcho.addAsync(i, 1));
+		for (int i=0;i<500;i++) assertEquals(i+1, theFutures.get(i).get().intValue());
+		
+		// Frame bigger than the ring
+		int[] theData = new int[100000];
+		for (int i=0;i<theData.length;i++) theData[i] = i;
+		assertTrue(Arrays.equals(theData, (int[]) theEcho.identity(theData)));
+		
+		// Idle readers are woken up by the other end
+		Thread.sleep(500);
+		long t0 = System.currentTimeMillis();
+		assertEquals("hello", theEcho.echo("hello"));
+		assertTrue(System.currentTimeMillis()-t0 < 80);
+		
+		theChannel.close();
+		
+		// Falls back to the socket if the other end does not support shared memory
+		SRPCChannel theSocketChannel = SRPCServer.openChannel("localhost", thePort, SRPCConfig.getDefault());
+		assertTrue(theSocketChannel.getTransport() instanceof SocketTransport);
+		theEcho = (RIEcho) theSocketChannel.getRemoteRegistry().lookup("echo");
+		assertEquals("hello", theEcho.echo("hello"));
+		theSocketChannel.close();
+	}
+
+	@Test public void sharedMemoryBadPath() throws Exception
+	{
+		File theDirectory = new File(System.getProperty("java.io.tmpdir"));
+		File theSubDirectory = new File(theDirectory, "srpc-test-"+System.nanoTime());
+		theSubDirectory.mkdir();
+		theSubDirectory.deleteOnExit();
+		
+		File theOutside = new File(theSubDirectory, "srpc-outside.ring");
+		File theBadName = File.createTempFile("other-", ".ring", theDirectory);
+		File theSmall = File.createTempFile("srpc-", ".ring", theDirectory);
+		RandomAccessFile theFile = new RandomAccessFile(theOutside, "rw");
+		theFile.setLength(4096);
+		theFile.close();
+		theFile = new RandomAccessFile(theBadName, "rw");
+		theFile.setLength(4096);
+		theFile.close();
+		theFile = new RandomAccessFile(theSmall, "rw");
+		theFile.setLength(100);
+		theFile.close();
+		
+		String[] thePaths = {
+				theOutside.getPath(),
+				theSubDirectory.getPath()+File.separator+".."+File.separator+theBadName.getName(),
+				theBadName.getPath(),
+				theSmall.getPath(),
+		};
+		
+		SRPCConfig theConfig = new SRPCConfig();
+		theConfig.setSharedMemoryDirectory(theDirectory.getPath());
+		for (String thePath : thePaths)
+		{
+			ServerSocket theServerSocket = startShmPeer(thePath);
+			SRPCChannel theChannel = SRPCServer.openChannel("localhost", theServerSocket.getLocalPort(), theConfig);
+			assertTrue(thePath, theChannel.getTransport() instanceof SocketTransport);
+			theChannel.close();
+			theServerSocket.close();
+		}
+		
+		// The files were not mapped
+		for (File theBad : new File[] { theOutside, theBadName, theSmall })
+		{
+			byte[] theContent = new byte[(int) theBad.length()];
+			theFile = new RandomAccessFile(theBad, "r");
+			theFile.readFully(theContent);
+			theFile.close();
+			assertTrue(Arrays.equals(new byte[theContent.length], theContent));
+			theBad.delete();
+		}
+		theSubDirectory.delete();
+	}
+	
+	/**
+	 * Starts a peer that advertises shared memory and sends the given path
+	 * as the path of its ring, then reads until the end of the stream.
+	 */
+	private static ServerSocket startShmPeer(final String aPath) throws IOException
+	{
+		final ServerSocket theServerSocket = new ServerSocket(0);
+		new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Socket theSocket = theServerSocket.accept();
+					DataOutputStream theOut = new DataOutputStream(theSocket.getOutputStream());
+					theOut.writeInt(SRPCChannel.HANDSHAKE);
+					theOut.writeByte(SRPCChannel.PROTOCOL_VERSION);
+					theOut.writeByte(1);
+					theOut.writeByte(SerializationCodec.ID);
+					theOut.writeLong(-1);
+					theOut.writeInt(-1);
+					theOut.writeBoolean(true);
+					theOut.writeUTF(aPath);
+					theOut.writeBoolean(true);
+					theOut.flush();
+					
+					InputStream theIn = theSocket.getInputStream();
+					while (theIn.read() >= 0);
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}.start();
+		return theServerSocket;
+	}
+
+	@Test public void codecs() throws Exception
+	{
+		RIEcho theEcho = connectEcho();
+		
+		Object[] theValues = {
+				null, true, (byte) 1, (short) 2, 'c', 3, 4L, 5f, 6.0, "string",
+				new int[] {1, 2}, new String[] {"a", "b"}, new Object[] {1, "x"},
+				new ArrayList<Object>(Arrays.asList(1, "y")),
+				new HashMap<String, Integer>(Collections.singletonMap("k", 7)),
+				new HashSet<String>(Arrays.asList("s")),
+				new Date(1234), // Serialization fallback
+		};
+		for (Object theValue : theValues)
+		{
+			Object theResult = theEcho.identity(theValue);
+			if (theValue != null && theValue.getClass().isArray())
+			{
+				assertEquals(theValue.getClass(), theResult.getClass());
+				assertEquals(Array.getLength(theValue), Array.getLength(theResult));
+			}
+			else assertEquals(theValue, theResult);
+		}
+		
+		// Remote objects are passed by reference
+		RIEcho theOther = (RIEcho) theEcho.identity(theEcho);
+		assertEquals(3, theOther.add(1, 2));
+		
+		// Identity and cycles are preserved
+		Date theDate = new Date(1234);
+		int[] theInts = {1, 2};
+		List<Object> theList = new ArrayList<Object>();
+		theList.add(theDate);
+		theList.add(theInts);
+		theList.add(theDate);
+		theList.add(theInts);
+		theList.add(theList);
+		List<Object> theResult = (List<Object>) theEcho.identity(theList);
+		assertEquals(5, theResult.size());
+		assertSame(theResult.get(0), theResult.get(2));
+		assertSame(theResult.get(1), theResult.get(3));
+		assertSame(theResult, theResult.get(4));
+	}
+
+	@Test public void local() throws Exception
+	{
+		SRPCConfig theConfig = new SRPCConfig();
+		theConfig.setLocalMode(SRPCConfig.LocalMode.COPY);
+		RIEcho theEcho = connectEcho(theConfig);
+		assertTrue(Proxy.getInvocationHandler(theEcho) instanceof LocalInvocationHandler);
+		
+		assertEquals(42, theEcho.add(40, 2));
+		assertEquals(43, SRPCChannel.callAsync(
+				theEcho, 
+				RIEcho.class.getMethod("add", int.class, int.class), 
+				42, 1).get());
+		
+		// Mutable values are copied, remote objects are passed by reference
+		List<Object> theList = new ArrayList<Object>();
+		theList.add(theEcho);
+		List<Object> theResult = (List<Object>) theEcho.identity(theList);
+		assertNotSame(theList, theResult);
+		assertEquals(1, theResult.size());
+		assertSame(theEcho, theResult.get(0));
+		
+		try
+		{
+			theEcho.identity(new Object());
+			fail();
+		}
+		catch (RuntimeException e)
+		{
+			// Not serializable
+		}
+		
+		// Direct mode does not copy
+		theConfig.setLocalMode(SRPCConfig.LocalMode.DIRECT);
+		RIEcho theDirect = connectEcho(theConfig);
+		assertTrue(theDirect instanceof Echo);
+		assertSame(theList, theDirect.identity(theList));
+	}
+
+	@Test public void registry() throws Exception
+	{
+		int thePort = itsNextPort++;
+		final SRPCServer theServer = new SRPCServer(thePort, true);
+		
+		// Concurrent binds of the same name: only one succeeds
+		final AtomicInteger theBound = new AtomicInteger();
+		Thread[] theThreads = new Thread[8];
+		for (int i=0;i<theThreads.length;i++)
+		{
+			theThreads[i] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						theServer.getRegistry().bind("echo", new Echo());
+						theBound.incrementAndGet();
+					}
+					catch (RuntimeException e)
+					{
+						// Already bound
+					}
+				}
+			};
+			theThreads[i].start();
+		}
+		for (Thread theThread : theThreads) theThread.join();
+		assertEquals(1, theBound.get());
+		
+		SRPCRegistryCache theCache = new SRPCRegistryCache(SRPCServer.connectTo("localhost", thePort));
+		Object[] theObjects = theCache.lookupAll("echo", "none");
+		assertEquals(2, theObjects.length);
+		assertEquals(3, ((RIEcho) theObjects[0]).add(1, 2));
+		assertNull(theObjects[1]);
+		assertSame(theObjects[0], theCache.lookup("echo"));
+		
+		// Changes invalidate cached entries
+		theServer.getRegistry().rebind("echo", new Echo());
+		long theDeadline = System.currentTimeMillis()+2000;
+		while (theCache.lookup("echo") == theObjects[0] && System.currentTimeMillis() < theDeadline)
+		{
+			Thread.sleep(10);
+		}
+		assertNotSame(theObjects[0], theCache.lookup("echo"));
+		
+		theServer.getRegistry().unbind("echo");
+		theDeadline = System.currentTimeMillis()+2000;
+		while (theCache.lookup("echo") != null && System.currentTimeMillis() < theDeadline)
+		{
+			Thread.sleep(10);
+		}
+		assertNull(theCache.lookup("echo"));
+		
+		// Stubs of the same remote object are equal, so that listeners can be removed
+		assertEquals(1, theServer.getRegistry().getListenerCount());
+		theCache.dispose();
+		assertEquals(0, theServer.getRegistry().getListenerCount());
+		
+		// Failing listeners do not make changes fail, and are removed
+		theServer.getRegistry().addListener(new RIRegistryListener()
+		{
+			public void changed(String aName)
+			{
+				throw new RuntimeException("Listener failed");
+			}
+		});
+		theServer.getRegistry().bind("other", new Echo());
+		assertEquals(0, theServer.getRegistry().getListenerCount());
+	}
+
+	@Test public void stats() throws Exception
+	{
+		SRPCConfig theConfig = new SRPCConfig();
+		theConfig.setMonitored(true);
+		int thePort = itsNextPort++;
+		SRPCServer theServer = new SRPCServer(thePort, true);
+		theServer.getRegistry().bind("echo", new Echo());
+		SRPCChannel theChannel = SRPCServer.openChannel("localhost", thePort, theConfig);
+		RIEcho theEcho = (RIEcho) theChannel.getRemoteRegistry().lookup("echo");
+		
+		for (int i=0;i<100;i++) theEcho.add(i, 1);
+		theEcho.sleep(20);
+		
+		SRPCStats theStats = theChannel.getStats();
+		SRPCStats.MethodStats theAddStats = theStats.getMethodStats(RIEcho.class.getMethod("add", int.class, int.class));
+		assertEquals(100, theAddStats.getSent());
+		assertEquals(100, theAddStats.getLatency().getCount());
+		assertTrue(theAddStats.getRequestBytes() > 0);
+		assertTrue(theAddStats.getReplyBytes() > 0);
+		assertEquals(102, theStats.getCallsSent()); // Includes lookup
+		assertTrue(theStats.getCallLatencyMax() >= 20000);
+		assertTrue(theStats.getBytesOut() > 0);
+		assertTrue(theStats.getBytesIn() > 0);
+		assertEquals(0, theStats.getOutgoingInFlight());
+		
+		// Exposed through JMX and the monitor
+		ObjectName theName = new ObjectName("zz.utils.srpc:type=SRPCChannel,id="+theChannel.getId());
+		MBeanServer theMBeanServer = ManagementFactory.getPlatformMBeanServer();
+		assertEquals(102L, theMBeanServer.getAttribute(theName, "CallsSent"));
+		assertTrue(Monitor.format(Monitor.getInstance().collectData(), false).contains("srpc calls sent"));
+		
+		theChannel.close();
+		assertFalse(theMBeanServer.isRegistered(theName));
+	}
+
+	@Test public void nestedCalls() throws Exception
+	{
+		// A single executor thread on each side: callbacks are executed by 
+		// the threads that wait for the outer calls.
+		SRPCConfig theConfig = new SRPCConfig();
+		theConfig.setExecutor(Executors.newFixedThreadPool(1));
+		RIEcho theEcho = connectEcho(theConfig);
+		
+		Echo theLocal = new Echo();
+		assertEquals(20, theEcho.recurse(theLocal, 20));
+		
+		// Concurrent call chains
+		List<Future<Integer>> theFutures = new ArrayList<Future<Integer>>();
+		ExecutorService theCallers = Executors.newFixedThreadPool(4);
+		for (int i=0;i<8;i++)
+		{
+			final RIEcho theRemote = theEcho;
+			final int theDepth = 10+i;
+			theFutures.add(theCallers.submit(new Callable<Integer>()
+			{
+				public Integer call() 
+				{
+					return theRemote.recurse(new Echo(), theDepth);
+				}
+			}));
+		}
+		for (int i=0;i<8;i++) assertEquals(10+i, theFutures.get(i).get(10, TimeUnit.SECONDS).intValue());
+		theCallers.shutdown();
+	}
+
+	@Test public void classDictionary() throws Exception
+	{
+		SRPCConfig theBinary = new SRPCConfig();
+		SRPCConfig theSerialization = new SRPCConfig();
+		theSerialization.setCodecs(SerializationCodec.FACTORY);
+		
+		for (SRPCConfig theConfig : new SRPCConfig[] { theBinary, theSerialization })
+		{
+			int thePort = itsNextPort++;
+			SRPCServer theServer = new SRPCServer(thePort, true, theConfig);
+			theServer.getRegistry().bind("echo", new Echo());
+			SRPCChannel theChannel = SRPCServer.openChannel("localhost", thePort, theConfig);
+			RIEcho theEcho = (RIEcho) theChannel.getRemoteRegistry().lookup("echo");
+			
+			Object[] theValues = {
+					new Date(1234), 
+					new Integer[] { 1, null }, 
+					theEcho, 
+					TimeUnit.SECONDS, 
+			};
+			for (Object theValue : theValues)
+			{
+				// Class names are only sent the first time
+				long theSize1 = callSize(theChannel, theEcho, theValue);
+				long theSize2 = callSize(theChannel, theEcho, theValue);
+				assertTrue(theSize1+" "+theSize2, theSize2 < theSize1);
+				assertEquals(theSize2, callSize(theChannel, theEcho, theValue));
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of bytes sent by a call to {@link RIEcho#identity(Object)}.
+	 */
+	private static long callSize(SRPCChannel aChannel, RIEcho aEcho, Object aValue)
+	{
+		long theStart = aChannel.getStats().getBytesOut();
+		Object theResult = aEcho.identity(aValue);
+		if (aValue instanceof Object[]) assertTrue(Arrays.equals((Object[]) aValue, (Object[]) theResult));
+		else if (! (aValue instanceof IRemote)) assertEquals(aValue, theResult);
+		return aChannel.getStats().getBytesOut()-theStart;
+	}
+
+	@Test public void dispatchTable() throws Exception
+	{
+		Method[] theMethods = RIEcho.class.getMethods();
+		Arrays.sort(theMethods, SRPCUtils.MethodComparator.getInstance());
+		
+		DispatchTable theTable = DispatchTable.forObject(new Echo());
+		assertSame(theTable, DispatchTable.get(RIEcho.class));
+		for (int i=0;i<theMethods.length;i++) 
+		{
+			assertEquals(theMethods[i], theTable.getMethod(i));
+			assertEquals(i, theTable.getId(theMethods[i]));
+		}
+		assertTrue(theTable.isAsync(theTable.getId(RIEcho.class.getMethod("addAsync", int.class, int.class))));
+	}
+
+	public interface RIEcho extends IRemote
+	{
+		public String echo(String aMessage);
+		public int add(int a, int b);
+		public Object identity(Object aValue);
+		public boolean isNull(Object aValue);
+		public Future<Integer> addAsync(int a, int b);
+		public void sleep(long aMillis);
+		@SRPCTimeout(100) public void slowCall(long aMillis);
+		public InputStream generate(int aSize);
+		public long checksum(InputStream aStream);
+		public int recurse(RIEcho aOther, int aDepth);
+	}
+
+	public static class Echo implements RIEcho
+	{
+		/**
+		 * Set when {@link #slowCall(long)} is interrupted.
+		 */
+		static volatile boolean itsInterrupted = false;
+		
+		public void slowCall(long aMillis)
+		{
+			try
+			{
+				Thread.sleep(aMillis);
+			}
+			catch (InterruptedException e)
+			{
+				itsInterrupted = true;
+			}
+		}
+
+		public int recurse(RIEcho aOther, int aDepth)
+		{
+			return aDepth == 0 ? 0 : aOther.recurse(this, aDepth-1)+1;
+		}
+
+		public String echo(String aMessage)
+		{
+			return aMessage;
+		}
+
+		public int add(int a, int b)
+		{
+			return a+b;
+		}
+
+		public Object identity(Object aValue)
+		{
+			return aValue;
+		}
+
+		public boolean isNull(Object aValue)
+		{
+			return aValue == null;
+		}
+
+		public Future<Integer> addAsync(int a, int b)
+		{
+			return SRPCUtils.future(a+b);
+		}
+
+		public InputStream generate(final int aSize)
+		{
+			return new InputStream()
+			{
+				private int itsPosition = 0;
+				
+				@Override
+				public int read()
+				{
+					return itsPosition < aSize ? (itsPosition++) & 0xff : -1;
+				}
+			};
+		}
+
+		public long checksum(InputStream aStream)
+		{
+			try
+			{
+				return TestSRPC.checksum(aStream);
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+		}
+
+		public void sleep(long aMillis)
+		{
+			try
+			{
+				Thread.sleep(aMillis);
+			}
+			catch (InterruptedException e)
+			{
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
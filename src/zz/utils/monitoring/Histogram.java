@@ -0,0 +1,119 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.monitoring;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of positive long values (typically durations),
+ * with a relative precision of 1/8th.
+ * Values are counted in buckets whose width doubles every 8 buckets, so that 
+ * recording a value is a few arithmetic operations and an atomic increment.
+ */
+public class Histogram
+{
+	/**
+	 * Number of buckets per power of two.
+	 */
+	private static final int SUB_BITS = 3;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	
+	private final AtomicLongArray itsBuckets = new AtomicLongArray((64-SUB_BITS+1) * SUB_COUNT);
+	private final AtomicLong itsCount = new AtomicLong();
+	private final AtomicLong itsSum = new AtomicLong();
+	private final AtomicLong itsMax = new AtomicLong();
+	
+	private static int getBucket(long aValue)
+	{
+		if (aValue < SUB_COUNT) return (int) aValue;
+		int theExp = 63 - Long.numberOfLeadingZeros(aValue);
+		int theSub = (int) (aValue >>> (theExp-SUB_BITS)) & (SUB_COUNT-1);
+		return (theExp-SUB_BITS+1)*SUB_COUNT + theSub;
+	}
+	
+	/**
+	 * Returns the highest value of the given bucket.
+	 */
+	private static long getBucketMax(int aBucket)
+	{
+		if (aBucket < SUB_COUNT) return aBucket;
+		int theExp = aBucket/SUB_COUNT + SUB_BITS - 1;
+		long theSub = aBucket % SUB_COUNT;
+		long theMin = (SUB_COUNT + theSub) << (theExp-SUB_BITS);
+		return theMin + (1L << (theExp-SUB_BITS)) - 1;
+	}
+	
+	/**
+	 * Records a value. Negative values are counted as 0.
+	 */
+	public void record(long aValue)
+	{
+		if (aValue < 0) aValue = 0;
+		itsBuckets.incrementAndGet(getBucket(aValue));
+		itsCount.incrementAndGet();
+		itsSum.addAndGet(aValue);
+		
+		long theMax;
+		while ((theMax = itsMax.get()) < aValue && ! itsMax.compareAndSet(theMax, aValue));
+	}
+	
+	public long getCount()
+	{
+		return itsCount.get();
+	}
+	
+	public long getMax()
+	{
+		return itsMax.get();
+	}
+	
+	public long getMean()
+	{
+		long theCount = getCount();
+		return theCount > 0 ? itsSum.get() / theCount : 0;
+	}
+	
+	/**
+	 * Returns an upper bound of the given percentile of the recorded values 
+	 * (eg. 50 for the median), or 0 if there is none.
+	 */
+	public long getPercentile(double aPercentile)
+	{
+		long theCount = getCount();
+		if (theCount == 0) return 0;
+		
+		long theRank = (long) Math.ceil(theCount * aPercentile / 100);
+		if (theRank < 1) theRank = 1;
+		
+		long theSeen = 0;
+		for (int i=0;i<itsBuckets.length();i++)
+		{
+			theSeen += itsBuckets.get(i);
+			if (theSeen >= theRank) return Math.min(getBucketMax(i), getMax());
+		}
+		return getMax();
+	}
+	
+	/**
+	 * Forgets all recorded values. Values recorded concurrently might be partially lost.
+	 */
+	public void reset()
+	{
+		for (int i=0;i<itsBuckets.length();i++) itsBuckets.set(i, 0);
+		itsCount.set(0);
+		itsSum.set(0);
+		itsMax.set(0);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "count: "+getCount()
+			+", mean: "+getMean()
+			+", p50: "+getPercentile(50)
+			+", p99: "+getPercentile(99)
+			+", max: "+getMax();
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An input stream fed by another thread with chunks of the {@link ChunkPool}.
+ * Chunks are queued without locking and without copying; they are returned to 
+ * the pool once read. A waiting reader is unparked as soon as data arrives.
+ */
+class ChunkInputStream extends InputStream
+{
+	private final ConcurrentLinkedQueue<Chunk> itsChunks = new ConcurrentLinkedQueue<Chunk>();
+	
+	/**
+	 * Number of bytes that were put but not read yet.
+	 */
+	private final AtomicInteger itsBuffered = new AtomicInteger();
+	
+	/**
+	 * The chunk being read (only accessed by the reader).
+	 */
+	private Chunk itsCurrent;
+	
+	private volatile Thread itsWaitingReader;
+	private volatile boolean itsEOF = false;
+	private volatile boolean itsBroken = false;
+	private volatile boolean itsClosed = false;
+	
+	private final Object itsSpaceLock = new Object();
+	private volatile int itsWaitingWriters = 0;
+	
+	private volatile Runnable itsDataListener;
+	private volatile Runnable itsSpaceListener;
+	
+	/**
+	 * Sets a listener that is called by the writer after data, the end of the
+	 * stream or a failure is put. It must not block.
+	 */
+	public void setDataListener(Runnable aListener)
+	{
+		itsDataListener = aListener;
+	}
+	
+	/**
+	 * Sets a listener that is called by the reader after buffered data is read,
+	 * and when this stream is closed. It must not block.
+	 */
+	public void setSpaceListener(Runnable aListener)
+	{
+		itsSpaceListener = aListener;
+	}
+	
+	private static void fire(Runnable aListener)
+	{
+		if (aListener != null) aListener.run();
+	}
+	
+	/**
+	 * Queues data for the reader. The chunk now belongs to this stream.
+	 * @return False if this stream was closed (the chunk is discarded).
+	 */
+	public boolean put(byte[] aChunk, int aLength)
+	{
+		if (itsClosed) 
+		{
+			ChunkPool.give(aChunk);
+			return false;
+		}
+		
+		itsBuffered.addAndGet(aLength);
+		itsChunks.offer(new Chunk(aChunk, aLength));
+		wakeReader();
+		fire(itsDataListener);
+		return true;
+	}
+	
+	/**
+	 * Indicates that no more data will be put. The reader gets the end of 
+	 * the stream once it has read the queued data.
+	 */
+	public void putEOF()
+	{
+		itsEOF = true;
+		wakeReader();
+		fire(itsDataListener);
+	}
+	
+	/**
+	 * Indicates that no more data will be put because the writer failed. 
+	 * The reader gets an exception once it has read the queued data.
+	 */
+	public void putBroken()
+	{
+		itsBroken = true;
+		wakeReader();
+		fire(itsDataListener);
+	}
+	
+	private void wakeReader()
+	{
+		Thread theReader = itsWaitingReader;
+		if (theReader != null) LockSupport.unpark(theReader);
+	}
+	
+	/**
+	 * Waits until less than the given number of bytes are buffered.
+	 */
+	public void waitSpace(int aLimit) throws IOException
+	{
+		if (itsBuffered.get() >= aLimit)
+		{
+			synchronized (itsSpaceLock)
+			{
+				itsWaitingWriters++;
+				try
+				{
+					while (itsBuffered.get() >= aLimit && ! itsClosed) itsSpaceLock.wait();
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
+				finally
+				{
+					itsWaitingWriters--;
+				}
+			}
+		}
+		if (itsClosed) throw new IOException("Pipe closed");
+	}
+	
+	/**
+	 * Returns the number of bytes that were put but not read yet.
+	 */
+	public int getBuffered()
+	{
+		return itsBuffered.get();
+	}
+	
+	/**
+	 * Called after the given number of bytes were read. 
+	 */
+	protected void consumed(int aCount) throws IOException
+	{
+	}
+	
+	/**
+	 * Returns the chunk to read from, or null if the end of the stream 
+	 * was reached or, if not waiting, if no data is available.
+	 */
+	private Chunk nextChunk(boolean aWait) throws IOException
+	{
+		while(true)
+		{
+			if (itsClosed) throw new IOException("Stream closed");
+			if (itsCurrent == null) itsCurrent = itsChunks.poll();
+			if (itsCurrent != null || ! aWait) return itsCurrent;
+			
+			// The EOF is put after the last chunk
+			if (itsEOF || itsBroken) 
+			{
+				itsCurrent = itsChunks.poll();
+				return itsCurrent;
+			}
+			
+			// Checks again after registering, so that a concurrent put is not missed
+			itsWaitingReader = Thread.currentThread();
+			if (itsChunks.isEmpty() && ! itsEOF && ! itsBroken && ! itsClosed) LockSupport.park(this);
+			itsWaitingReader = null;
+			if (Thread.interrupted()) throw new InterruptedIOException();
+		}
+	}
+	
+	@Override
+	public int read() throws IOException
+	{
+		byte[] theByte = new byte[1];
+		int theCount = read(theByte, 0, 1);
+		return theCount < 0 ? -1 : theByte[0] & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] aB, int aOff, int aLen) throws IOException
+	{
+		return read(aB, aOff, aLen, true);
+	}
+	
+	/**
+	 * Same as {@link #read(byte[], int, int)}, but if not waiting, returns 0 
+	 * when no data is available.
+	 */
+	public synchronized int read(byte[] aB, int aOff, int aLen, boolean aWait) throws IOException
+	{
+		if (aLen == 0) return 0;
+		
+		int theTotal = 0;
+		Chunk theChunk = nextChunk(aWait);
+		if (theChunk == null)
+		{
+			if (! aWait && ! itsEOF && ! itsBroken) return 0;
+			
+			// The EOF is put after the last chunk
+			theChunk = nextChunk(false);
+			if (theChunk == null) 
+			{
+				if (itsBroken) throw new IOException("Pipe broken");
+				return -1;
+			}
+		}
+		
+		// Fills the buffer with the data that is already available
+		while (theChunk != null && theTotal < aLen)
+		{
+			int theCount = Math.min(aLen-theTotal, theChunk.length-theChunk.position);
+			System.arraycopy(theChunk.data, theChunk.position, aB, aOff+theTotal, theCount);
+			theChunk.position += theCount;
+			theTotal += theCount;
+			
+			if (theChunk.position == theChunk.length)
+			{
+				ChunkPool.give(theChunk.data);
+				itsCurrent = null;
+				theChunk = nextChunk(false);
+			}
+		}
+		
+		itsBuffered.addAndGet(-theTotal);
+		if (itsWaitingWriters > 0)
+		{
+			synchronized (itsSpaceLock)
+			{
+				itsSpaceLock.notifyAll();
+			}
+		}
+		
+		consumed(theTotal);
+		fire(itsSpaceListener);
+		return theTotal;
+	}
+	
+	@Override
+	public int available() throws IOException
+	{
+		return itsBuffered.get();
+	}
+	
+	/**
+	 * Closes the reading end. Queued and further data is discarded.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		itsClosed = true;
+		wakeReader();
+		synchronized (itsSpaceLock)
+		{
+			itsSpaceLock.notifyAll();
+		}
+		
+		Chunk theChunk;
+		while ((theChunk = itsChunks.poll()) != null) ChunkPool.give(theChunk.data);
+		fire(itsSpaceListener);
+	}
+	
+	private static class Chunk
+	{
+		public final byte[] data;
+		public final int length;
+		public int position = 0;
+		
+		public Chunk(byte[] aData, int aLength)
+		{
+			data = aData;
+			length = aLength;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes to a {@link ChunkInputStream} of the same JVM. 
+ * Writers block while the reader has too much data left to read.
+ */
+class ChunkOutputStream extends OutputStream
+{
+	private final int itsLimit;
+	private ChunkInputStream itsTarget;
+	private boolean itsClosed = false;
+	
+	/**
+	 * @param aLimit Maximum number of bytes buffered by the target.
+	 */
+	public ChunkOutputStream(int aLimit)
+	{
+		itsLimit = aLimit;
+	}
+	
+	public void connect(ChunkInputStream aTarget)
+	{
+		itsTarget = aTarget;
+	}
+	
+	/**
+	 * Sets a listener that is called when the target has more space 
+	 * (see {@link ChunkInputStream#setSpaceListener(Runnable)}).
+	 */
+	public void setWritableListener(Runnable aListener) throws IOException
+	{
+		if (itsTarget == null) throw new IOException("Pipe not connected");
+		itsTarget.setSpaceListener(aListener);
+	}
+	
+	@Override
+	public synchronized void write(byte[] aB, int aOff, int aLen) throws IOException
+	{
+		if (itsTarget == null) throw new IOException("Pipe not connected");
+		while (aLen > 0)
+		{
+			if (itsClosed) throw new IOException("Pipe closed");
+			itsTarget.waitSpace(itsLimit);
+			
+			int theCount = Math.min(aLen, ChunkPool.CHUNK_SIZE);
+			byte[] theChunk = ChunkPool.take(theCount);
+			System.arraycopy(aB, aOff, theChunk, 0, theCount);
+			if (! itsTarget.put(theChunk, theCount)) throw new IOException("Pipe closed");
+			aOff += theCount;
+			aLen -= theCount;
+		}
+	}
+	
+	/**
+	 * Writes as many bytes as the target can buffer, without waiting.
+	 * @return The number of bytes written.
+	 */
+	public synchronized int tryWrite(byte[] aB, int aOff, int aLen) throws IOException
+	{
+		if (itsTarget == null) throw new IOException("Pipe not connected");
+		if (itsClosed) throw new IOException("Pipe closed");
+		int theCount = Math.min(aLen, itsLimit - itsTarget.getBuffered());
+		if (theCount <= 0) return 0;
+		write(aB, aOff, theCount);
+		return theCount;
+	}
+	
+	@Override
+	public void write(int aB) throws IOException
+	{
+		write(new byte[] { (byte) aB }, 0, 1);
+	}
+	
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (itsClosed) return;
+		itsClosed = true;
+		if (itsTarget != null) itsTarget.putEOF();
+	}
+}
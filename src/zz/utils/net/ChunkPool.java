@@ -0,0 +1,62 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.net;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of fixed-size byte arrays, used to hand data over between threads
+ * without allocating (see {@link ChunkInputStream}).
+ */
+class ChunkPool
+{
+	public static final int CHUNK_SIZE = 8192;
+	
+	/**
+	 * Arrays for less than this number of bytes are allocated with their exact size
+	 * (see {@link #take(int)}).
+	 */
+	public static final int SMALL_SIZE = CHUNK_SIZE/4;
+	
+	/**
+	 * Maximum number of chunks kept in the pool.
+	 */
+	private static final int MAX_POOLED = 1024;
+	
+	private static final ConcurrentLinkedQueue<byte[]> itsChunks = new ConcurrentLinkedQueue<byte[]>();
+	private static final AtomicInteger itsSize = new AtomicInteger();
+	
+	/**
+	 * Returns a chunk of {@link #CHUNK_SIZE} bytes, whose content is undefined.
+	 */
+	public static byte[] take()
+	{
+		byte[] theChunk = itsChunks.poll();
+		if (theChunk == null) return new byte[CHUNK_SIZE];
+		itsSize.decrementAndGet();
+		return theChunk;
+	}
+	
+	/**
+	 * Returns an array that can hold the given number of bytes (up to {@link #CHUNK_SIZE}).
+	 * Below {@link #SMALL_SIZE}, this is a new array of exactly that size, so that
+	 * small payloads queued in large numbers do not each pin a whole chunk.
+	 */
+	public static byte[] take(int aSize)
+	{
+		return aSize < SMALL_SIZE ? new byte[aSize] : take();
+	}
+	
+	/**
+	 * Returns a chunk to the pool. The caller must not use it anymore.
+	 * Arrays that are not chunks are ignored.
+	 */
+	public static void give(byte[] aChunk)
+	{
+		if (aChunk.length != CHUNK_SIZE || itsSize.get() >= MAX_POOLED) return;
+		itsSize.incrementAndGet();
+		itsChunks.offer(aChunk);
+	}
+}
@@ -66,11 +66,19 @@ implements Externalizable
 		itsManager = null;
 	}
 	
-	private MultiplexRMISocketFactory(MultiplexingManager aManager)
+	MultiplexRMISocketFactory(MultiplexingManager aManager)
 	{
 		itsManager = aManager;
 	}
 
+	/**
+	 * The manager of the multiplexed connection, eg. to configure write coalescing.
+	 */
+	public MultiplexingManager getManager()
+	{
+		return itsManager;
+	}
+
 	public Object readResolve() throws ObjectStreamException
 	{
 		assert INSTANCE != null;
@@ -11,46 +11,85 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import zz.utils.ArrayStack;
-import zz.utils.PipedInputStream2;
-import zz.utils.PipedOutputStream2;
 import zz.utils.Stack;
-import zz.utils.Utils;
 
 /**
  * Manages socket multiplexing.
+ * Each virtual socket has a receive window: a peer sends at most that many bytes
+ * that have not been consumed yet, and is granted more credit by 
+ * {@link Command#WINDOW_UPDATE} commands as the receiver reads. 
+ * This way a slow reader only blocks its own stream, and never the thread that 
+ * reads the actual socket.
+ * <p>
+ * Actual sockets are handled either by a dedicated thread each, or, if a
+ * {@link SelectorPool} is given and the sockets have channels, by non-blocking
+ * selector threads shared by all sockets. Virtual sockets can also be used
+ * through non-blocking {@link VirtualChannel}s.
  * 
  * @author gpothier
  */
 public class MultiplexingManager
 {
+	/**
+	 * Default size of the receive window of virtual sockets.
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 64*1024;
+	
+	/**
+	 * Default scheduling weight of virtual sockets 
+	 * (see {@link #createSocket(String, int, int)}).
+	 */
+	public static final int DEFAULT_WEIGHT = 1;
+	
 	enum Command 
 	{
-		CMD_DATA, 
-		CONNECT, 
-		CONNECTION_ACK,
-		CLOSE,
-		CLOSE_ACK;
+		CMD_DATA(2), 
+		CONNECT(3), 
+		CONNECTION_ACK(3),
+		CLOSE(1),
+		CLOSE_ACK(1),
+		WINDOW_UPDATE(2);
 
 		/**
 		 * Cached values; call to values() is costly.
 		 */
 		public static final Command[] VALUES = values();
+		
+		/**
+		 * Number of int arguments that follow the command 
+		 * (for {@link #CMD_DATA}, the data follows the arguments).
+		 */
+		public final int argCount;
+		
+		private Command(int aArgCount)
+		{
+			argCount = aArgCount;
+		}
 
 	};
 
@@ -66,18 +105,74 @@ public class MultiplexingManager
 	/**
 	 * Maps host names to socket managers
 	 */
-	private final Map<String, SocketManager> itsHostsMap = new HashMap<String, SocketManager>();
+	private final Map<String, SocketManager> itsHostsMap = new ConcurrentHashMap<String, SocketManager>();
 
 	/**
 	 * Maps port numbers to virtual sockets.
 	 */
-	private final Map<Integer, VirtualSocket> itsBoundSockets = new HashMap<Integer, VirtualSocket>();
+	private final Map<Integer, VirtualSocket> itsBoundSockets = new ConcurrentHashMap<Integer, VirtualSocket>();
 
-	private final Map<Integer, VirtualServerSocket> itsListeningSockets = new HashMap<Integer, VirtualServerSocket>();
+	private final Map<Integer, VirtualServerSocket> itsListeningSockets = new ConcurrentHashMap<Integer, VirtualServerSocket>();
 
+	private final int itsWindowSize;
+	private final SelectorPool itsSelectorPool;
+	
+	private volatile long itsMaxFlushLatency = 0;
+	private volatile int itsCoalescingSize = 1024;
+	
 	public MultiplexingManager(String aHostName)
+	{
+		this(aHostName, DEFAULT_WINDOW_SIZE, null);
+	}
+	
+	public MultiplexingManager(String aHostName, int aWindowSize)
+	{
+		this(aHostName, aWindowSize, null);
+	}
+	
+	/**
+	 * @param aWindowSize Number of bytes each virtual socket buffers for its reader
+	 * (the other end learns it when connecting).
+	 * @param aSelectorPool If not null, actual sockets that have a {@link SocketChannel} 
+	 * are driven by the threads of this pool instead of one thread per socket.
+	 */
+	public MultiplexingManager(String aHostName, int aWindowSize, SelectorPool aSelectorPool)
 	{
 		itsHostName = aHostName;
+		itsWindowSize = aWindowSize;
+		itsSelectorPool = aSelectorPool;
+	}
+	
+	/**
+	 * Maximum time (in microseconds) between the flush of a virtual socket and the
+	 * flush of the actual socket, so that the data of several virtual sockets is 
+	 * written together. The default (0) flushes immediately. 
+	 * Sockets in no-delay mode (see {@link VirtualChannel#setNoDelay(boolean)}) are always flushed immediately.
+	 */
+	public long getMaxFlushLatency()
+	{
+		return itsMaxFlushLatency;
+	}
+	
+	public void setMaxFlushLatency(long aMaxFlushLatency)
+	{
+		itsMaxFlushLatency = aMaxFlushLatency;
+	}
+	
+	/**
+	 * Size of the buffer of virtual sockets: smaller writes are merged into a single 
+	 * data frame, which is sent when the buffer is full or the socket is flushed.
+	 * Sockets in no-delay mode (see {@link VirtualChannel#setNoDelay(boolean)}) are not buffered.
+	 * Changes only affect sockets created afterwards.
+	 */
+	public int getCoalescingSize()
+	{
+		return itsCoalescingSize;
+	}
+	
+	public void setCoalescingSize(int aCoalescingSize)
+	{
+		itsCoalescingSize = aCoalescingSize;
 	}
 	
 	/**
@@ -91,7 +186,14 @@ public class MultiplexingManager
 
 	public void addSocket(String aHostName, Socket aSocket) throws IOException
 	{
-		itsHostsMap.put(aHostName, new SocketManager(aHostName, aSocket));
+		SocketChannel theChannel = aSocket.getChannel();
+		SocketManager theManager;
+		if (theChannel != null && itsSelectorPool != null) 
+		{
+			theManager = new NioSocketManager(aHostName, theChannel, itsSelectorPool.next());
+		}
+		else theManager = new BlockingSocketManager(aHostName, aSocket);
+		itsHostsMap.put(aHostName, theManager);
 	}
 
 	private void socketClosed(String aHostName)
@@ -104,6 +206,18 @@ public class MultiplexingManager
 	 * the other end of the actual socket.
 	 */
 	public Socket createSocket(String aHostName, int aPort) throws IOException
+	{
+		return createSocket(aHostName, aPort, DEFAULT_WEIGHT);
+	}
+	
+	/**
+	 * Creates a virtual socket that connects to the specified (virtual) port on
+	 * the other end of the actual socket.
+	 * @param aWeight The share of the actual socket that the data of this virtual socket 
+	 * gets when other virtual sockets also have data to send, relative to their weights. 
+	 * Interactive streams should have a higher weight than bulk transfers.
+	 */
+	public Socket createSocket(String aHostName, int aPort, int aWeight) throws IOException
 	{
 		if (itsHostName.equals(aHostName) 
 				|| "localhost".equals(aHostName) 
@@ -125,7 +239,7 @@ public class MultiplexingManager
 		
 		SocketManager theSocketManager = itsHostsMap.get(aHostName);
 		if (theSocketManager == null) throw new UnknownHostException(aHostName);
-		VirtualSocket theSocket = theSocketManager.connect(aPort);
+		VirtualSocket theSocket = theSocketManager.connect(aPort, aWeight);
 		if (theSocket == null) throw new IOException("Connection refused to " + aHostName + ":" + aPort);
 		return theSocket;
 	}
@@ -137,17 +251,42 @@ public class MultiplexingManager
 	 * @throws IOException
 	 */
 	public ServerSocket createServerSocket(int aPort) throws IOException
+	{
+		return createServerSocket(aPort, DEFAULT_WEIGHT);
+	}
+	
+	/**
+	 * Creates a virtual server socket that accepts incoming connection on the
+	 * specified (virtual) port.
+	 * @param aWeight The weight of the accepted sockets (see {@link #createSocket(String, int, int)}).
+	 */
+	public ServerSocket createServerSocket(int aPort, int aWeight) throws IOException
 	{
 		System.out.println("Creating server socket on port: " + aPort);
 		VirtualServerSocket theServerSocket = itsListeningSockets.get(aPort);
 		if (theServerSocket != null) throw new IOException("Address already in use: " + aPort);
 
-		theServerSocket = new VirtualServerSocket(aPort);
+		theServerSocket = new VirtualServerSocket(aPort, aWeight);
 		itsListeningSockets.put(aPort, theServerSocket);
 
 		return theServerSocket;
 	}
 
+	/**
+	 * Triggers the delayed flushes of all managers. Its tasks must not block 
+	 * (see {@link SocketManager#delayedFlush()}).
+	 */
+	private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory()
+			{
+				public Thread newThread(Runnable aRunnable)
+				{
+					Thread theThread = new Thread(aRunnable, "MultiplexingManager flusher");
+					theThread.setDaemon(true);
+					return theThread;
+				}
+			});
+	
 	private synchronized void portFreed(int aPort)
 	{
 		itsFreedPorts.push(aPort);
@@ -160,42 +299,324 @@ public class MultiplexingManager
 	}
 
 	/**
-	 * Manager for a single actual socket.
+	 * Manager for a single actual socket. Implements the multiplexing protocol;
+	 * subclasses move the commands over the socket, and pass the received commands
+	 * to the <code>received*</code> methods.
+	 * Outgoing commands are encoded into buffers and queued in a {@link SendScheduler},
+	 * in which each virtual socket has its own flow so that bulk transfers do not 
+	 * starve other sockets. Other commands have priority.
 	 * 
 	 * @author gpothier
 	 */
-	private class SocketManager extends Thread
+	private abstract class SocketManager
 	{
 		private final String itsHostName;
-		private final Socket itsSocket;
-		private final DataInputStream itsIn;
-		private final DataOutputStream itsOut;
-		
-		private final byte[] itsDataBuffer = new byte[8192];
 
 		/**
 		 * Map of pending connections. Keys are local ports.
 		 */
-		private final Map<Integer, PendingConnectionData> itsPendingConnections = new HashMap<Integer, PendingConnectionData>();
+		private final Map<Integer, PendingConnectionData> itsPendingConnections = new ConcurrentHashMap<Integer, PendingConnectionData>();
+		
+		private final AtomicBoolean itsDelayedFlushScheduled = new AtomicBoolean(false);
+		
+		/**
+		 * Set once the actual socket is closed.
+		 */
+		private volatile boolean itsLost = false;
+		
+		/**
+		 * Buffers that contain a chunk of the {@link ChunkPool} are given back to 
+		 * the pool by {@link #recycle(ByteBuffer)} once written.
+		 */
+		protected final SendScheduler<ByteBuffer> itsScheduler = new SendScheduler<ByteBuffer>(ChunkPool.CHUNK_SIZE);
+		
+		private final Runnable itsDelayedFlush = new Runnable()
+		{
+			public void run()
+			{
+				itsDelayedFlushScheduled.set(false);
+				delayedFlush();
+			}
+		};
 
-		protected SocketManager(String aHostName, Socket aSocket) throws IOException
+		protected SocketManager(String aHostName)
 		{
-			super("SocketManager");
-			setDaemon(true);
 			itsHostName = aHostName;
-			itsSocket = aSocket;
-			itsIn = new DataInputStream(new BufferedInputStream(itsSocket.getInputStream()));
-			itsOut = new DataOutputStream(new BufferedOutputStream(itsSocket.getOutputStream()));
-
-			start();
 		}
 
 		public String getHostName()
 		{
 			return itsHostName;
 		}
+		
+		private ByteBuffer encode(Command aCommand, int... aArgs)
+		{
+			ByteBuffer theBuffer = ByteBuffer.allocate(1 + 4*aArgs.length);
+			theBuffer.put((byte) aCommand.ordinal());
+			for (int theArg : aArgs) theBuffer.putInt(theArg);
+			theBuffer.flip();
+			return theBuffer;
+		}
+		
+		/**
+		 * Sends a command other than {@link Command#CMD_DATA} without delay,
+		 * before the queued data. 
+		 */
+		protected void sendCommand(Command aCommand, int... aArgs) throws IOException
+		{
+			itsScheduler.offerPriority(encode(aCommand, aArgs));
+			flushNow();
+		}
+
+		/**
+		 * Sends data to a virtual socket of the other end. The data might not be 
+		 * sent before the next {@link #flush(boolean)}. The buffer can be reused when this method returns.
+		 * @param aFlow The flow of the virtual socket.
+		 */
+		protected void sendData(SendScheduler.Flow<ByteBuffer> aFlow, int aVirtualPort, byte[] aBuffer, int aOff, int aLen) throws IOException
+		{
+			while (aLen > 0)
+			{
+				int theCount = Math.min(aLen, ChunkPool.CHUNK_SIZE-9);
+				ByteBuffer theBuffer = ByteBuffer.wrap(ChunkPool.take(9+theCount));
+				theBuffer.put((byte) Command.CMD_DATA.ordinal());
+				theBuffer.putInt(aVirtualPort);
+				theBuffer.putInt(theCount);
+				theBuffer.put(aBuffer, aOff, theCount);
+				theBuffer.flip();
+				itsScheduler.offer(aFlow, theBuffer, theBuffer.remaining());
+				aOff += theCount;
+				aLen -= theCount;
+			}
+		}
+		
+		/**
+		 * Gives the chunk of a written buffer back to the pool, if it has one.
+		 */
+		protected void recycle(ByteBuffer aBuffer)
+		{
+			if (aBuffer.capacity() == ChunkPool.CHUNK_SIZE) ChunkPool.give(aBuffer.array());
+		}
+		
+		/**
+		 * Writes the queued commands to the actual socket.
+		 */
+		protected abstract void flushNow() throws IOException;
+		
+		/**
+		 * Called by the {@link #FLUSHER} when the latency budget of a flush is
+		 * spent. Must hand the flush over to the I/O thread of this manager rather
+		 * than write, so that a stalled connection does not delay the others.
+		 */
+		protected abstract void delayedFlush();
+		
+		/**
+		 * Writes the data sent so far to the actual socket, possibly after a delay
+		 * (see {@link MultiplexingManager#getMaxFlushLatency()}) so that data sent 
+		 * in the meantime is written with it.
+		 * @param aImmediate Whether to write without delay. 
+		 */
+		protected void flush(boolean aImmediate) throws IOException
+		{
+			long theLatency = itsMaxFlushLatency;
+			if (aImmediate || theLatency <= 0) flushNow();
+			else if (itsDelayedFlushScheduled.compareAndSet(false, true))
+			{
+				FLUSHER.schedule(itsDelayedFlush, theLatency, TimeUnit.MICROSECONDS);
+			}
+		}
+		
+		/**
+		 * Grants the given number of bytes of credit to the other end of a virtual socket.
+		 */
+		protected void sendWindowUpdate(int aRemotePort, int aCredit) throws IOException
+		{
+			sendCommand(Command.WINDOW_UPDATE, aRemotePort, aCredit);
+		}
+		
+		/**
+		 * Must be called by subclasses when the actual socket is closed.
+		 * Fails the virtual sockets and pending connections of this manager.
+		 */
+		protected void closed()
+		{
+			itsLost = true;
+			socketClosed(itsHostName);
+			
+			for (VirtualSocket theSocket : itsBoundSockets.values())
+			{
+				if (theSocket.getSocketManager() != this) continue;
+				itsBoundSockets.remove(theSocket.getLocalPort());
+				theSocket.connectionLost();
+			}
+			
+			for (PendingConnectionData theData : itsPendingConnections.values()) theData.failed();
+			itsPendingConnections.clear();
+		}
+		
+		/**
+		 * Called when a {@link Command#CMD_DATA} command is received. 
+		 * @return The buffer that receives the data, or null if the data should be skipped. 
+		 */
+		protected ReceiveBuffer receivedData(int aVirtualPort, int aLength) throws IOException
+		{
+			VirtualSocket theSocket = itsBoundSockets.get(aVirtualPort);
+			if (theSocket == null)
+			{
+				System.err.println("Skipping data sent to unbound virtual port " + aVirtualPort);
+				return null;
+			}
+			
+			// Receiving never blocks, as the sender does not exceed the window.
+			ReceiveBuffer theBuffer = theSocket.getReceiveBuffer();
+			if (theBuffer.getBuffered() + aLength > itsWindowSize) throw new IOException("Receive window exceeded");
+			return theBuffer;
+		}
+		
+		protected void receivedWindowUpdate(int aLocalPort, int aCredit)
+		{
+			VirtualSocket theSocket = itsBoundSockets.get(aLocalPort);
+			if (theSocket != null) theSocket.getOutputStream().addCredit(aCredit);
+		}
+
+		/**
+		 * Attempts a connection to the given virtual port.
+		 * 
+		 * @return If the connection is successful, a positive integer that
+		 *         indicates the virtual port of the connection. Otherwise, 0.
+		 * @throws IOException
+		 */
+		protected VirtualSocket connect(int aVirtualPort, int aWeight) throws IOException
+		{
+			// Allocate local port
+			int theLocalPort = getNextFreePort();
+			PendingConnectionData theData = new PendingConnectionData(theLocalPort, aVirtualPort);
+			itsPendingConnections.put(theLocalPort, theData);
+			
+			// Checked after registering, so that a concurrent close is not missed
+			if (itsLost) 
+			{
+				itsPendingConnections.remove(theLocalPort);
+				portFreed(theLocalPort);
+				throw new SocketException("Connection lost to " + itsHostName);
+			}
+
+			sendCommand(Command.CONNECT, theLocalPort, aVirtualPort, itsWindowSize);
+
+			// Wait for peer to accept or reject the connection.
+			int theRemotePort;
+			try
+			{
+				theRemotePort = theData.waitConnected();
+			}
+			catch (InterruptedException e)
+			{
+				throw new RuntimeException("Interrupted while connecting", e);
+			}
+
+			if (theRemotePort == -2)
+			{
+				portFreed(theLocalPort);
+				throw new SocketException("Connection lost to " + itsHostName);
+			}
+			else if (theRemotePort == 0)
+			{
+				portFreed(theLocalPort);
+				return null;
+			}
+			else
+			{
+				VirtualSocket theSocket = new VirtualSocket(this, theLocalPort, theRemotePort, theData.itsRemoteWindow, aWeight);
+				itsBoundSockets.put(theLocalPort, theSocket);
+				if (itsLost && itsBoundSockets.remove(theLocalPort) != null) theSocket.connectionLost();
+				return theSocket;
+			}
+		}
+
+		protected void receivedConnectionAck(int aLocalPort, int aRemotePort, int aRemoteWindow)
+		{
+			PendingConnectionData theData = itsPendingConnections.remove(aLocalPort);
+			if (theData == null || theData.localPort != aLocalPort) { throw new RuntimeException(
+					"Received invalid accept"); }
+
+			theData.setRemotePort(aRemotePort, aRemoteWindow);
+		}
+
+		protected void receivedConnect(int aRemotePort, int aListenPort, int aRemoteWindow) throws IOException
+		{
+			VirtualServerSocket theServerSocket = itsListeningSockets.get(aListenPort);
+			if (theServerSocket == null)
+			{
+				sendCommand(Command.CONNECTION_ACK, aRemotePort, 0, itsWindowSize);
+				return;
+			}
+			else
+			{
+				int theLocalPort = getNextFreePort();
+
+				VirtualSocket theClientSocket = new VirtualSocket(
+						this, 
+						theLocalPort, 
+						aRemotePort, 
+						aRemoteWindow, 
+						theServerSocket.getWeight());
+				itsBoundSockets.put(theLocalPort, theClientSocket);
+
+				sendCommand(Command.CONNECTION_ACK, aRemotePort, theLocalPort, itsWindowSize);
+				theServerSocket.connected(theClientSocket);
+			}
+		}
+		
+		/**
+		 * Called when a local socket is closed.
+		 */
+		protected void close(VirtualSocket aSocket) throws IOException
+		{
+			// Goes through the flow of the socket, so that it is sent after its data 
+			itsScheduler.offer(aSocket.getOutputStream().getFlow(), encode(Command.CLOSE, aSocket.getRemotePort()), 5);
+			flushNow();
+		}
+		
+		protected void receivedClose(int aLocalPort) throws IOException
+		{
+			// Both ends might close the socket at the same time
+			VirtualSocket theSocket = itsBoundSockets.remove(aLocalPort);
+			if (theSocket == null) return;
+			theSocket.remoteClosed();
+			sendCommand(Command.CLOSE_ACK, theSocket.getRemotePort());
+		}
+		
+		protected void receivedCloseAck(int aLocalPort)
+		{
+			itsBoundSockets.remove(aLocalPort);
+		}
+	}
+	
+	/**
+	 * A socket manager that uses blocking streams and a dedicated thread.
+	 */
+	private class BlockingSocketManager extends SocketManager implements Runnable
+	{
+		private final Socket itsSocket;
+		private final DataInputStream itsIn;
+		private final DataOutputStream itsOut;
+		private final Flusher itsFlusher;
+
+		protected BlockingSocketManager(String aHostName, Socket aSocket) throws IOException
+		{
+			super(aHostName);
+			itsSocket = aSocket;
+			itsIn = new DataInputStream(new BufferedInputStream(itsSocket.getInputStream()));
+			itsOut = new DataOutputStream(new BufferedOutputStream(itsSocket.getOutputStream(), 65536));
+
+			itsFlusher = new Flusher();
+			itsFlusher.start();
+			
+			Thread theThread = new Thread(this, "SocketManager");
+			theThread.setDaemon(true);
+			theThread.start();
+		}
 
-		@Override
 		public void run()
 		{
 			try
@@ -209,16 +630,19 @@ public class MultiplexingManager
 						readData();
 						break;
 					case CONNECT:
-						readConnect();
+						receivedConnect(itsIn.readInt(), itsIn.readInt(), itsIn.readInt());
 						break;
 					case CONNECTION_ACK:
-						readConnectionAck();
+						receivedConnectionAck(itsIn.readInt(), itsIn.readInt(), itsIn.readInt());
 						break;
 					case CLOSE:
-						readClose();
+						receivedClose(itsIn.readInt());
 						break;
 					case CLOSE_ACK:
-						readCloseAck();
+						receivedCloseAck(itsIn.readInt());
+						break;
+					case WINDOW_UPDATE:
+						receivedWindowUpdate(itsIn.readInt(), itsIn.readInt());
 						break;
 
 					default:
@@ -231,280 +655,944 @@ public class MultiplexingManager
 			}
 			catch (IOException e)
 			{
-				throw new RuntimeException(e);
+				if (! itsSocket.isClosed()) throw new RuntimeException(e);
 			}
 			finally
 			{
-				socketClosed(itsHostName);
+				itsFlusher.interrupt();
+				closed();
 			}
 		}
-
-		private void sendCommand(Command aCommand) throws IOException
-		{
-			itsOut.writeByte(aCommand.ordinal());
-		}
-
-		private synchronized void sendConnect(int aLocalPort, int aDestListenPort) throws IOException
-		{
-			sendCommand(Command.CONNECT);
-			itsOut.writeInt(aLocalPort);
-			itsOut.writeInt(aDestListenPort);
-			itsOut.flush();
-		}
-
-		private synchronized void sendConnectionAck(int aRemotePort, int aLocalPort) throws IOException
-		{
-			sendCommand(Command.CONNECTION_ACK);
-			itsOut.writeInt(aRemotePort);
-			itsOut.writeInt(aLocalPort);
-			itsOut.flush();
-		}
-
-		protected synchronized void sendData(int aVirtualPort, byte[] aBuffer, int aOff, int aLen) throws IOException
+		
+		@Override
+		protected void delayedFlush()
 		{
-			sendCommand(Command.CMD_DATA);
-			itsOut.writeInt(aVirtualPort);
-			itsOut.writeInt(aLen);
-			itsOut.write(aBuffer, aOff, aLen);
+			itsFlusher.request();
 		}
 
-		protected synchronized void sendClose(int aRemotePort) throws IOException
-		{
-			sendCommand(Command.CLOSE);
-			itsOut.writeInt(aRemotePort);
-			itsOut.flush();
-		}
-		
-		protected synchronized void sendCloseAck(int aRemotePort) throws IOException
+		/**
+		 * Writes the queued commands in the order chosen by the scheduler.
+		 * While a thread is blocked writing, the commands queued by other threads 
+		 * are interleaved with the remaining ones.
+		 */
+		@Override
+		protected synchronized void flushNow() throws IOException
 		{
-			sendCommand(Command.CLOSE_ACK);
-			itsOut.writeInt(aRemotePort);
+			ByteBuffer theBuffer;
+			while ((theBuffer = itsScheduler.poll()) != null)
+			{
+				itsOut.write(theBuffer.array(), theBuffer.arrayOffset()+theBuffer.position(), theBuffer.remaining());
+				recycle(theBuffer);
+			}
 			itsOut.flush();
 		}
 		
-		protected void flush() throws IOException
-		{
-			itsOut.flush();
-		}
-		
-		private void readData() throws IOException
+		private void readData() throws IOException
 		{
 			int theVirtualPort = itsIn.readInt();
 			int theLength = itsIn.readInt();
 			
-			VirtualSocket theSocket = itsBoundSockets.get(theVirtualPort);
-			if (theSocket == null)
+			ReceiveBuffer theBuffer = receivedData(theVirtualPort, theLength);
+			if (theBuffer == null)
 			{
-				System.err.println("Skipping data sent to unbound virtual port " + theVirtualPort);
 				while (theLength > 0)
 					theLength -= itsIn.skip(theLength);
 			}
 			else
 			{
-				Utils.pipe(itsDataBuffer, itsIn, theSocket.getSink(), theLength);
-				theSocket.getSink().flush();
+				// Data is read directly into chunks that are handed over to the reader.
+				while (theLength > 0)
+				{
+					int theCount = Math.min(theLength, ChunkPool.CHUNK_SIZE);
+					byte[] theChunk = ChunkPool.take(theCount);
+					itsIn.readFully(theChunk, 0, theCount);
+					theBuffer.put(theChunk, theCount);
+					theLength -= theCount;
+				}
+			}
+		}
+		
+		/**
+		 * Performs the delayed flushes, which can block if the socket is stalled.
+		 */
+		private class Flusher extends Thread
+		{
+			private boolean itsRequested = false;
+			
+			public Flusher()
+			{
+				super("SocketManager flusher");
+				setDaemon(true);
+			}
+			
+			public synchronized void request()
+			{
+				itsRequested = true;
+				notifyAll();
+			}
+			
+			private synchronized void waitRequest() throws InterruptedException
+			{
+				while (! itsRequested) wait();
+				itsRequested = false;
+			}
+			
+			@Override
+			public void run()
+			{
+				try
+				{
+					while (! itsSocket.isClosed())
+					{
+						waitRequest();
+						flushNow();
+					}
+				}
+				catch (InterruptedException e)
+				{
+				}
+				catch (IOException e)
+				{
+					if (! itsSocket.isClosed()) e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A socket manager that uses a non-blocking {@link SocketChannel} driven by
+	 * a {@link SelectorThread}, so that many actual sockets share a few threads.
+	 * All socket operations are performed by the selector thread; commands 
+	 * are queued and written with gathering writes.
+	 */
+	private class NioSocketManager extends SocketManager implements SelectorThread.IHandler
+	{
+		/**
+		 * Small enough not to delay prioritary commands too much.
+		 */
+		private static final int MAX_BATCH = 16;
+		
+		private final SocketChannel itsSocketChannel;
+		private final SelectorThread itsSelectorThread;
+		private SelectionKey itsKey;
+		
+		private final ByteBuffer itsReadBuffer = ByteBuffer.allocateDirect(65536);
+		
+		/**
+		 * The buffer that receives the payload of the current {@link Command#CMD_DATA}
+		 * command, or null if it is skipped.
+		 */
+		private ReceiveBuffer itsDataBuffer;
+		
+		/**
+		 * Number of bytes of the current {@link Command#CMD_DATA} not received yet.
+		 */
+		private int itsDataRemaining = 0;
+		
+		/**
+		 * Whether a flush task has been submitted to the selector thread,
+		 * or the socket is waiting to become writable.
+		 */
+		private final AtomicBoolean itsFlushScheduled = new AtomicBoolean(false);
+		
+		/**
+		 * Buffers whose writing is in progress.
+		 */
+		private ByteBuffer[] itsPendingBuffers;
+		
+		private volatile boolean itsClosed = false;
+		
+		private final Runnable itsFlushTask = new Runnable()
+		{
+			public void run()
+			{
+				write();
+			}
+		};
+		
+		public NioSocketManager(String aHostName, SocketChannel aSocketChannel, SelectorThread aSelectorThread)
+		{
+			super(aHostName);
+			itsSocketChannel = aSocketChannel;
+			itsSelectorThread = aSelectorThread;
+			
+			itsSelectorThread.invokeLater(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						itsSocketChannel.configureBlocking(false);
+						itsKey = itsSelectorThread.register(itsSocketChannel, SelectionKey.OP_READ, NioSocketManager.this);
+					}
+					catch (IOException e)
+					{
+						failed(e);
+					}
+				}
+			});
+		}
+		
+		@Override
+		protected void flushNow() throws IOException
+		{
+			if (itsClosed) throw new IOException("Socket closed");
+			if (itsFlushScheduled.compareAndSet(false, true)) itsSelectorThread.invokeLater(itsFlushTask);
+		}
+		
+		@Override
+		protected void delayedFlush()
+		{
+			try
+			{
+				flushNow();
+			}
+			catch (IOException e)
+			{
+				// Closed meanwhile
+			}
+		}
+		
+		public void ready(SelectionKey aKey)
+		{
+			try
+			{
+				if (aKey.isReadable()) read();
+				if (aKey.isValid() && aKey.isWritable())
+				{
+					aKey.interestOps(aKey.interestOps() & ~SelectionKey.OP_WRITE);
+					write();
+				}
+			}
+			catch (Exception e)
+			{
+				failed(e);
+			}
+		}
+		
+		private void read() throws IOException
+		{
+			int theCount = itsSocketChannel.read(itsReadBuffer);
+			if (theCount < 0)
+			{
+				close();
+				return;
+			}
+			
+			itsReadBuffer.flip();
+			while(true)
+			{
+				if (itsDataRemaining > 0)
+				{
+					int theLength = Math.min(Math.min(itsDataRemaining, itsReadBuffer.remaining()), ChunkPool.CHUNK_SIZE);
+					if (theLength == 0) break;
+					
+					if (itsDataBuffer != null)
+					{
+						byte[] theChunk = ChunkPool.take(theLength);
+						itsReadBuffer.get(theChunk, 0, theLength);
+						itsDataBuffer.put(theChunk, theLength);
+					}
+					else itsReadBuffer.position(itsReadBuffer.position()+theLength);
+					
+					itsDataRemaining -= theLength;
+					continue;
+				}
+				
+				// Only complete commands are processed
+				if (! itsReadBuffer.hasRemaining()) break;
+				Command theCommand = Command.VALUES[itsReadBuffer.get(itsReadBuffer.position())];
+				if (itsReadBuffer.remaining() < 1 + 4*theCommand.argCount) break;
+				itsReadBuffer.get();
+				
+				switch (theCommand)
+				{
+				case CMD_DATA:
+					int thePort = itsReadBuffer.getInt();
+					itsDataRemaining = itsReadBuffer.getInt();
+					itsDataBuffer = receivedData(thePort, itsDataRemaining);
+					break;
+				case CONNECT:
+					receivedConnect(itsReadBuffer.getInt(), itsReadBuffer.getInt(), itsReadBuffer.getInt());
+					break;
+				case CONNECTION_ACK:
+					receivedConnectionAck(itsReadBuffer.getInt(), itsReadBuffer.getInt(), itsReadBuffer.getInt());
+					break;
+				case CLOSE:
+					receivedClose(itsReadBuffer.getInt());
+					break;
+				case CLOSE_ACK:
+					receivedCloseAck(itsReadBuffer.getInt());
+					break;
+				case WINDOW_UPDATE:
+					receivedWindowUpdate(itsReadBuffer.getInt(), itsReadBuffer.getInt());
+					break;
+					
+				default:
+					throw new RuntimeException("Not handled: " + theCommand);
+				}
+			}
+			itsReadBuffer.compact();
+		}
+		
+		/**
+		 * Writes as many queued commands as possible. Called by the selector thread.
+		 */
+		private void write()
+		{
+			try
+			{
+				while(true)
+				{
+					if (itsPendingBuffers == null)
+					{
+						itsPendingBuffers = collectBuffers();
+						if (itsPendingBuffers == null)
+						{
+							itsFlushScheduled.set(false);
+							
+							// Commands might have been queued before we reset the flag.
+							if (itsScheduler.isEmpty() || ! itsFlushScheduled.compareAndSet(false, true)) return;
+							else continue;
+						}
+					}
+					
+					itsSocketChannel.write(itsPendingBuffers);
+					if (itsPendingBuffers[itsPendingBuffers.length-1].hasRemaining())
+					{
+						// Socket buffer is full, wait until it is writable.
+						itsKey.interestOps(itsKey.interestOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+					
+					for (ByteBuffer theBuffer : itsPendingBuffers) recycle(theBuffer);
+					itsPendingBuffers = null;
+				}
+			}
+			catch (IOException e)
+			{
+				failed(e);
+			}
+		}
+		
+		/**
+		 * Takes up to {@link #MAX_BATCH} buffers from the scheduler for a gathering write.
+		 */
+		private ByteBuffer[] collectBuffers()
+		{
+			ByteBuffer theFirst = itsScheduler.poll();
+			if (theFirst == null) return null;
+			
+			List<ByteBuffer> theBuffers = new ArrayList<ByteBuffer>();
+			theBuffers.add(theFirst);
+			while (theBuffers.size() < MAX_BATCH)
+			{
+				ByteBuffer theBuffer = itsScheduler.poll();
+				if (theBuffer == null) break;
+				theBuffers.add(theBuffer);
+			}
+			return theBuffers.toArray(new ByteBuffer[theBuffers.size()]);
+		}
+		
+		private void failed(Exception e)
+		{
+			// Closing the actual socket locally is not a failure
+			if (itsSocketChannel.isOpen()) e.printStackTrace();
+			close();
+		}
+		
+		private void close()
+		{
+			if (itsClosed) return;
+			itsClosed = true;
+			try
+			{
+				if (itsKey != null) itsKey.cancel();
+				itsSocketChannel.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			closed();
+		}
+	}
+
+	/**
+	 * Represents a pending connection request
+	 * 
+	 * @author gpothier
+	 */
+	private static class PendingConnectionData
+	{
+		public final int localPort;
+
+		public final int remoteListenPort;
+
+		public int itsRemotePort = -1;
+		
+		/**
+		 * The receive window of the remote socket.
+		 */
+		public int itsRemoteWindow;
+
+		public PendingConnectionData(int aLocalPort, int aListenRemotePort)
+		{
+			localPort = aLocalPort;
+			remoteListenPort = aListenRemotePort;
+		}
+
+		/**
+		 * Sets the remote port of the connection, once known. Awakes
+		 * {@link #waitConnected()}.
+		 */
+		public synchronized void setRemotePort(int aPort, int aWindow)
+		{
+			itsRemotePort = aPort;
+			itsRemoteWindow = aWindow;
+			notifyAll();
+		}
+
+		/**
+		 * Called when the actual socket is closed before the connection is acknowledged. 
+		 * Awakes {@link #waitConnected()}.
+		 */
+		public synchronized void failed()
+		{
+			itsRemotePort = -2;
+			notifyAll();
+		}
+
+		/**
+		 * Waits until the remote end accepts (or refuses) the connection.
+		 * Returns 0 if refused, -2 if the actual socket was closed, otherwise 
+		 * the remote port to use for the connection.
+		 */
+		public synchronized int waitConnected() throws InterruptedException
+		{
+			while (itsRemotePort == -1)
+				wait();
+			return itsRemotePort;
+		}
+	}
+
+	/**
+	 * Sends data to a virtual socket, within the credit granted by its receive window.
+	 * Small writes are merged in a buffer (see {@link MultiplexingManager#getCoalescingSize()}), 
+	 * unless the stream is in no-delay mode.
+	 */
+	private class MultiplexedOutputStream extends OutputStream
+	{
+		private final SocketManager itsSocketManager;
+		private final int itsRemotePort;
+		
+		/**
+		 * Number of bytes that can be sent before the next window update.
+		 * Protected by the monitor of this stream.
+		 */
+		private int itsCredit;
+		
+		private boolean itsClosed = false;
+		
+		/**
+		 * Serializes writers. Distinct from the monitor of this stream, so that 
+		 * credit can be added while a writer is blocked on the actual socket.
+		 */
+		private final Object itsWriteLock = new Object();
+		
+		private final byte[] itsBuffer;
+		private int itsCount = 0;
+		
+		private volatile boolean itsNoDelay = false;
+		
+		private volatile Runnable itsWritableListener;
+		
+		private final SendScheduler.Flow<ByteBuffer> itsFlow;
+
+		public MultiplexedOutputStream(SocketManager aSocketManager, int aVirtualPort, int aWindow, int aWeight)
+		{
+			itsSocketManager = aSocketManager;
+			itsRemotePort = aVirtualPort;
+			itsCredit = aWindow;
+			itsBuffer = new byte[itsCoalescingSize];
+			itsFlow = aSocketManager.itsScheduler.createFlow(aWeight);
+		}
+		
+		public int getRemotePort()
+		{
+			return itsRemotePort;
+		}
+		
+		public SendScheduler.Flow<ByteBuffer> getFlow()
+		{
+			return itsFlow;
+		}
+		
+		public boolean isNoDelay()
+		{
+			return itsNoDelay;
+		}
+		
+		/**
+		 * In no-delay mode, writes are not buffered, and flushes are not delayed.
+		 */
+		public void setNoDelay(boolean aNoDelay) throws IOException
+		{
+			itsNoDelay = aNoDelay;
+			if (aNoDelay) flush();
+		}
+		
+		/**
+		 * Sets a listener that is called when credit is granted, and when this 
+		 * stream is closed. It must not block.
+		 */
+		public void setWritableListener(Runnable aListener)
+		{
+			itsWritableListener = aListener;
+		}
+		
+		private void fireWritable()
+		{
+			Runnable theListener = itsWritableListener;
+			if (theListener != null) theListener.run();
+		}
+		
+		public void addCredit(int aCredit)
+		{
+			synchronized (this)
+			{
+				itsCredit += aCredit;
+				notifyAll();
+			}
+			fireWritable();
+		}
+		
+		/**
+		 * Waits until there is some credit, and takes up to the given amount.
+		 */
+		private int takeCredit(int aMax) throws IOException
+		{
+			synchronized (this)
+			{
+				if (itsClosed) throw new IOException("Stream closed");
+				if (itsCredit > 0) return take(aMax);
+			}
+			
+			// The receiver cannot grant credit for data it did not receive
+			itsSocketManager.flush(true);
+			
+			synchronized (this)
+			{
+				try
+				{
+					while (itsCredit == 0 && ! itsClosed) wait();
+				}
+				catch (InterruptedException e)
+				{
+					throw new RuntimeException(e);
+				}
+				if (itsClosed) throw new IOException("Stream closed");
+				return take(aMax);
+			}
+		}
+		
+		private int take(int aMax)
+		{
+			int theCount = Math.min(aMax, itsCredit);
+			itsCredit -= theCount;
+			return theCount;
+		}
+		
+		/**
+		 * Sends the given data, waiting for credit as needed.
+		 * Must be called with the write lock.
+		 */
+		private void send(byte[] aB, int aOff, int aLen) throws IOException
+		{
+			while (aLen > 0)
+			{
+				int theCount = takeCredit(aLen);
+				itsSocketManager.sendData(itsFlow, itsRemotePort, aB, aOff, theCount);
+				aOff += theCount;
+				aLen -= theCount;
+			}
+		}
+		
+		/**
+		 * Sends the buffered data. Must be called with the write lock.
+		 */
+		private void sendBuffer() throws IOException
+		{
+			if (itsCount == 0) return;
+			send(itsBuffer, 0, itsCount);
+			itsCount = 0;
+		}
+
+		/**
+		 * Takes up to the given amount of credit, without waiting.
+		 */
+		private int tryTakeCredit(int aMax) throws IOException
+		{
+			synchronized (this)
+			{
+				if (itsClosed) throw new IOException("Stream closed");
+				return take(aMax);
 			}
 		}
 
 		/**
-		 * Attempts a connection to the given virtual port.
-		 * 
-		 * @return If the connection is successful, a positive integer that
-		 *         indicates the virtual port of the connection. Otherwise, 0.
-		 * @throws IOException
+		 * Writes as many bytes as the current credit allows, without waiting.
+		 * Previously buffered data is sent first, and the written data is flushed.
+		 * @return The number of bytes written.
 		 */
-		protected VirtualSocket connect(int aVirtualPort) throws IOException
+		public int tryWrite(byte[] aB, int aOff, int aLen) throws IOException
 		{
-			// Allocate local port
-			int theLocalPort = getNextFreePort();
-			PendingConnectionData theData = new PendingConnectionData(theLocalPort, aVirtualPort);
-			itsPendingConnections.put(theLocalPort, theData);
-
-			sendConnect(theLocalPort, aVirtualPort);
-
-			// Wait for peer to accept or reject the connection.
-			int theRemotePort;
-			try
-			{
-				theRemotePort = theData.waitConnected();
-			}
-			catch (InterruptedException e)
+			int theCount = 0;
+			synchronized (itsWriteLock)
 			{
-				throw new RuntimeException("Interrupted while connecting", e);
+				if (itsCount > 0)
+				{
+					int theSent = tryTakeCredit(itsCount);
+					itsSocketManager.sendData(itsFlow, itsRemotePort, itsBuffer, 0, theSent);
+					System.arraycopy(itsBuffer, theSent, itsBuffer, 0, itsCount-theSent);
+					itsCount -= theSent;
+				}
+				
+				if (itsCount == 0)
+				{
+					theCount = tryTakeCredit(aLen);
+					itsSocketManager.sendData(itsFlow, itsRemotePort, aB, aOff, theCount);
+				}
 			}
+			itsSocketManager.flush(itsNoDelay);
+			return theCount;
+		}
 
-			if (theRemotePort == 0)
-			{
-				portFreed(theLocalPort);
-				return null;
-			}
-			else
+		@Override
+		public void write(byte[] aB, int aOff, int aLen) throws IOException
+		{
+			synchronized (itsWriteLock)
 			{
-				VirtualSocket theSocket = new VirtualSocket(this, theLocalPort, theRemotePort);
-				itsBoundSockets.put(theLocalPort, theSocket);
-				return theSocket;
+				if (itsNoDelay || aLen >= itsBuffer.length)
+				{
+					sendBuffer();
+					send(aB, aOff, aLen);
+				}
+				else 
+				{
+					if (itsCount + aLen > itsBuffer.length) sendBuffer();
+					System.arraycopy(aB, aOff, itsBuffer, itsCount, aLen);
+					itsCount += aLen;
+				}
 			}
 		}
 
-		private void readConnectionAck() throws IOException
+		@Override
+		public void write(int aB) throws IOException
 		{
-			int theLocalPort = itsIn.readInt();
-			int theRemotePort = itsIn.readInt();
-
-			PendingConnectionData theData = itsPendingConnections.remove(theLocalPort);
-			if (theData == null || theData.localPort != theLocalPort) { throw new RuntimeException(
-					"Received invalid accept"); }
-
-			theData.setRemotePort(theRemotePort);
+			write(new byte[]
+			{ (byte) aB });
 		}
-
-		private void readConnect() throws IOException
+		
+		@Override
+		public void flush() throws IOException
 		{
-			int theRemotePort = itsIn.readInt();
-			int theListenPort = itsIn.readInt();
-
-			VirtualServerSocket theServerSocket = itsListeningSockets.get(theListenPort);
-			if (theServerSocket == null)
+			synchronized (itsWriteLock)
 			{
-				sendConnectionAck(theRemotePort, 0);
-				return;
+				sendBuffer();
 			}
-			else
+			itsSocketManager.flush(itsNoDelay);
+		}
+		
+		/**
+		 * Sends the remaining data and closes this stream.
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			synchronized (this)
 			{
-				int theLocalPort = getNextFreePort();
-
-				VirtualSocket theClientSocket = new VirtualSocket(this, theLocalPort, theRemotePort);
-				itsBoundSockets.put(theLocalPort, theClientSocket);
-
-				sendConnectionAck(theRemotePort, theLocalPort);
-				theServerSocket.connected(theClientSocket);
+				if (itsClosed) return;
 			}
+			flush();
+			remoteClosed();
 		}
 		
 		/**
-		 * Called when a local socket is closed.
+		 * Closes this stream without sending remaining data. 
 		 */
-		protected void close(VirtualSocket aSocket) throws IOException
+		public void remoteClosed()
 		{
-			sendClose(aSocket.getRemotePort());
+			synchronized (this)
+			{
+				itsClosed = true;
+				notifyAll();
+			}
+			fireWritable();
 		}
+	}
+	
+	/**
+	 * The input stream of a virtual socket. It holds up to the window size of
+	 * received bytes, and grants credit back to the sender as they are read.
+	 */
+	private class ReceiveBuffer extends ChunkInputStream
+	{
+		private final SocketManager itsSocketManager;
+		private final int itsRemotePort;
 		
-		private void readClose() throws IOException
+		/**
+		 * Number of bytes read since the last window update.
+		 */
+		private int itsConsumed = 0;
+		
+		public ReceiveBuffer(SocketManager aSocketManager, int aRemotePort)
 		{
-			int theLocalPort = itsIn.readInt();
-			VirtualSocket theSocket = itsBoundSockets.remove(theLocalPort);
-			if (theSocket == null) throw new RuntimeException("Attempted to close non-existing socket: "+theLocalPort);
-			sendCloseAck(theSocket.getRemotePort());
+			itsSocketManager = aSocketManager;
+			itsRemotePort = aRemotePort;
 		}
 		
-		private void readCloseAck() throws IOException
+		@Override
+		protected void consumed(int aCount) throws IOException
 		{
-			int theLocalPort = itsIn.readInt();
-			VirtualSocket theSocket = itsBoundSockets.remove(theLocalPort);
-			if (theSocket == null) throw new RuntimeException("Closed non-existing socket: "+theLocalPort);
+			// Updates are batched, but sent early enough for the sender not to stall
+			itsConsumed += aCount;
+			if (itsConsumed >= itsWindowSize/2)
+			{
+				itsSocketManager.sendWindowUpdate(itsRemotePort, itsConsumed);
+				itsConsumed = 0;
+			}
 		}
 	}
 
 	/**
-	 * Represents a pending connection request
-	 * 
-	 * @author gpothier
+	 * Returns a {@link SocketChannel}-like view of the given virtual socket, 
+	 * obtained through {@link #createSocket(String, int)} or a virtual server socket. 
 	 */
-	private static class PendingConnectionData
+	public static VirtualChannel getChannel(Socket aSocket)
 	{
-		public final int localPort;
-
-		public final int remoteListenPort;
-
-		public int itsRemotePort = -1;
-
-		public PendingConnectionData(int aLocalPort, int aListenRemotePort)
-		{
-			localPort = aLocalPort;
-			remoteListenPort = aListenRemotePort;
-		}
-
+		if (! (aSocket instanceof IVirtualSocket)) throw new IllegalArgumentException("Not a virtual socket: "+aSocket);
+		return new VirtualChannel((IVirtualSocket) aSocket);
+	}
+	
+	/**
+	 * A virtual socket, as seen by {@link VirtualChannel}.
+	 */
+	private interface IVirtualSocket
+	{
+		public ChunkInputStream getChunkInputStream();
+		
 		/**
-		 * Sets the remote port of the connection, once known. Awakes
-		 * {@link #waitConnected()}.
+		 * Writes as many bytes as possible without waiting, and flushes them.
+		 * @return The number of bytes written.
+		 */
+		public int tryWrite(byte[] aB, int aOff, int aLen) throws IOException;
+		
+		/**
+		 * Sets a listener that is called when more data can be written. 
+		 */
+		public void setWritableListener(Runnable aListener) throws IOException;
+		
+		public OutputStream getOutputStream() throws IOException;
+		public boolean isNoDelay();
+		public void setNoDelay(boolean aNoDelay) throws IOException;
+		public boolean isClosed();
+		public void close() throws IOException;
+	}
+	
+	/**
+	 * A {@link SocketChannel}-like view of a virtual socket (see {@link MultiplexingManager#getChannel(Socket)}).
+	 * In non-blocking mode, reads only return the data that was already received, and writes 
+	 * only send as much data as the other end can buffer. 
+	 * Unlike socket channels, virtual channels cannot be registered with a selector;
+	 * readiness is notified to a {@link IReadyListener} instead.
+	 */
+	public static class VirtualChannel implements ByteChannel
+	{
+		/**
+		 * Notified when a non-blocking operation on a virtual channel might make progress.
+		 * Listeners are called by the threads of the manager, and must not block. 
 		 */
-		public synchronized void setRemotePort(int aPort)
+		public interface IReadyListener
 		{
-			itsRemotePort = aPort;
-			notifyAll();
+			/**
+			 * Data, the end of the stream or a failure was received.
+			 */
+			public void readable(VirtualChannel aChannel);
+			
+			/**
+			 * The other end can receive more data, or the channel was closed. 
+			 */
+			public void writable(VirtualChannel aChannel);
 		}
-
+		
+		private final IVirtualSocket itsSocket;
+		private volatile boolean itsBlocking = true;
+		
+		private VirtualChannel(IVirtualSocket aSocket)
+		{
+			itsSocket = aSocket;
+		}
+		
+		public Socket socket()
+		{
+			return (Socket) itsSocket;
+		}
+		
+		public VirtualChannel configureBlocking(boolean aBlocking)
+		{
+			itsBlocking = aBlocking;
+			return this;
+		}
+		
+		public boolean isBlocking()
+		{
+			return itsBlocking;
+		}
+		
 		/**
-		 * Waits until the remote end accepts (or refuses) the connection.
-		 * Returns 0 if refused, otherwise the remote port to use for the
-		 * connection.
+		 * In no-delay mode, the writes to the socket are neither merged with other writes
+		 * nor delayed (see {@link MultiplexingManager#getMaxFlushLatency()}).
+		 * This is not controlled by {@link Socket#setTcpNoDelay(boolean)}, as some
+		 * libraries (eg. RMI) set TCP_NODELAY on all their sockets.
 		 */
-		public synchronized int waitConnected() throws InterruptedException
+		public void setNoDelay(boolean aNoDelay) throws IOException
 		{
-			while (itsRemotePort == -1)
-				wait();
-			return itsRemotePort;
+			itsSocket.setNoDelay(aNoDelay);
 		}
-	}
-
-	private class MultiplexedOutputStream extends OutputStream
-	{
-		private final SocketManager itsSocketManager;
-		private final int itsRemotePort;
 		
-		private boolean itsClosed = false;
-
-		public MultiplexedOutputStream(SocketManager aSocketManager, int aVirtualPort)
+		public boolean isNoDelay()
 		{
-			itsSocketManager = aSocketManager;
-			itsRemotePort = aVirtualPort;
+			return itsSocket.isNoDelay();
 		}
 		
-		public int getRemotePort()
+		/**
+		 * Sets the listener that is notified of the readiness of this channel, 
+		 * replacing the previous one. Events that occurred before the listener
+		 * was set are not notified.
+		 * @param aListener The new listener, or null.
+		 */
+		public void setReadyListener(final IReadyListener aListener) throws IOException
 		{
-			return itsRemotePort;
+			Runnable theReadable = null;
+			Runnable theWritable = null;
+			if (aListener != null)
+			{
+				theReadable = new Runnable()
+				{
+					public void run()
+					{
+						aListener.readable(VirtualChannel.this);
+					}
+				};
+				theWritable = new Runnable()
+				{
+					public void run()
+					{
+						aListener.writable(VirtualChannel.this);
+					}
+				};
+			}
+			itsSocket.getChunkInputStream().setDataListener(theReadable);
+			itsSocket.setWritableListener(theWritable);
 		}
-
-		@Override
-		public void write(byte[] aB, int aOff, int aLen) throws IOException
+		
+		public int read(ByteBuffer aBuffer) throws IOException
 		{
-			if (itsClosed) throw new IOException("Stream closed");
-			itsSocketManager.sendData(itsRemotePort, aB, aOff, aLen);
+			if (! isOpen()) throw new ClosedChannelException();
+			if (! aBuffer.hasRemaining()) return 0;
+			
+			ChunkInputStream theIn = itsSocket.getChunkInputStream();
+			if (aBuffer.hasArray())
+			{
+				int theCount = theIn.read(
+						aBuffer.array(), 
+						aBuffer.arrayOffset()+aBuffer.position(), 
+						aBuffer.remaining(), 
+						itsBlocking);
+				if (theCount > 0) aBuffer.position(aBuffer.position()+theCount);
+				return theCount;
+			}
+			else
+			{
+				byte[] theBytes = new byte[Math.min(aBuffer.remaining(), ChunkPool.CHUNK_SIZE)];
+				int theCount = theIn.read(theBytes, 0, theBytes.length, itsBlocking);
+				if (theCount > 0) aBuffer.put(theBytes, 0, theCount);
+				return theCount;
+			}
 		}
-
-		@Override
-		public void write(int aB) throws IOException
+		
+		public int write(ByteBuffer aBuffer) throws IOException
 		{
-			write(new byte[]
-			{ (byte) aB });
+			if (! isOpen()) throw new ClosedChannelException();
+			
+			int theLength = aBuffer.remaining();
+			byte[] theBytes;
+			int theOffset;
+			if (aBuffer.hasArray())
+			{
+				theBytes = aBuffer.array();
+				theOffset = aBuffer.arrayOffset()+aBuffer.position();
+			}
+			else
+			{
+				theBytes = new byte[theLength];
+				aBuffer.duplicate().get(theBytes);
+				theOffset = 0;
+			}
+			
+			int theCount;
+			if (itsBlocking)
+			{
+				OutputStream theOut = itsSocket.getOutputStream();
+				theOut.write(theBytes, theOffset, theLength);
+				theOut.flush();
+				theCount = theLength;
+			}
+			else theCount = itsSocket.tryWrite(theBytes, theOffset, theLength);
+			
+			aBuffer.position(aBuffer.position()+theCount);
+			return theCount;
 		}
 		
-		@Override
-		public void flush() throws IOException
+		public boolean isOpen()
 		{
-			itsSocketManager.flush();
+			return ! itsSocket.isClosed();
 		}
 		
-		@Override
 		public void close() throws IOException
 		{
-			itsClosed = true;
+			itsSocket.close();
 		}
-
 	}
 
-	private class VirtualSocket extends Socket
+	private class VirtualSocket extends Socket implements IVirtualSocket
 	{
 		private final SocketManager itsSocketManager;
 		private final int itsLocalPort;
 		private final InetAddress itsRemoteAddress;
 		private final MultiplexedOutputStream itsOutputStream;
-		private final PipedInputStream itsInputStream = new PipedInputStream();
-		private final PipedOutputStream itsSink;
+		private final ReceiveBuffer itsInputStream;
 		
 		private boolean itsClosed = false;
 		
-		public VirtualSocket(SocketManager aSocketManager, int aLocalPort, int aRemotePort) throws IOException
+		/**
+		 * Whether the other end closed the socket, in which case it must not
+		 * be sent a close command. Not guarded by the monitor of the socket, as
+		 * {@link #close()} can wait for the reader thread.
+		 */
+		private volatile boolean itsRemoteClosed = false;
+		
+		/**
+		 * @param aRemoteWindow The size of the receive window of the other end.
+		 * @param aWeight The scheduling weight of the data of this socket.
+		 */
+		public VirtualSocket(
+				SocketManager aSocketManager, 
+				int aLocalPort, 
+				int aRemotePort, 
+				int aRemoteWindow, 
+				int aWeight) throws IOException
 		{
 			itsSocketManager = aSocketManager;
 			itsLocalPort = aLocalPort;
@@ -512,8 +1600,8 @@ public class MultiplexingManager
 					aSocketManager.getHostName(), 
 					new byte[] { 0, 0, 0, 0 });
 			
-			itsOutputStream = new MultiplexedOutputStream(aSocketManager, aRemotePort);
-			itsSink = new PipedOutputStream(itsInputStream);
+			itsOutputStream = new MultiplexedOutputStream(aSocketManager, aRemotePort, aRemoteWindow, aWeight);
+			itsInputStream = new ReceiveBuffer(aSocketManager, aRemotePort);
 		}
 
 		public int getRemotePort()
@@ -521,9 +1609,34 @@ public class MultiplexingManager
 			return itsOutputStream.getRemotePort();
 		}
 		
-		PipedOutputStream getSink()
+		ReceiveBuffer getReceiveBuffer()
+		{
+			return itsInputStream;
+		}
+		
+		public ChunkInputStream getChunkInputStream()
+		{
+			return itsInputStream;
+		}
+		
+		public int tryWrite(byte[] aB, int aOff, int aLen) throws IOException
+		{
+			return itsOutputStream.tryWrite(aB, aOff, aLen);
+		}
+		
+		public void setWritableListener(Runnable aListener)
+		{
+			itsOutputStream.setWritableListener(aListener);
+		}
+		
+		public boolean isNoDelay()
+		{
+			return itsOutputStream.isNoDelay();
+		}
+		
+		public void setNoDelay(boolean aNoDelay) throws IOException
 		{
-			return itsSink;
+			itsOutputStream.setNoDelay(aNoDelay);
 		}
 
 		@Override
@@ -533,7 +1646,7 @@ public class MultiplexingManager
 		}
 
 		@Override
-		public OutputStream getOutputStream() throws IOException
+		public MultiplexedOutputStream getOutputStream()
 		{
 			return itsOutputStream;
 		}
@@ -541,10 +1654,37 @@ public class MultiplexingManager
 		@Override
 		public synchronized void close() throws IOException
 		{
+			if (itsClosed) return;
 			itsOutputStream.close();
-			itsSink.close();
+			itsInputStream.close();
 			itsClosed = true;
-			itsSocketManager.close(this);
+			if (! itsRemoteClosed) itsSocketManager.close(this);
+		}
+		
+		/**
+		 * Called when the other end closed this socket.
+		 */
+		void remoteClosed()
+		{
+			itsRemoteClosed = true;
+			itsInputStream.putEOF();
+			itsOutputStream.remoteClosed();
+		}
+		
+		/**
+		 * Called when the actual socket is closed: pending and further reads 
+		 * and writes fail.
+		 */
+		void connectionLost()
+		{
+			itsRemoteClosed = true;
+			itsInputStream.putBroken();
+			itsOutputStream.remoteClosed();
+		}
+		
+		SocketManager getSocketManager()
+		{
+			return itsSocketManager;
 		}
 
 		@Override
@@ -770,14 +1910,14 @@ public class MultiplexingManager
 		}
 	}
 
-	private class VirtualLocalSocket extends Socket
+	private class VirtualLocalSocket extends Socket implements IVirtualSocket
 	{
 		private final int itsLocalPort;
 		private final int itsRemotePort;
 		private final InetAddress itsRemoteAddress;
 		
-		private final PipedInputStream2 itsInputStream = new PipedInputStream2();
-		private final PipedOutputStream2 itsOutputStream = new PipedOutputStream2();
+		private final ChunkInputStream itsInputStream = new ChunkInputStream();
+		private final ChunkOutputStream itsOutputStream = new ChunkOutputStream(itsWindowSize);
 		
 		private boolean itsClosed = false;
 		
@@ -792,8 +1932,35 @@ public class MultiplexingManager
 		
 		public void connect(VirtualLocalSocket aPeer) throws IOException
 		{
-			itsInputStream.connect(aPeer.itsOutputStream);
 			itsOutputStream.connect(aPeer.itsInputStream);
+			aPeer.itsOutputStream.connect(itsInputStream);
+		}
+		
+		public ChunkInputStream getChunkInputStream()
+		{
+			return itsInputStream;
+		}
+		
+		public int tryWrite(byte[] aB, int aOff, int aLen) throws IOException
+		{
+			return itsOutputStream.tryWrite(aB, aOff, aLen);
+		}
+		
+		public void setWritableListener(Runnable aListener) throws IOException
+		{
+			itsOutputStream.setWritableListener(aListener);
+		}
+		
+		/**
+		 * Writes to local sockets are never buffered.
+		 */
+		public boolean isNoDelay()
+		{
+			return true;
+		}
+		
+		public void setNoDelay(boolean aNoDelay)
+		{
 		}
 		
 		public int getRemotePort()
@@ -1047,12 +2214,22 @@ public class MultiplexingManager
 	private class VirtualServerSocket extends ServerSocket
 	{
 		private final int itsPort;
+		private final int itsWeight;
 
 		private final BlockingQueue<Socket> itsAcceptQueue = new LinkedBlockingQueue<Socket>();
 
-		public VirtualServerSocket(int aPort) throws IOException
+		public VirtualServerSocket(int aPort, int aWeight) throws IOException
 		{
 			itsPort = aPort;
+			itsWeight = aWeight;
+		}
+		
+		/**
+		 * The weight of accepted sockets.
+		 */
+		public int getWeight()
+		{
+			return itsWeight;
 		}
 
 		@Override
@@ -0,0 +1,30 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.net;
+
+/**
+ * A fixed set of {@link SelectorThread}s among which connections are
+ * distributed in round-robin fashion.
+ */
+public class SelectorPool
+{
+	private final SelectorThread[] itsThreads;
+	private int itsNext = 0;
+
+	public SelectorPool(String aName, int aThreads)
+	{
+		itsThreads = new SelectorThread[aThreads];
+		for (int i=0;i<aThreads;i++) itsThreads[i] = new SelectorThread(aName+"-"+i);
+	}
+
+	/**
+	 * Returns the thread that should handle the next connection.
+	 */
+	public synchronized SelectorThread next()
+	{
+		SelectorThread theThread = itsThreads[itsNext];
+		itsNext = (itsNext+1) % itsThreads.length;
+		return theThread;
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.net;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread that runs a {@link Selector} loop and dispatches readiness events
+ * to the handlers attached to the registered channels.
+ * Other threads interact with the registered channels by submitting tasks
+ * through {@link #invokeLater(Runnable)}.
+ */
+public class SelectorThread extends Thread
+{
+	private final Selector itsSelector;
+	private final Queue<Runnable> itsTasks = new ConcurrentLinkedQueue<Runnable>();
+
+	public SelectorThread(String aName)
+	{
+		super(aName);
+		setDaemon(true);
+		try
+		{
+			itsSelector = Selector.open();
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+		start();
+	}
+
+	/**
+	 * Whether the calling thread is this selector thread.
+	 */
+	public boolean isCurrent()
+	{
+		return Thread.currentThread() == this;
+	}
+
+	/**
+	 * Schedules a task to be run by this selector thread.
+	 */
+	public void invokeLater(Runnable aTask)
+	{
+		itsTasks.add(aTask);
+		if (! isCurrent()) itsSelector.wakeup();
+	}
+
+	/**
+	 * Registers a channel to this thread's selector.
+	 * Must be called from the selector thread (see {@link #invokeLater(Runnable)}).
+	 */
+	public SelectionKey register(SelectableChannel aChannel, int aOps, IHandler aHandler) throws ClosedChannelException
+	{
+		assert isCurrent();
+		return aChannel.register(itsSelector, aOps, aHandler);
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			while(true)
+			{
+				Runnable theTask;
+				while ((theTask = itsTasks.poll()) != null) 
+				{
+					try
+					{
+						theTask.run();
+					}
+					catch (RuntimeException e)
+					{
+						e.printStackTrace();
+					}
+				}
+
+				itsSelector.select();
+
+				Iterator<SelectionKey> theIterator = itsSelector.selectedKeys().iterator();
+				while (theIterator.hasNext())
+				{
+					SelectionKey theKey = theIterator.next();
+					theIterator.remove();
+					if (! theKey.isValid()) continue;
+
+					IHandler theHandler = (IHandler) theKey.attachment();
+					try
+					{
+						theHandler.ready(theKey);
+					}
+					catch (RuntimeException e)
+					{
+						// Don't let a faulty connection stop the others
+						e.printStackTrace();
+						theKey.cancel();
+					}
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Handles the readiness events of a registered channel.
+	 * Handlers are called from the selector thread and must not block.
+	 */
+	public interface IHandler
+	{
+		public void ready(SelectionKey aKey);
+	}
+}
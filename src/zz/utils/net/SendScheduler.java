@@ -0,0 +1,122 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.net;
+
+import java.util.LinkedList;
+
+/**
+ * Interleaves the items of several flows with deficit round robin: 
+ * at each round, a flow can send up to its quantum (in bytes) of items, 
+ * so that flows get shares of the bandwidth proportional to their weights,
+ * whatever the size of their items.
+ * Priority items are sent before any flow item.
+ */
+class SendScheduler<T>
+{
+	/**
+	 * Quantum of a flow of weight 1. Should be at least the size of the 
+	 * largest item, so that each active flow sends something at each round.
+	 */
+	private final int itsBaseQuantum;
+	
+	private final LinkedList<T> itsPriorityItems = new LinkedList<T>();
+	
+	/**
+	 * Flows that have items, in round robin order. The first one is being served.
+	 */
+	private final LinkedList<Flow<T>> itsActiveFlows = new LinkedList<Flow<T>>();
+	
+	public SendScheduler(int aBaseQuantum)
+	{
+		itsBaseQuantum = aBaseQuantum;
+	}
+	
+	public Flow<T> createFlow(int aWeight)
+	{
+		if (aWeight <= 0) throw new IllegalArgumentException("Weight must be positive: "+aWeight);
+		return new Flow<T>(aWeight*itsBaseQuantum);
+	}
+	
+	public synchronized void offerPriority(T aItem)
+	{
+		itsPriorityItems.addLast(aItem);
+	}
+	
+	public synchronized void offer(Flow<T> aFlow, T aItem, int aSize)
+	{
+		aFlow.itsItems.addLast(aItem);
+		aFlow.itsSizes.addLast(aSize);
+		if (! aFlow.itsActive)
+		{
+			aFlow.itsActive = true;
+			itsActiveFlows.addLast(aFlow);
+		}
+	}
+	
+	public synchronized boolean isEmpty()
+	{
+		return itsPriorityItems.isEmpty() && itsActiveFlows.isEmpty();
+	}
+	
+	/**
+	 * Returns the next item to send, or null if there is none.
+	 */
+	public synchronized T poll()
+	{
+		if (! itsPriorityItems.isEmpty()) return itsPriorityItems.removeFirst();
+		
+		while (! itsActiveFlows.isEmpty())
+		{
+			Flow<T> theFlow = itsActiveFlows.getFirst();
+			if (! theFlow.itsServing)
+			{
+				theFlow.itsServing = true;
+				theFlow.itsDeficit += theFlow.itsQuantum;
+			}
+			
+			int theSize = theFlow.itsSizes.getFirst();
+			if (theFlow.itsDeficit >= theSize)
+			{
+				theFlow.itsDeficit -= theSize;
+				theFlow.itsSizes.removeFirst();
+				T theItem = theFlow.itsItems.removeFirst();
+				if (theFlow.itsItems.isEmpty())
+				{
+					// Idle flows do not accumulate credit
+					itsActiveFlows.removeFirst();
+					theFlow.itsActive = false;
+					theFlow.itsServing = false;
+					theFlow.itsDeficit = 0;
+				}
+				return theItem;
+			}
+			
+			// End of the turn of this flow
+			theFlow.itsServing = false;
+			itsActiveFlows.removeFirst();
+			itsActiveFlows.addLast(theFlow);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * A sequence of items whose order is preserved.
+	 */
+	public static class Flow<T>
+	{
+		private final int itsQuantum;
+		private final LinkedList<T> itsItems = new LinkedList<T>();
+		private final LinkedList<Integer> itsSizes = new LinkedList<Integer>();
+		
+		private int itsDeficit = 0;
+		private boolean itsActive = false;
+		private boolean itsServing = false;
+		
+		private Flow(int aQuantum)
+		{
+			itsQuantum = aQuantum;
+		}
+	}
+}
@@ -6,9 +6,11 @@ package zz.utils.net;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * Manages incoming connections: starts a server socket that waits 
@@ -31,6 +33,16 @@ public abstract class Server extends Thread
 	}
 	
 	public Server(int aPort, boolean aStart, boolean aDaemon)
+	{
+		this(aPort, aStart, aDaemon, false);
+	}
+	
+	/**
+	 * @param aUseChannel If true, the server socket is opened through a 
+	 * {@link ServerSocketChannel}, so that accepted sockets have a
+	 * {@link Socket#getChannel() channel} that can be used for non-blocking I/O.
+	 */
+	public Server(int aPort, boolean aStart, boolean aDaemon, boolean aUseChannel)
 	{
 		super("Server-"+aPort);
 		setDaemon(aDaemon);
@@ -38,7 +50,12 @@ public abstract class Server extends Thread
 		try
 		{
 			setName(getClass().getSimpleName());
-			itsServerSocket = new ServerSocket(aPort);
+			if (aUseChannel)
+			{
+				itsServerSocket = ServerSocketChannel.open().socket();
+				itsServerSocket.bind(new InetSocketAddress(aPort));
+			}
+			else itsServerSocket = new ServerSocket(aPort);
 			if (aStart) start();
 		}
 		catch (IOException e)
@@ -0,0 +1,205 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.primitive;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A thread-safe map whose keys are primitive longs, which avoids boxing
+ * the keys and allocating entries.
+ * The map is split in independently locked stripes, so that threads that
+ * access different keys rarely contend.
+ * Null values are not permitted.
+ */
+public class ConcurrentLongMap<V>
+{
+	private final Stripe<V>[] itsStripes;
+	private final int itsMask;
+
+	public ConcurrentLongMap()
+	{
+		this(16);
+	}
+
+	/**
+	 * @param aStripes Number of stripes, rounded up to a power of two.
+	 */
+	@SuppressWarnings("unchecked")
+	public ConcurrentLongMap(int aStripes)
+	{
+		int theCount = 1;
+		while (theCount < aStripes) theCount <<= 1;
+
+		itsStripes = new Stripe[theCount];
+		for (int i=0;i<theCount;i++) itsStripes[i] = new Stripe<V>();
+		itsMask = theCount-1;
+	}
+
+	private static int hash(long aKey)
+	{
+		long h = aKey * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private Stripe<V> getStripe(int aHash)
+	{
+		return itsStripes[(aHash >>> 24) & itsMask];
+	}
+
+	public V get(long aKey)
+	{
+		int theHash = hash(aKey);
+		return getStripe(theHash).get(aKey, theHash);
+	}
+
+	/**
+	 * Associates the value to the key, and returns the previous value, if any.
+	 */
+	public V put(long aKey, V aValue)
+	{
+		if (aValue == null) throw new NullPointerException();
+		int theHash = hash(aKey);
+		return getStripe(theHash).put(aKey, theHash, aValue);
+	}
+
+	/**
+	 * Removes the mapping of the given key and returns its value, if any.
+	 */
+	public V remove(long aKey)
+	{
+		int theHash = hash(aKey);
+		return getStripe(theHash).remove(aKey, theHash);
+	}
+
+	public int size()
+	{
+		int theSize = 0;
+		for (Stripe<V> theStripe : itsStripes) theSize += theStripe.size();
+		return theSize;
+	}
+
+	/**
+	 * Removes all the mappings and returns the values they had.
+	 */
+	public List<V> clear()
+	{
+		List<V> theValues = new ArrayList<V>();
+		for (Stripe<V> theStripe : itsStripes) theStripe.clear(theValues);
+		return theValues;
+	}
+
+	/**
+	 * An open addressing hash table with linear probing.
+	 */
+	private static class Stripe<V>
+	{
+		private long[] itsKeys = new long[16];
+		private Object[] itsValues = new Object[16];
+		private int itsSize = 0;
+
+		private int indexOf(long aKey, int aHash)
+		{
+			int theMask = itsKeys.length-1;
+			int i = aHash & theMask;
+			while (itsValues[i] != null)
+			{
+				if (itsKeys[i] == aKey) return i;
+				i = (i+1) & theMask;
+			}
+			return -i-1;
+		}
+
+		@SuppressWarnings("unchecked")
+		public synchronized V get(long aKey, int aHash)
+		{
+			int theIndex = indexOf(aKey, aHash);
+			return theIndex >= 0 ? (V) itsValues[theIndex] : null;
+		}
+
+		@SuppressWarnings("unchecked")
+		public synchronized V put(long aKey, int aHash, V aValue)
+		{
+			int theIndex = indexOf(aKey, aHash);
+			if (theIndex >= 0)
+			{
+				V theOld = (V) itsValues[theIndex];
+				itsValues[theIndex] = aValue;
+				return theOld;
+			}
+
+			theIndex = -theIndex-1;
+			itsKeys[theIndex] = aKey;
+			itsValues[theIndex] = aValue;
+			if (++itsSize * 2 > itsKeys.length) grow();
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		public synchronized V remove(long aKey, int aHash)
+		{
+			int theIndex = indexOf(aKey, aHash);
+			if (theIndex < 0) return null;
+
+			V theOld = (V) itsValues[theIndex];
+			itsSize--;
+
+			// Shift back the following entries of the cluster so that
+			// lookups need no tombstones.
+			int theMask = itsKeys.length-1;
+			int theHole = theIndex;
+			int i = theIndex;
+			while(true)
+			{
+				i = (i+1) & theMask;
+				if (itsValues[i] == null) break;
+
+				int theHome = hash(itsKeys[i]) & theMask;
+				// Move the entry if its home is not cyclically in ]theHole, i]
+				if (theHole <= i ? (theHome <= theHole || theHome > i) : (theHome <= theHole && theHome > i))
+				{
+					itsKeys[theHole] = itsKeys[i];
+					itsValues[theHole] = itsValues[i];
+					theHole = i;
+				}
+			}
+			itsValues[theHole] = null;
+			return theOld;
+		}
+
+		public synchronized int size()
+		{
+			return itsSize;
+		}
+
+		@SuppressWarnings("unchecked")
+		public synchronized void clear(List<V> aValues)
+		{
+			for (int i=0;i<itsValues.length;i++)
+			{
+				if (itsValues[i] != null) aValues.add((V) itsValues[i]);
+				itsValues[i] = null;
+			}
+			itsSize = 0;
+		}
+
+		private void grow()
+		{
+			long[] theKeys = itsKeys;
+			Object[] theValues = itsValues;
+			itsKeys = new long[theKeys.length*2];
+			itsValues = new Object[theValues.length*2];
+
+			int theMask = itsKeys.length-1;
+			for (int j=0;j<theKeys.length;j++)
+			{
+				if (theValues[j] == null) continue;
+				int i = hash(theKeys[j]) & theMask;
+				while (itsValues[i] != null) i = (i+1) & theMask;
+				itsKeys[i] = theKeys[j];
+				itsValues[i] = theValues[j];
+			}
+		}
+	}
+}
@@ -0,0 +1,476 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import zz.utils.srpc.SRPCChannel.RemoteObjectDesc;
+
+/**
+ * A compact, tagged binary codec.
+ * Each value is preceded by a one-byte tag that indicates its type.
+ * Primitive wrappers, strings, arrays, {@link ArrayList}s, {@link HashSet}s,
+ * {@link HashMap}s and remote objects are encoded directly; other objects
+ * are delegated to a {@link SerializationCodec}.
+ * Within a value, an object that is reached several times is only written once,
+ * and then designated by its index, so that identity and cycles are preserved 
+ * (but objects shared by distinct serialized objects are copied).
+ * Class names (remote interfaces, array component types) are sent once per channel
+ * (see {@link IContext#exportClass(Class)}).
+ */
+public class BinaryCodec extends SRPCCodec
+{
+	public static final byte ID = 1;
+
+	public static final Factory FACTORY = new Factory()
+	{
+		public byte getId()
+		{
+			return ID;
+		}
+
+		public SRPCCodec create(IContext aContext)
+		{
+			return new BinaryCodec(aContext);
+		}
+	};
+
+	private static final byte T_NULL = 0;
+	private static final byte T_TRUE = 1;
+	private static final byte T_FALSE = 2;
+	private static final byte T_BYTE = 3;
+	private static final byte T_SHORT = 4;
+	private static final byte T_CHAR = 5;
+	private static final byte T_INT = 6;
+	private static final byte T_LONG = 7;
+	private static final byte T_FLOAT = 8;
+	private static final byte T_DOUBLE = 9;
+	private static final byte T_STRING = 10;
+	private static final byte T_BOOLEANS = 11;
+	private static final byte T_BYTES = 12;
+	private static final byte T_SHORTS = 13;
+	private static final byte T_CHARS = 14;
+	private static final byte T_INTS = 15;
+	private static final byte T_LONGS = 16;
+	private static final byte T_FLOATS = 17;
+	private static final byte T_DOUBLES = 18;
+	private static final byte T_OBJECTS = 19;
+	private static final byte T_ARRAY = 20;
+	private static final byte T_LIST = 21;
+	private static final byte T_SET = 22;
+	private static final byte T_MAP = 23;
+	private static final byte T_REMOTE = 24;
+	private static final byte T_SERIALIZED = 25;
+	private static final byte T_STREAM = 26;
+	private static final byte T_REF = 27;
+
+	private final SerializationCodec itsFallback;
+
+	public BinaryCodec(IContext aContext)
+	{
+		super(aContext);
+		itsFallback = new SerializationCodec(aContext);
+	}
+
+	@Override
+	public void writeValue(DataOutputStream aOut, Object aValue) throws IOException
+	{
+		write(aOut, aValue, new IdentityHashMap<Object, Integer>());
+	}
+	
+	/**
+	 * Writes a reference if the given object was already written, otherwise 
+	 * assigns it the next index.
+	 * @param aRefs Maps the objects written so far to their index.
+	 * @return Whether a reference was written.
+	 */
+	private static boolean writeRef(DataOutputStream aOut, Object aValue, Map<Object, Integer> aRefs) throws IOException
+	{
+		Integer theIndex = aRefs.get(aValue);
+		if (theIndex != null)
+		{
+			aOut.writeByte(T_REF);
+			aOut.writeInt(theIndex);
+			return true;
+		}
+		aRefs.put(aValue, aRefs.size());
+		return false;
+	}
+
+	private void write(DataOutputStream aOut, Object aValue, Map<Object, Integer> aRefs) throws IOException
+	{
+		if (aValue == null)
+		{
+			aOut.writeByte(T_NULL);
+			return;
+		}
+
+		Class<?> theClass = aValue.getClass();
+		if (theClass == String.class)
+		{
+			aOut.writeByte(T_STRING);
+			writeString(aOut, (String) aValue);
+		}
+		else if (theClass == Integer.class)
+		{
+			aOut.writeByte(T_INT);
+			aOut.writeInt((Integer) aValue);
+		}
+		else if (theClass == Long.class)
+		{
+			aOut.writeByte(T_LONG);
+			aOut.writeLong((Long) aValue);
+		}
+		else if (theClass == Boolean.class)
+		{
+			aOut.writeByte(((Boolean) aValue) ? T_TRUE : T_FALSE);
+		}
+		else if (theClass == Object[].class)
+		{
+			if (writeRef(aOut, aValue, aRefs)) return;
+			Object[] theArray = (Object[]) aValue;
+			aOut.writeByte(T_OBJECTS);
+			aOut.writeInt(theArray.length);
+			for (Object theElement : theArray) write(aOut, theElement, aRefs);
+		}
+		else if (theClass == Byte.class)
+		{
+			aOut.writeByte(T_BYTE);
+			aOut.writeByte((Byte) aValue);
+		}
+		else if (theClass == Short.class)
+		{
+			aOut.writeByte(T_SHORT);
+			aOut.writeShort((Short) aValue);
+		}
+		else if (theClass == Character.class)
+		{
+			aOut.writeByte(T_CHAR);
+			aOut.writeChar((Character) aValue);
+		}
+		else if (theClass == Float.class)
+		{
+			aOut.writeByte(T_FLOAT);
+			aOut.writeFloat((Float) aValue);
+		}
+		else if (theClass == Double.class)
+		{
+			aOut.writeByte(T_DOUBLE);
+			aOut.writeDouble((Double) aValue);
+		}
+		else if (aValue instanceof IRemote)
+		{
+			RemoteObjectDesc theDesc = getContext().export((IRemote) aValue);
+			aOut.writeByte(T_REMOTE);
+			aOut.writeInt(theDesc.port);
+			aOut.writeLong(theDesc.endpointId);
+			aOut.writeInt(getContext().exportClass(theDesc.cls));
+		}
+		else if (aValue instanceof InputStream)
+		{
+			if (writeRef(aOut, aValue, aRefs)) return;
+			aOut.writeByte(T_STREAM);
+			aOut.writeLong(getContext().exportStream((InputStream) aValue));
+		}
+		else if (writeRef(aOut, aValue, aRefs)) 
+		{
+			// Already written
+		}
+		else if (theClass.isArray())
+		{
+			writeArray(aOut, aValue, theClass.getComponentType(), aRefs);
+		}
+		else if (theClass == ArrayList.class)
+		{
+			List<?> theList = (List<?>) aValue;
+			aOut.writeByte(T_LIST);
+			aOut.writeInt(theList.size());
+			for (Object theElement : theList) write(aOut, theElement, aRefs);
+		}
+		else if (theClass == HashSet.class)
+		{
+			HashSet<?> theSet = (HashSet<?>) aValue;
+			aOut.writeByte(T_SET);
+			aOut.writeInt(theSet.size());
+			for (Object theElement : theSet) write(aOut, theElement, aRefs);
+		}
+		else if (theClass == HashMap.class)
+		{
+			HashMap<?, ?> theMap = (HashMap<?, ?>) aValue;
+			aOut.writeByte(T_MAP);
+			aOut.writeInt(theMap.size());
+			for (Map.Entry<?, ?> theEntry : theMap.entrySet())
+			{
+				write(aOut, theEntry.getKey(), aRefs);
+				write(aOut, theEntry.getValue(), aRefs);
+			}
+		}
+		else
+		{
+			aOut.writeByte(T_SERIALIZED);
+			itsFallback.writeValue(aOut, aValue);
+		}
+	}
+
+	private void writeArray(DataOutputStream aOut, Object aArray, Class<?> aComponentType, Map<Object, Integer> aRefs) throws IOException
+	{
+		if (aComponentType == byte.class)
+		{
+			byte[] theArray = (byte[]) aArray;
+			aOut.writeByte(T_BYTES);
+			aOut.writeInt(theArray.length);
+			aOut.write(theArray);
+		}
+		else if (aComponentType == int.class)
+		{
+			int[] theArray = (int[]) aArray;
+			aOut.writeByte(T_INTS);
+			aOut.writeInt(theArray.length);
+			for (int v : theArray) aOut.writeInt(v);
+		}
+		else if (aComponentType == long.class)
+		{
+			long[] theArray = (long[]) aArray;
+			aOut.writeByte(T_LONGS);
+			aOut.writeInt(theArray.length);
+			for (long v : theArray) aOut.writeLong(v);
+		}
+		else if (aComponentType == double.class)
+		{
+			double[] theArray = (double[]) aArray;
+			aOut.writeByte(T_DOUBLES);
+			aOut.writeInt(theArray.length);
+			for (double v : theArray) aOut.writeDouble(v);
+		}
+		else if (aComponentType == float.class)
+		{
+			float[] theArray = (float[]) aArray;
+			aOut.writeByte(T_FLOATS);
+			aOut.writeInt(theArray.length);
+			for (float v : theArray) aOut.writeFloat(v);
+		}
+		else if (aComponentType == char.class)
+		{
+			char[] theArray = (char[]) aArray;
+			aOut.writeByte(T_CHARS);
+			aOut.writeInt(theArray.length);
+			for (char v : theArray) aOut.writeChar(v);
+		}
+		else if (aComponentType == short.class)
+		{
+			short[] theArray = (short[]) aArray;
+			aOut.writeByte(T_SHORTS);
+			aOut.writeInt(theArray.length);
+			for (short v : theArray) aOut.writeShort(v);
+		}
+		else if (aComponentType == boolean.class)
+		{
+			boolean[] theArray = (boolean[]) aArray;
+			aOut.writeByte(T_BOOLEANS);
+			aOut.writeInt(theArray.length);
+			for (boolean v : theArray) aOut.writeBoolean(v);
+		}
+		else
+		{
+			// Arrays of a specific reference type: we must keep the component type
+			Object[] theArray = (Object[]) aArray;
+			aOut.writeByte(T_ARRAY);
+			aOut.writeInt(getContext().exportClass(aComponentType));
+			aOut.writeInt(theArray.length);
+			for (Object theElement : theArray) write(aOut, theElement, aRefs);
+		}
+	}
+
+	@Override
+	public Object readValue(DataInputStream aIn) throws IOException
+	{
+		return read(aIn, new ArrayList<Object>());
+	}
+	
+	/**
+	 * @param aRefs The objects read so far that can be referenced, by index 
+	 * (see {@link #writeRef(DataOutputStream, Object, Map)}).
+	 */
+	private Object read(DataInputStream aIn, List<Object> aRefs) throws IOException
+	{
+		byte theTag = aIn.readByte();
+		switch(theTag)
+		{
+		case T_NULL: return null;
+		case T_TRUE: return Boolean.TRUE;
+		case T_FALSE: return Boolean.FALSE;
+		case T_BYTE: return aIn.readByte();
+		case T_SHORT: return aIn.readShort();
+		case T_CHAR: return aIn.readChar();
+		case T_INT: return aIn.readInt();
+		case T_LONG: return aIn.readLong();
+		case T_FLOAT: return aIn.readFloat();
+		case T_DOUBLE: return aIn.readDouble();
+		case T_STRING: return readString(aIn);
+
+		case T_BOOLEANS:
+		{
+			boolean[] theArray = new boolean[aIn.readInt()];
+			aRefs.add(theArray);
+			for (int i=0;i<theArray.length;i++) theArray[i] = aIn.readBoolean();
+			return theArray;
+		}
+
+		case T_BYTES:
+		{
+			byte[] theArray = new byte[aIn.readInt()];
+			aRefs.add(theArray);
+			aIn.readFully(theArray);
+			return theArray;
+		}
+
+		case T_SHORTS:
+		{
+			short[] theArray = new short[aIn.readInt()];
+			aRefs.add(theArray);
+			for (int i=0;i<theArray.length;i++) theArray[i] = aIn.readShort();
+			return theArray;
+		}
+
+		case T_CHARS:
+		{
+			char[] theArray = new char[aIn.readInt()];
+			aRefs.add(theArray);
+			for (int i=0;i<theArray.length;i++) theArray[i] = aIn.readChar();
+			return theArray;
+		}
+
+		case T_INTS:
+		{
+			int[] theArray = new int[aIn.readInt()];
+			aRefs.add(theArray);
+			for (int i=0;i<theArray.length;i++) theArray[i] = aIn.readInt();
+			return theArray;
+		}
+
+		case T_LONGS:
+		{
+			long[] theArray = new long[aIn.readInt()];
+			aRefs.add(theArray);
+			for (int i=0;i<theArray.length;i++) theArray[i] = aIn.readLong();
+			return theArray;
+		}
+
+		case T_FLOATS:
+		{
+			float[] theArray = new float[aIn.readInt()];
+			aRefs.add(theArray);
+			for (int i=0;i<theArray.length;i++) theArray[i] = aIn.readFloat();
+			return theArray;
+		}
+
+		case T_DOUBLES:
+		{
+			double[] theArray = new double[aIn.readInt()];
+			aRefs.add(theArray);
+			for (int i=0;i<theArray.length;i++) theArray[i] = aIn.readDouble();
+			return theArray;
+		}
+
+		case T_OBJECTS:
+		{
+			Object[] theArray = new Object[aIn.readInt()];
+			aRefs.add(theArray);
+			for (int i=0;i<theArray.length;i++) theArray[i] = read(aIn, aRefs);
+			return theArray;
+		}
+
+		case T_ARRAY:
+		{
+			Class<?> theComponentType = getContext().resolveClass(aIn.readInt());
+			Object[] theArray = (Object[]) Array.newInstance(theComponentType, aIn.readInt());
+			aRefs.add(theArray);
+			for (int i=0;i<theArray.length;i++) theArray[i] = read(aIn, aRefs);
+			return theArray;
+		}
+
+		case T_LIST:
+		{
+			int theSize = aIn.readInt();
+			ArrayList<Object> theList = new ArrayList<Object>(theSize);
+			aRefs.add(theList);
+			for (int i=0;i<theSize;i++) theList.add(read(aIn, aRefs));
+			return theList;
+		}
+
+		case T_SET:
+		{
+			int theSize = aIn.readInt();
+			HashSet<Object> theSet = new HashSet<Object>();
+			aRefs.add(theSet);
+			for (int i=0;i<theSize;i++) theSet.add(read(aIn, aRefs));
+			return theSet;
+		}
+
+		case T_MAP:
+		{
+			int theSize = aIn.readInt();
+			HashMap<Object, Object> theMap = new HashMap<Object, Object>();
+			aRefs.add(theMap);
+			for (int i=0;i<theSize;i++) theMap.put(read(aIn, aRefs), read(aIn, aRefs));
+			return theMap;
+		}
+
+		case T_REMOTE:
+		{
+			int thePort = aIn.readInt();
+			long theEndpointId = aIn.readLong();
+			Class<?> theInterface = getContext().resolveClass(aIn.readInt());
+			return getContext().resolve(new RemoteObjectDesc(thePort, theEndpointId, theInterface));
+		}
+
+		case T_SERIALIZED:
+		{
+			Object theValue = itsFallback.readValue(aIn);
+			aRefs.add(theValue);
+			return theValue;
+		}
+		
+		case T_STREAM: 
+		{
+			InputStream theStream = getContext().resolveStream(aIn.readLong());
+			aRefs.add(theStream);
+			return theStream;
+		}
+		
+		case T_REF:
+		{
+			int theIndex = aIn.readInt();
+			if (theIndex < 0 || theIndex >= aRefs.size()) throw new IOException("Bad reference: "+theIndex);
+			return aRefs.get(theIndex);
+		}
+
+		default: throw new IOException("Bad tag: "+theTag);
+		}
+	}
+
+	private static void writeString(DataOutputStream aOut, String aString) throws IOException
+	{
+		byte[] theBytes = aString.getBytes("UTF-8");
+		aOut.writeInt(theBytes.length);
+		aOut.write(theBytes);
+	}
+
+	private static String readString(DataInputStream aIn) throws IOException
+	{
+		byte[] theBytes = new byte[aIn.readInt()];
+		aIn.readFully(theBytes);
+		return new String(theBytes, "UTF-8");
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import zz.utils.srpc.SRPCTransport.Frame;
+
+/**
+ * Assigns small ids to the classes whose names are sent through a channel, so
+ * that each name is sent only once (see {@link SRPCCodec.IContext#exportClass(Class)}).
+ * The definition of an id is sent in its own frame, which is queued before 
+ * any frame that uses the id.
+ */
+class ClassDictionary
+{
+	private final SRPCChannel itsChannel;
+	
+	/**
+	 * Ids of the classes defined by this side.
+	 */
+	private final Map<Class<?>, Integer> itsIds = new ConcurrentHashMap<Class<?>, Integer>();
+	private int itsNextId = 0;
+	
+	/**
+	 * Classes defined by the other side.
+	 */
+	private final Map<Integer, Class<?>> itsClasses = new ConcurrentHashMap<Integer, Class<?>>();
+	
+	/**
+	 * Names of the classes defined by the other side, for error reporting.
+	 */
+	private final Map<Integer, String> itsNames = new ConcurrentHashMap<Integer, String>();
+	
+	public ClassDictionary(SRPCChannel aChannel)
+	{
+		itsChannel = aChannel;
+	}
+
+	/**
+	 * Returns the id of the given class, sending its definition first if needed.
+	 */
+	public int getId(Class<?> aClass) throws IOException
+	{
+		Integer theId = itsIds.get(aClass);
+		if (theId == null) theId = define(aClass);
+		return theId;
+	}
+	
+	/**
+	 * Other threads must not use the id before the definition is queued,
+	 * hence the lock.
+	 */
+	private synchronized Integer define(Class<?> aClass) throws IOException
+	{
+		Integer theId = itsIds.get(aClass);
+		if (theId != null) return theId;
+		
+		theId = itsNextId++;
+		Frame theFrame = new Frame(SRPCChannel.CMD_CLASS);
+		theFrame.out.writeInt(theId);
+		theFrame.out.writeUTF(aClass.getName());
+		itsChannel.send(theFrame);
+		
+		itsIds.put(aClass, theId);
+		return theId;
+	}
+	
+	/**
+	 * Returns the class with the given id, defined by the other side.
+	 */
+	public Class<?> getClass(int aId) throws IOException
+	{
+		Class<?> theClass = itsClasses.get(aId);
+		if (theClass == null) 
+		{
+			String theName = itsNames.get(aId);
+			if (theName == null) throw new IOException("Unknown class id: "+aId);
+			else throw new IOException("Class not found: "+theName);
+		}
+		return theClass;
+	}
+	
+	/**
+	 * Processes a definition sent by the other side.
+	 */
+	public void processDefinition(DataInputStream aIn) throws IOException
+	{
+		int theId = aIn.readInt();
+		String theName = aIn.readUTF();
+		itsNames.put(theId, theName);
+		
+		try
+		{
+			ClassLoader theLoader = Thread.currentThread().getContextClassLoader();
+			if (theLoader == null) theLoader = ClassDictionary.class.getClassLoader();
+			itsClasses.put(theId, Class.forName(theName, false, theLoader));
+		}
+		catch (ClassNotFoundException e)
+		{
+			// Reported if the class is actually used
+		}
+	}
+}
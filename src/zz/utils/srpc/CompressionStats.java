@@ -0,0 +1,94 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the frame compression of a channel.
+ * @see SRPCConfig#getCompressionThreshold()
+ * @see SRPCChannel#getCompressionStats()
+ */
+public class CompressionStats
+{
+	final AtomicLong itsCompressedFrames = new AtomicLong();
+	final AtomicLong itsUncompressedBytes = new AtomicLong();
+	final AtomicLong itsCompressedBytes = new AtomicLong();
+	final AtomicLong itsCompressionTime = new AtomicLong();
+	final AtomicLong itsDecompressedFrames = new AtomicLong();
+	final AtomicLong itsDecompressionTime = new AtomicLong();
+
+	/**
+	 * Number of frames that were sent compressed.
+	 */
+	public long getCompressedFrames()
+	{
+		return itsCompressedFrames.get();
+	}
+
+	/**
+	 * Size of the sent compressed frames, before compression.
+	 */
+	public long getUncompressedBytes()
+	{
+		return itsUncompressedBytes.get();
+	}
+
+	/**
+	 * Size of the sent compressed frames, after compression.
+	 */
+	public long getCompressedBytes()
+	{
+		return itsCompressedBytes.get();
+	}
+
+	/**
+	 * Ratio of the original size to the compressed size of sent frames
+	 * (higher is better), or 1 if no frame was compressed.
+	 */
+	public double getCompressionRatio()
+	{
+		long theCompressed = getCompressedBytes();
+		return theCompressed > 0 ? 1.0 * getUncompressedBytes() / theCompressed : 1.0;
+	}
+
+	/**
+	 * Total time, in nanoseconds, spent compressing frames (including
+	 * frames that turned out not to be worth compressing).
+	 */
+	public long getCompressionTime()
+	{
+		return itsCompressionTime.get();
+	}
+
+	/**
+	 * Number of compressed frames that were received.
+	 */
+	public long getDecompressedFrames()
+	{
+		return itsDecompressedFrames.get();
+	}
+
+	/**
+	 * Total time, in nanoseconds, spent decompressing received frames.
+	 */
+	public long getDecompressionTime()
+	{
+		return itsDecompressionTime.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(
+				"compressed: %d frames, %d -> %d bytes (ratio %.2f), %d ms; decompressed: %d frames, %d ms",
+				getCompressedFrames(),
+				getUncompressedBytes(),
+				getCompressedBytes(),
+				getCompressionRatio(),
+				getCompressionTime()/1000000,
+				getDecompressedFrames(),
+				getDecompressionTime()/1000000);
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * The methods of a remote interface, indexed by the ids used on the wire.
+ * Ids are the positions of the methods sorted by {@link SRPCUtils#getDesc(Method)},
+ * so that both ends of a channel agree on them without exchanging anything.
+ * Tables are computed once per interface and shared by all channels.
+ */
+final class DispatchTable
+{
+	private static final Map<Class<?>, DispatchTable> itsInterfaceTables =
+		new ConcurrentHashMap<Class<?>, DispatchTable>();
+
+	private static final Map<Class<?>, DispatchTable> itsImplementationTables =
+		new ConcurrentHashMap<Class<?>, DispatchTable>();
+
+	private final Class<?> itsInterface;
+	private final Method[] itsMethods;
+	private final boolean[] itsAsync;
+	private final long[] itsTimeouts;
+	private final Map<Method, Integer> itsIds;
+
+	private DispatchTable(Class<?> aInterface)
+	{
+		assert aInterface.isInterface();
+		assert IRemote.class.isAssignableFrom(aInterface);
+
+		itsInterface = aInterface;
+
+		// Descriptors are computed once instead of at each comparison.
+		// The sort is stable, so the order is the same as with SRPCUtils.MethodComparator
+		Method[] theMethods = aInterface.getMethods();
+		final String[] theDescs = new String[theMethods.length];
+		Integer[] theOrder = new Integer[theMethods.length];
+		for (int i=0;i<theMethods.length;i++)
+		{
+			theDescs[i] = SRPCUtils.getDesc(theMethods[i]);
+			theOrder[i] = i;
+		}
+		Arrays.sort(theOrder, new Comparator<Integer>()
+		{
+			public int compare(Integer aO1, Integer aO2)
+			{
+				return theDescs[aO1].compareTo(theDescs[aO2]);
+			}
+		});
+
+		itsMethods = new Method[theMethods.length];
+		itsAsync = new boolean[theMethods.length];
+		itsTimeouts = new long[theMethods.length];
+		itsIds = new HashMap<Method, Integer>();
+		for (int i=0;i<theMethods.length;i++)
+		{
+			Method theMethod = theMethods[theOrder[i]];
+
+			// Skips access checks at each invocation (the interface might not be public)
+			theMethod.setAccessible(true);
+
+			itsMethods[i] = theMethod;
+			itsAsync[i] = theMethod.getReturnType() == Future.class;
+			itsTimeouts[i] = getTimeout(theMethod);
+			itsIds.put(theMethod, i);
+		}
+	}
+
+	/**
+	 * Returns the timeout specified by the {@link SRPCTimeout} annotation of the method,
+	 * or of the interface, or 0 if none.
+	 */
+	private long getTimeout(Method aMethod)
+	{
+		SRPCTimeout theTimeout = aMethod.getAnnotation(SRPCTimeout.class);
+		if (theTimeout == null) theTimeout = itsInterface.getAnnotation(SRPCTimeout.class);
+		if (theTimeout == null) theTimeout = aMethod.getDeclaringClass().getAnnotation(SRPCTimeout.class);
+		return theTimeout != null ? theTimeout.value() : 0;
+	}
+
+	/**
+	 * Returns the table of the given remote interface.
+	 */
+	public static DispatchTable get(Class<?> aInterface)
+	{
+		DispatchTable theTable = itsInterfaceTables.get(aInterface);
+		if (theTable == null)
+		{
+			// Concurrent threads might compute the same table, but they are equivalent.
+			theTable = new DispatchTable(aInterface);
+			itsInterfaceTables.put(aInterface, theTable);
+		}
+		return theTable;
+	}
+
+	/**
+	 * Returns the table of the remote interface implemented by the given object.
+	 */
+	public static DispatchTable forObject(IRemote aRemote)
+	{
+		Class<?> theClass = aRemote.getClass();
+		DispatchTable theTable = itsImplementationTables.get(theClass);
+		if (theTable == null)
+		{
+			theTable = get(SRPCUtils.getRemoteInterface(aRemote));
+			itsImplementationTables.put(theClass, theTable);
+		}
+		return theTable;
+	}
+
+	public Class<?> getInterface()
+	{
+		return itsInterface;
+	}
+
+	/**
+	 * Returns the id of the given method of the interface.
+	 */
+	public int getId(Method aMethod)
+	{
+		Integer theId = itsIds.get(aMethod);
+		if (theId == null) throw new RuntimeException("Unknown: "+aMethod);
+		return theId;
+	}
+
+	public Method getMethod(int aId)
+	{
+		return itsMethods[aId];
+	}
+
+	/**
+	 * Whether the given method returns a {@link Future}, in which case
+	 * it is called asynchronously.
+	 */
+	public boolean isAsync(int aId)
+	{
+		return itsAsync[aId];
+	}
+
+	/**
+	 * Returns the timeout of the given method (see {@link SRPCTimeout}),
+	 * or 0 if it has none.
+	 */
+	public long getTimeout(int aId)
+	{
+		return itsTimeouts[aId];
+	}
+
+	/**
+	 * Invokes the given method on the target object.
+	 */
+	public Object invoke(int aId, Object aTarget, Object[] aArgs)
+		throws InvocationTargetException, IllegalAccessException
+	{
+		return itsMethods[aId].invoke(aTarget, aArgs);
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import zz.utils.srpc.SRPCTransport.Frame;
+
+/**
+ * Compresses and decompresses frames with {@link Deflater}.
+ * A compressed frame has the {@link SRPCChannel#CMD_COMPRESSED} command, followed
+ * by the uncompressed size and the deflated content (command and payload) of the
+ * original frame.
+ * Frames are compressed by the threads that send them, so deflaters and inflaters
+ * are kept in small pools. Their native memory is released by {@link #close()}.
+ */
+class FrameCompressor
+{
+	/**
+	 * Maximum number of idle deflaters (and inflaters) kept.
+	 */
+	private static final int MAX_POOLED = 4;
+	
+	private final int itsThreshold;
+	private final int itsLevel;
+	private final CompressionStats itsStats;
+
+	private final ConcurrentLinkedQueue<Deflater> itsDeflaters = new ConcurrentLinkedQueue<Deflater>();
+	private final ConcurrentLinkedQueue<Inflater> itsInflaters = new ConcurrentLinkedQueue<Inflater>();
+	
+	private volatile boolean itsClosed = false;
+
+	public FrameCompressor(int aThreshold, int aLevel, CompressionStats aStats)
+	{
+		itsThreshold = aThreshold;
+		itsLevel = aLevel;
+		itsStats = aStats;
+	}
+	
+	private Deflater takeDeflater()
+	{
+		Deflater theDeflater = itsDeflaters.poll();
+		if (theDeflater == null) theDeflater = new Deflater(itsLevel);
+		else theDeflater.reset();
+		return theDeflater;
+	}
+	
+	private void giveDeflater(Deflater aDeflater)
+	{
+		if (itsClosed || itsDeflaters.size() >= MAX_POOLED) aDeflater.end();
+		else itsDeflaters.offer(aDeflater);
+		
+		// Closed concurrently
+		if (itsClosed) endAll();
+	}
+	
+	private Inflater takeInflater()
+	{
+		Inflater theInflater = itsInflaters.poll();
+		if (theInflater == null) theInflater = new Inflater();
+		else theInflater.reset();
+		return theInflater;
+	}
+	
+	private void giveInflater(Inflater aInflater)
+	{
+		if (itsClosed || itsInflaters.size() >= MAX_POOLED) aInflater.end();
+		else itsInflaters.offer(aInflater);
+		
+		if (itsClosed) endAll();
+	}
+	
+	/**
+	 * Releases the native memory of the pooled deflaters and inflaters. 
+	 * Those in use are released when they are given back.
+	 */
+	public void close()
+	{
+		itsClosed = true;
+		endAll();
+	}
+	
+	private void endAll()
+	{
+		Deflater theDeflater;
+		while ((theDeflater = itsDeflaters.poll()) != null) theDeflater.end();
+		Inflater theInflater;
+		while ((theInflater = itsInflaters.poll()) != null) theInflater.end();
+	}
+
+	/**
+	 * Returns a compressed version of the given (closed) frame, or the frame itself
+	 * if it is too small or compression does not reduce its size.
+	 */
+	public Frame compress(Frame aFrame) throws IOException
+	{
+		int theSize = aFrame.size()-4;
+		if (theSize < itsThreshold) return aFrame;
+
+		long t0 = System.nanoTime();
+		byte[] theBuffer = new byte[theSize];
+		int theCount = 0;
+		boolean theSmaller;
+		Deflater theDeflater = takeDeflater();
+		try
+		{
+			theDeflater.setInput(aFrame.getBuffer(), 4, theSize);
+			theDeflater.finish();
+	
+			// Not worth it if the output is not smaller than the input
+			while (! theDeflater.finished() && theCount < theBuffer.length)
+			{
+				theCount += theDeflater.deflate(theBuffer, theCount, theBuffer.length-theCount);
+			}
+			theSmaller = theDeflater.finished() && theCount+5 < theSize;
+		}
+		finally
+		{
+			giveDeflater(theDeflater);
+		}
+		itsStats.itsCompressionTime.addAndGet(System.nanoTime()-t0);
+		if (! theSmaller) return aFrame;
+
+		Frame theFrame = new Frame(SRPCChannel.CMD_COMPRESSED);
+		theFrame.out.writeInt(theSize);
+		theFrame.out.write(theBuffer, 0, theCount);
+		theFrame.close();
+
+		itsStats.itsCompressedFrames.incrementAndGet();
+		itsStats.itsUncompressedBytes.addAndGet(theSize);
+		itsStats.itsCompressedBytes.addAndGet(theCount);
+		return theFrame;
+	}
+
+	/**
+	 * Decompresses the payload of a compressed frame (without its command byte).
+	 * @return The content of the original frame.
+	 */
+	public byte[] decompress(byte[] aFrame) throws IOException
+	{
+		long t0 = System.nanoTime();
+		int theSize = ((aFrame[1] & 0xff) << 24) | ((aFrame[2] & 0xff) << 16) | ((aFrame[3] & 0xff) << 8) | (aFrame[4] & 0xff);
+		byte[] theResult = new byte[theSize];
+
+		Inflater theInflater = takeInflater();
+		theInflater.setInput(aFrame, 5, aFrame.length-5);
+		try
+		{
+			int theCount = 0;
+			while (theCount < theSize)
+			{
+				int theInflated = theInflater.inflate(theResult, theCount, theSize-theCount);
+				if (theInflated == 0 && (theInflater.finished() || theInflater.needsInput()))
+				{
+					throw new IOException("Truncated compressed frame");
+				}
+				theCount += theInflated;
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException("Bad compressed frame: "+e.getMessage());
+		}
+		finally
+		{
+			giveInflater(theInflater);
+		}
+
+		itsStats.itsDecompressedFrames.incrementAndGet();
+		itsStats.itsDecompressionTime.addAndGet(System.nanoTime()-t0);
+		return theResult;
+	}
+}
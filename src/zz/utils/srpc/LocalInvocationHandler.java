@@ -0,0 +1,207 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Stub to an object of an {@link SRPCServer} of the same JVM
+ * (see {@link SRPCConfig.LocalMode#COPY}).
+ * Calls are direct, but arguments and return values are copied, unless they are
+ * immutable, so that callers observe the same semantics as with remote objects.
+ * Remote objects are passed by reference, through stubs of this kind.
+ * Copies are made with Java serialization, which is cheaper than a round
+ * trip through a socket and the codecs of a channel.
+ */
+class LocalInvocationHandler implements InvocationHandler
+{
+	private final IRemote itsTarget;
+
+	private LocalInvocationHandler(IRemote aTarget)
+	{
+		itsTarget = aTarget;
+	}
+
+	/**
+	 * Returns a stub to the given local object.
+	 * Stubs (including stubs to objects of other hosts) are returned as is.
+	 */
+	public static IRemote wrap(IRemote aTarget)
+	{
+		if (aTarget instanceof Proxy) return aTarget;
+
+		Class<?> theInterface = SRPCUtils.getRemoteInterface(aTarget);
+		return (IRemote) Proxy.newProxyInstance(
+				theInterface.getClassLoader(),
+				new Class<?>[] { theInterface },
+				new LocalInvocationHandler(aTarget));
+	}
+
+	public Object invoke(Object aProxy, Method aMethod, Object[] aArgs) throws Throwable
+	{
+		if (aMethod.getDeclaringClass() == Object.class)
+		{
+			return aMethod.invoke(this, aArgs);
+		}
+
+		Object[] theArgs = null;
+		if (aArgs != null)
+		{
+			theArgs = new Object[aArgs.length];
+			for (int i=0;i<aArgs.length;i++) theArgs[i] = copy(aArgs[i]);
+		}
+
+		// Same as DispatchTable (the interface might not be public)
+		if (! aMethod.isAccessible()) aMethod.setAccessible(true);
+		
+		Object theResult;
+		try
+		{
+			theResult = aMethod.invoke(itsTarget, theArgs);
+		}
+		catch (InvocationTargetException e)
+		{
+			// Same as for remote calls
+			throw new RuntimeException("Exception occurred in remote host.", (Throwable) copy(e.getCause()));
+		}
+
+		// The futures of asynchronous methods are not shared with another host
+		if (theResult instanceof Future) return theResult;
+		else return copy(theResult);
+	}
+
+	/**
+	 * Called for the stubs, whose equals method is forwarded to this handler: 
+	 * stubs are equal if they designate the same object.
+	 */
+	@Override
+	public boolean equals(Object aObj)
+	{
+		if (aObj instanceof Proxy) aObj = Proxy.getInvocationHandler(aObj);
+		return aObj instanceof LocalInvocationHandler 
+			&& ((LocalInvocationHandler) aObj).itsTarget == itsTarget;
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return System.identityHashCode(itsTarget);
+	}
+
+	/**
+	 * Copies the given value if it is mutable.
+	 */
+	static Object copy(Object aValue)
+	{
+		if (aValue == null
+				|| aValue instanceof String
+				|| aValue instanceof Number
+				|| aValue instanceof Boolean
+				|| aValue instanceof Character
+				|| aValue instanceof Enum
+				|| aValue instanceof Class) return aValue;
+
+		if (aValue instanceof IRemote) return wrap((IRemote) aValue);
+		
+		// Streams are read by the receiver only
+		if (aValue instanceof InputStream) return aValue;
+
+		try
+		{
+			List<IRemote> theRemotes = new ArrayList<IRemote>();
+			ByteArrayOutputStream theBuffer = new ByteArrayOutputStream();
+			ObjectOutputStream theOut = new CopyOutputStream(theBuffer, theRemotes);
+			theOut.writeObject(aValue);
+			theOut.close();
+
+			ObjectInputStream theIn = new CopyInputStream(
+					new ByteArrayInputStream(theBuffer.toByteArray()),
+					theRemotes);
+			return theIn.readObject();
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Keeps remote objects nested in copied values by reference:
+	 * they are replaced by their index in a side list.
+	 */
+	private static class CopyOutputStream extends ObjectOutputStream
+	{
+		private final List<IRemote> itsRemotes;
+
+		public CopyOutputStream(OutputStream aOut, List<IRemote> aRemotes) throws IOException
+		{
+			super(aOut);
+			itsRemotes = aRemotes;
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected Object replaceObject(Object aObj)
+		{
+			if (aObj instanceof IRemote)
+			{
+				itsRemotes.add(wrap((IRemote) aObj));
+				return new RemoteRef(itsRemotes.size()-1);
+			}
+			else return aObj;
+		}
+	}
+
+	private static class CopyInputStream extends ObjectInputStream
+	{
+		private final List<IRemote> itsRemotes;
+
+		public CopyInputStream(InputStream aIn, List<IRemote> aRemotes) throws IOException
+		{
+			super(aIn);
+			itsRemotes = aRemotes;
+			enableResolveObject(true);
+		}
+
+		@Override
+		protected Object resolveObject(Object aObj)
+		{
+			if (aObj instanceof RemoteRef) return itsRemotes.get(((RemoteRef) aObj).index);
+			else return aObj;
+		}
+	}
+
+	/**
+	 * Placeholder for a remote object in a copied value.
+	 */
+	private static class RemoteRef implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		public final int index;
+
+		public RemoteRef(int aIndex)
+		{
+			index = aIndex;
+		}
+	}
+}
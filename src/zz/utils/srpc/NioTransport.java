@@ -0,0 +1,313 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import zz.utils.net.SelectorThread;
+
+/**
+ * A transport that uses a non-blocking {@link SocketChannel} driven by
+ * a {@link SelectorThread}, so that many channels can share a few threads.
+ * All socket operations are performed by the selector thread.
+ */
+class NioTransport extends SRPCTransport implements SelectorThread.IHandler
+{
+	/**
+	 * Initial size of the read buffer. It grows for bigger frames, and shrinks back
+	 * once they are processed.
+	 */
+	private static final int READ_BUFFER_SIZE = 65536;
+	
+	private final SocketChannel itsSocketChannel;
+	private final SelectorThread itsSelectorThread;
+	private final int itsMaxBatch;
+
+	/**
+	 * Set by the selector thread, used by others to close the channel.
+	 */
+	private volatile SelectionKey itsKey;
+
+	private ByteBuffer itsReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	
+	/**
+	 * When set, the selector thread neither reads the socket nor processes the
+	 * frames that are already buffered.
+	 */
+	private volatile boolean itsReadingSuspended = false;
+
+	private final Queue<Frame> itsQueue = new ConcurrentLinkedQueue<Frame>();
+	
+	/**
+	 * Reused by {@link #collectFrames()}.
+	 */
+	private final Frame[] itsBatch;
+
+	/**
+	 * Whether a flush task has been submitted to the selector thread,
+	 * or the socket is waiting to become writable.
+	 */
+	private final AtomicBoolean itsFlushScheduled = new AtomicBoolean(false);
+
+	/**
+	 * Buffers whose writing is in progress.
+	 */
+	private ByteBuffer[] itsPendingBuffers;
+
+	private volatile boolean itsClosed = false;
+
+	private final Runnable itsFlushTask = new Runnable()
+	{
+		public void run()
+		{
+			flush();
+		}
+	};
+	
+	/**
+	 * Applies {@link #itsReadingSuspended} to the selection key, and processes 
+	 * the frames buffered while reading was suspended. 
+	 */
+	private final Runnable itsUpdateReadingTask = new Runnable()
+	{
+		public void run()
+		{
+			SelectionKey theKey = itsKey;
+			if (theKey == null || ! theKey.isValid()) return;
+			if (itsReadingSuspended) theKey.interestOps(theKey.interestOps() & ~SelectionKey.OP_READ);
+			else 
+			{
+				theKey.interestOps(theKey.interestOps() | SelectionKey.OP_READ);
+				try
+				{
+					dispatch();
+				}
+				catch (Exception e)
+				{
+					failed(e);
+				}
+			}
+		}
+	};
+
+	public NioTransport(SocketChannel aSocketChannel, SelectorThread aSelectorThread, SRPCConfig aConfig)
+	{
+		itsSocketChannel = aSocketChannel;
+		itsSelectorThread = aSelectorThread;
+		itsMaxBatch = aConfig.getMaxFlushBatch();
+		itsBatch = new Frame[itsMaxBatch];
+	}
+
+	@Override
+	public void start(SRPCChannel aChannel)
+	{
+		super.start(aChannel);
+		itsSelectorThread.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					itsSocketChannel.configureBlocking(false);
+					itsKey = itsSelectorThread.register(itsSocketChannel, SelectionKey.OP_READ, NioTransport.this);
+				}
+				catch (IOException e)
+				{
+					failed(e);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void send(Frame aFrame) throws IOException
+	{
+		if (itsClosed) throw new IOException("Channel closed");
+		itsQueue.add(aFrame);
+		if (itsFlushScheduled.compareAndSet(false, true)) itsSelectorThread.invokeLater(itsFlushTask);
+	}
+
+	/**
+	 * Takes effect immediately when called by the selector thread while it 
+	 * processes a frame: the following frames stay buffered.
+	 */
+	@Override
+	public void suspendReading()
+	{
+		itsReadingSuspended = true;
+		itsSelectorThread.invokeLater(itsUpdateReadingTask);
+	}
+
+	@Override
+	public void resumeReading()
+	{
+		itsReadingSuspended = false;
+		itsSelectorThread.invokeLater(itsUpdateReadingTask);
+	}
+
+	public void ready(SelectionKey aKey)
+	{
+		try
+		{
+			if (aKey.isReadable() && ! itsReadingSuspended) read();
+			if (aKey.isValid() && aKey.isWritable())
+			{
+				aKey.interestOps(aKey.interestOps() & ~SelectionKey.OP_WRITE);
+				flush();
+			}
+		}
+		catch (Exception e)
+		{
+			failed(e);
+		}
+	}
+
+	private void read() throws IOException
+	{
+		int theCount = itsSocketChannel.read(itsReadBuffer);
+		if (theCount < 0)
+		{
+			close();
+			closed(null);
+			return;
+		}
+		dispatch();
+	}
+	
+	/**
+	 * Processes the complete frames of the read buffer, until reading is suspended.
+	 */
+	private void dispatch()
+	{
+		itsReadBuffer.flip();
+		boolean theBigFrame = false;
+		while (itsReadBuffer.remaining() >= 4 && ! itsReadingSuspended)
+		{
+			int thePosition = itsReadBuffer.position();
+			int theLength = itsReadBuffer.getInt(thePosition);
+			if (itsReadBuffer.remaining() < theLength+4)
+			{
+				theBigFrame = theLength+4 > READ_BUFFER_SIZE;
+				if (theLength+4 > itsReadBuffer.capacity())
+				{
+					// Frame is bigger than our buffer
+					ByteBuffer theBuffer = ByteBuffer.allocate(theLength+4);
+					theBuffer.put(itsReadBuffer);
+					theBuffer.flip();
+					itsReadBuffer = theBuffer;
+				}
+				break;
+			}
+
+			byte[] theFrame = new byte[theLength];
+			itsReadBuffer.position(thePosition+4);
+			itsReadBuffer.get(theFrame);
+			getChannel().processFrame(theFrame);
+		}
+		
+		if (itsReadBuffer.capacity() > READ_BUFFER_SIZE 
+				&& ! theBigFrame
+				&& itsReadBuffer.remaining() <= READ_BUFFER_SIZE)
+		{
+			// Releases the buffer of a big frame
+			ByteBuffer theBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			theBuffer.put(itsReadBuffer);
+			itsReadBuffer = theBuffer;
+		}
+		else itsReadBuffer.compact();
+	}
+
+	/**
+	 * Writes as many queued frames as possible. Called by the selector thread.
+	 */
+	private void flush()
+	{
+		try
+		{
+			while(true)
+			{
+				if (itsPendingBuffers == null)
+				{
+					itsPendingBuffers = collectFrames();
+					if (itsPendingBuffers == null)
+					{
+						itsFlushScheduled.set(false);
+
+						// Frames might have been queued before we reset the flag.
+						if (itsQueue.isEmpty() || ! itsFlushScheduled.compareAndSet(false, true)) return;
+						else continue;
+					}
+				}
+
+				itsSocketChannel.write(itsPendingBuffers);
+				if (itsPendingBuffers[itsPendingBuffers.length-1].hasRemaining())
+				{
+					// Socket buffer is full, wait until it is writable.
+					itsKey.interestOps(itsKey.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+				itsPendingBuffers = null;
+			}
+		}
+		catch (IOException e)
+		{
+			failed(e);
+		}
+	}
+
+	/**
+	 * Takes up to maxFlushBatch frames from the queue for a gathering write.
+	 */
+	private ByteBuffer[] collectFrames()
+	{
+		Frame theFirst = itsQueue.poll();
+		if (theFirst == null) return null;
+
+		itsBatch[0] = theFirst;
+		int theCount = 1;
+		while (theCount < itsMaxBatch)
+		{
+			Frame theFrame = itsQueue.poll();
+			if (theFrame == null) break;
+			itsBatch[theCount++] = theFrame;
+		}
+
+		ByteBuffer[] theBuffers = new ByteBuffer[theCount];
+		for (int i=0;i<theCount;i++)
+		{
+			theBuffers[i] = ByteBuffer.wrap(itsBatch[i].getBuffer(), 0, itsBatch[i].size());
+			itsBatch[i] = null;
+		}
+		return theBuffers;
+	}
+
+	private void failed(Exception e)
+	{
+		close();
+		closed(e);
+	}
+
+	@Override
+	public void close()
+	{
+		if (itsClosed) return;
+		itsClosed = true;
+		try
+		{
+			SelectionKey theKey = itsKey;
+			if (theKey != null) theKey.cancel();
+			itsSocketChannel.close();
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+}
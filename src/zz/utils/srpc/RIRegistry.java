@@ -13,4 +13,18 @@ public interface RIRegistry extends IRemote
 	 * Returns the object registered with the specified name.
 	 */
 	public Object lookup(String aName);
+	
+	/**
+	 * Returns the objects registered with the specified names, in a single call.
+	 * Missing objects are null.
+	 */
+	public Object[] lookupAll(String... aNames);
+	
+	/**
+	 * Registers a listener that is notified (asynchronously if it is remote)
+	 * when the objects of this registry change.
+	 */
+	public void addListener(RIRegistryListener aListener);
+	
+	public void removeListener(RIRegistryListener aListener);
 }
@@ -0,0 +1,17 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+/**
+ * Notified of the changes of an {@link RIRegistry}.
+ * @see RIRegistry#addListener(RIRegistryListener)
+ */
+public interface RIRegistryListener extends IRemote
+{
+	/**
+	 * Called when the object registered with the given name changes
+	 * (it is bound, rebound or unbound).
+	 */
+	public void changed(String aName);
+}
@@ -1,14 +1,13 @@
 package zz.utils.srpc;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.EOFException;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationHandler;
@@ -16,78 +15,516 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.Socket;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import zz.utils.ArrayStack;
 import zz.utils.Stack;
-import zz.utils.Utils;
+import zz.utils.monitoring.Monitor;
+import zz.utils.net.SelectorPool;
+import zz.utils.primitive.ConcurrentLongMap;
+import zz.utils.primitive.IntArray;
+import zz.utils.srpc.SRPCTransport.Frame;
 
 /**
  * Represents an bidirectional communication channel between two processed.
  * There must be one {@link SRPCChannel} on both ends of the connection.
+ * Channels use blocking socket I/O with a reader and a writer thread, 
+ * unless the socket has a {@link SocketChannel} and the config specifies
+ * a {@link SRPCConfig#getSelectorPool() selector pool}.
  * @author gpothier
  */
-public class SRPCChannel extends Thread
+public class SRPCChannel
 {
 	private static final byte CMD_CALL = 40;
 	private static final byte CMD_ACKCALL = 41;
 	private static final byte CMD_RETURN = 42;
 	private static final byte CMD_GC = 43;
+	static final byte CMD_STREAM_DATA = 44;
+	static final byte CMD_STREAM_END = 45;
+	static final byte CMD_STREAM_CREDIT = 46;
+	static final byte CMD_STREAM_CLOSE = 47;
+	private static final byte CMD_CANCEL = 48;
+	private static final byte CMD_PING = 49;
+	private static final byte CMD_PONG = 50;
+	static final byte CMD_COMPRESSED = 51;
+	static final byte CMD_CLASS = 52;
+	
+	static final int HANDSHAKE = 0x5A5A5250;
+	static final byte PROTOCOL_VERSION = 9;
+	
+	/**
+	 * Time after which an unacknowledged call is considered lost.
+	 */
+	private static final long ACK_TIMEOUT = 10000;
+	
+	/**
+	 * Runs the periodic tasks of all channels.
+	 */
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory()
+			{
+				public Thread newThread(Runnable aRunnable)
+				{
+					Thread theThread = new Thread(aRunnable, "SRPCChannel timer");
+					theThread.setDaemon(true);
+					return theThread;
+				}
+			});
+	
+	private final SRPCTransport itsTransport;
+	
+	/**
+	 * The codec used to transmit call arguments and return values, 
+	 * negotiated during the handshake.
+	 */
+	private SRPCCodec itsCodec;
 	
-	private Socket itsSocket;
-	private SRPCObjectInputStream itsIn;
-	private SRPCObjectOutputStream itsOut;
 	
 	/**
 	 * We assign id to each endpoint so as to improve the safety of the calls
 	 * (to ensure that what the client thinks is at a given port is actually the 
 	 * correct object).
 	 */
-	private long itsNextEndpointId = 10000;
+	private final AtomicLong itsNextEndpointId = new AtomicLong(10000);
 	
 	private int itsNextFreePort = 10000;
 	private Stack<Integer> itsFreedPorts = new ArrayStack<Integer>();
 
-	private Map<Integer, EndpointInfo> itsEndpointsMap = new HashMap<Integer, EndpointInfo>();
-	private Map<IRemote, EndpointInfo> itsRemotesMap = new IdentityHashMap<IRemote, EndpointInfo>();
+	/**
+	 * Exported objects, by port. Read without locking by incoming calls.
+	 */
+	private final Map<Integer, EndpointInfo> itsEndpointsMap = new ConcurrentHashMap<Integer, EndpointInfo>();
+	
+	/**
+	 * Exported objects, by identity. Guarded by this channel's monitor
+	 * (only used when exporting objects).
+	 */
+	private final Map<IRemote, EndpointInfo> itsRemotesMap = new IdentityHashMap<IRemote, EndpointInfo>();
 	
 	/**
 	 * Map of ports to proxies into remote objects
 	 */
-	private Map<Integer, ProxyRef> itsProxiesMap = new HashMap<Integer, ProxyRef>();
+	private final ConcurrentMap<Integer, ProxyRef> itsProxiesMap = new ConcurrentHashMap<Integer, ProxyRef>();
+	
+	private final ReferenceQueue<Proxy> itsProxyRefQueue = new ReferenceQueue<Proxy>();
+	
+	/**
+	 * Ports of collected proxies that have not been notified to the other side yet.
+	 * Guarded by itself.
+	 */
+	private final IntArray itsPendingGCPorts = new IntArray();
 	
-	private ReferenceQueue<Proxy> itsProxyRefQueue = new ReferenceQueue<Proxy>();
+	/**
+	 * Number of collected proxies that triggers a GC message.
+	 */
+	private final int itsGCBatchSize;
 	
 	/**
-	 * Maps remote interfaces with the corresponding, sorted list of methods.
+	 * Calls waiting for their result, by command id.
 	 */
-	private Map<Class, Method[]> itsMethodsMap = new HashMap<Class, Method[]>(); 
+	private final ConcurrentLongMap<Waiter> itsWaitersMap = new ConcurrentLongMap<Waiter>(64);
 	
-	private Map<Long, Waiter> itsWaitersMap = new HashMap<Long, Waiter>();
+	/**
+	 * Number of entries in {@link #itsWaitersMap}.
+	 */
+	private final AtomicInteger itsOutstandingCalls = new AtomicInteger();
 	
 	/**
 	 * Executor for incoming requests.
 	 */
-	private final Executor itsExecutor = Executors.newCachedThreadPool();
+	private final Executor itsExecutor;
+	
+	/**
+	 * The executor created by this channel if none was given, 
+	 * shut down when the channel is closed.
+	 */
+	private ExecutorService itsOwnExecutor;
+	
+	/**
+	 * Maximum number of incoming calls that can be queued or executing at 
+	 * the same time (see {@link SRPCConfig#getMaxPendingCalls()}).
+	 */
+	private final int itsMaxPendingCalls;
+	
+	/**
+	 * Number of incoming calls that are queued or executing, not counting
+	 * those that are waiting for the result of an outgoing call.
+	 */
+	private int itsPendingCalls = 0;
+	
+	/**
+	 * Guarded by {@link #itsPendingCallsLock}; also read by the heartbeat task.
+	 */
+	private volatile boolean itsReadingSuspended = false;
+	
+	private final Object itsPendingCallsLock = new Object();
+	
+	/**
+	 * The incoming call the current thread is executing, if any.
+	 * Outgoing calls made by this thread are tagged with its command id, so that 
+	 * the other side can execute them in the thread that waits for this call
+	 * (see {@link Waiter#offerNestedCall(Runnable)}).
+	 */
+	private final ThreadLocal<RunningCall> itsExecutingCall = new ThreadLocal<RunningCall>();
+	
+	private final AtomicLong itsNextCommandId = new AtomicLong(1);
+	
+	/**
+	 * Delay after which incoming calls are acknowledged (see {@link SRPCConfig#getAckDelay()}).
+	 */
+	private final long itsAckDelay;
+	
+	/**
+	 * Time after which our calls are considered lost if not acknowledged,
+	 * or -1 if the other end never acknowledges calls.
+	 */
+	private long itsAckTimeout;
+	
+	/**
+	 * Incoming calls that are queued or being executed.
+	 */
+	private final Map<Long, RunningCall> itsRunningCalls = new ConcurrentHashMap<Long, RunningCall>();
+	
+	/**
+	 * Deadline of calls whose method has no {@link SRPCTimeout}.
+	 */
+	private final long itsCallTimeout;
+	
+	private final long itsHeartbeatInterval;
+	private final long itsHeartbeatTimeout;
+	
+	/**
+	 * Time at which the last frame was received.
+	 */
+	private volatile long itsLastReceived = System.currentTimeMillis();
+	
+	/**
+	 * Periodic tasks of this channel, cancelled when the channel is closed.
+	 */
+	private final List<ScheduledFuture<?>> itsTasks = new ArrayList<ScheduledFuture<?>>();
+	
+	private final AtomicBoolean itsClosed = new AtomicBoolean(false);
+	
+	private final CompressionStats itsCompressionStats = new CompressionStats();
+	
+	private static final AtomicInteger itsNextId = new AtomicInteger(1);
+	private final int itsId = itsNextId.getAndIncrement();
+	
+	private final SRPCStats itsStats = new SRPCStats(this);
+	
+	/**
+	 * The name under which {@link #itsStats} is registered with JMX, if it is.
+	 */
+	private ObjectName itsMBeanName;
+	
+	/**
+	 * Compresses outgoing frames and decompresses incoming ones.
+	 */
+	private FrameCompressor itsCompressor;
+	
+	/**
+	 * Whether outgoing frames are compressed (ie. both ends enabled compression).
+	 */
+	private boolean itsCompressing;
+	
+	/**
+	 * Transfers the streams passed as arguments or return values.
+	 */
+	private final StreamManager itsStreams;
 	
-	private long itsNextCommandId = 1;
+	/**
+	 * Names of the classes that are sent by the codec.
+	 */
+	private final ClassDictionary itsClassDictionary = new ClassDictionary(this);
 	
 	public SRPCChannel(Socket aSocket) throws IOException
 	{
-		super("SRPCChannel thread");
-		itsSocket = aSocket;
-		itsOut = new SRPCObjectOutputStream(new BufferedOutputStream(itsSocket.getOutputStream()));
-		itsOut.flush(); // For stream header
-		itsIn = new SRPCObjectInputStream(new BufferedInputStream(itsSocket.getInputStream()));
-		start();
+		this(aSocket, SRPCConfig.getDefault());
+	}
+	
+	public SRPCChannel(Socket aSocket, SRPCConfig aConfig) throws IOException
+	{
+		this(aSocket, aConfig, null, aConfig.getExecutor());
+	}
+	
+	/**
+	 * @param aRegistry If not null, the registry is exported before the channel starts 
+	 * receiving calls (see {@link SRPCServer#REGISTRY_PORT}).
+	 * @param aExecutor The executor of incoming calls. If null, the channel creates its own.
+	 */
+	SRPCChannel(Socket aSocket, SRPCConfig aConfig, IRemote aRegistry, Executor aExecutor) throws IOException
+	{
+		aSocket.setTcpNoDelay(true); // We do our own batching
+		aSocket.setKeepAlive(true); // Detects dead peers even without heartbeats (slowly)
+		itsAckDelay = aConfig.getAckDelay();
+		if (aExecutor == null)
+		{
+			itsOwnExecutor = SRPCUtils.createExecutor(SRPCConfig.DEFAULT_EXECUTOR_THREADS);
+			aExecutor = itsOwnExecutor;
+		}
+		itsExecutor = aExecutor;
+		itsMaxPendingCalls = aConfig.getMaxPendingCalls();
+		itsCallTimeout = aConfig.getCallTimeout();
+		itsHeartbeatInterval = aConfig.getHeartbeatInterval();
+		itsHeartbeatTimeout = aConfig.getHeartbeatTimeout();
+		itsGCBatchSize = aConfig.getGCBatchSize();
+		itsStreams = new StreamManager(this, aConfig);
+		
+		// The handshake is done with blocking streams in all cases.
+		// Input must not be buffered, as the transport takes over afterwards.
+		DataInputStream theIn = new DataInputStream(aSocket.getInputStream());
+		DataOutputStream theOut = new DataOutputStream(new BufferedOutputStream(aSocket.getOutputStream()));
+		boolean theSharedMemory = handshake(aConfig, theIn, theOut, ShmTransport.isAvailable(aSocket, aConfig));
+		
+		SRPCTransport theTransport = null;
+		if (theSharedMemory) theTransport = ShmTransport.connect(aSocket, aConfig, theIn, theOut);
+		
+		SocketChannel theSocketChannel = aSocket.getChannel();
+		SelectorPool theSelectorPool = aConfig.getSelectorPool();
+		if (theTransport != null) itsTransport = theTransport;
+		else if (theSocketChannel != null && theSelectorPool != null)
+		{
+			itsTransport = new NioTransport(theSocketChannel, theSelectorPool.next(), aConfig);
+		}
+		else itsTransport = new SocketTransport(aSocket, aConfig);
+		
+		if (itsAckDelay > 0)
+		{
+			long thePeriod = Math.max(itsAckDelay/2, 10);
+			itsTasks.add(TIMER.scheduleWithFixedDelay(new AckTask(), thePeriod, thePeriod, TimeUnit.MILLISECONDS));
+		}
+		
+		long theGCInterval = aConfig.getGCInterval();
+		itsTasks.add(TIMER.scheduleWithFixedDelay(new GCTask(), theGCInterval, theGCInterval, TimeUnit.MILLISECONDS));
+		
+		if (itsHeartbeatInterval > 0)
+		{
+			long thePeriod = Math.max(itsHeartbeatInterval/2, 10);
+			itsTasks.add(TIMER.scheduleWithFixedDelay(new HeartbeatTask(), thePeriod, thePeriod, TimeUnit.MILLISECONDS));
+		}
+		
+		if (aConfig.isMonitored()) registerStats();
+		
+		if (aRegistry != null) addEndpoint(SRPCServer.REGISTRY_PORT, aRegistry);
+		itsTransport.start(this);
+	}
+	
+	private void registerStats()
+	{
+		Monitor.getInstance().register(itsStats);
+		try
+		{
+			itsMBeanName = new ObjectName("zz.utils.srpc:type=SRPCChannel,id="+itsId);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(itsStats, itsMBeanName);
+		}
+		catch (JMException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private void unregisterStats()
+	{
+		Monitor.getInstance().unregister(itsStats);
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(itsMBeanName);
+		}
+		catch (JMException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Closes the connection. Pending calls fail with an {@link SRPCRemoteException}.
+	 */
+	public void close()
+	{
+		close(new SRPCRemoteException("Channel closed"));
+	}
+	
+	public boolean isClosed()
+	{
+		return itsClosed.get();
+	}
+	
+	/**
+	 * A number that identifies this channel within the JVM.
+	 */
+	public int getId()
+	{
+		return itsId;
+	}
+	
+	/**
+	 * Returns the call and traffic statistics of this channel.
+	 */
+	public SRPCStats getStats()
+	{
+		return itsStats;
+	}
+	
+	/**
+	 * Returns the compression counters of this channel.
+	 */
+	public CompressionStats getCompressionStats()
+	{
+		return itsCompressionStats;
+	}
+	
+	SRPCTransport getTransport()
+	{
+		return itsTransport;
+	}
+	
+	/**
+	 * Returns the number of local objects that are currently exported
+	 * through this channel.
+	 */
+	public int getExportedCount()
+	{
+		return itsEndpointsMap.size();
+	}
+	
+	/**
+	 * Called by the transport when the connection is lost.
+	 * @param aCause The cause of the failure, or null if the other end closed the connection.
+	 */
+	void transportClosed(Throwable aCause)
+	{
+		close(new SRPCRemoteException("Connection lost", aCause));
+	}
+	
+	private void close(SRPCRemoteException aCause)
+	{
+		if (! itsClosed.compareAndSet(false, true)) return;
+		
+		synchronized (itsTasks)
+		{
+			for (ScheduledFuture<?> theTask : itsTasks) theTask.cancel(false);
+		}
+		
+		try
+		{
+			itsTransport.close();
+		}
+		catch (RuntimeException e)
+		{
+			e.printStackTrace();
+		}
+		
+		// Results can't be received nor sent anymore
+		for (Waiter theWaiter : itsWaitersMap.clear()) 
+		{
+			itsOutstandingCalls.decrementAndGet();
+			theWaiter.fail(aCause);
+		}
+		for (RunningCall theCall : itsRunningCalls.values()) theCall.cancel(true);
+		itsStreams.close(aCause);
+		if (itsCompressor != null) itsCompressor.close();
+		
+		// The other side can't use our objects anymore, and we can't use theirs.
+		synchronized (this)
+		{
+			itsEndpointsMap.clear();
+			itsRemotesMap.clear();
+		}
+		itsProxiesMap.clear();
+		synchronized (itsPendingGCPorts)
+		{
+			itsPendingGCPorts.clear();
+		}
+		
+		if (itsMBeanName != null) unregisterStats();
+		
+		// Executing calls complete, but their results are dropped
+		if (itsOwnExecutor != null) itsOwnExecutor.shutdown();
+	}
+	
+	/**
+	 * Exchanges the protocol version, supported codecs and acknowledgment policy 
+	 * with the other end of the channel. 
+	 * Both ends pick the supported codec with the highest id.
+	 * @param aSharedMemory Whether this end can use a {@link ShmTransport}.
+	 * @return Whether both ends can use a {@link ShmTransport}.
+	 */
+	private boolean handshake(
+			SRPCConfig aConfig, 
+			DataInputStream aIn, 
+			DataOutputStream aOut, 
+			boolean aSharedMemory) throws IOException
+	{
+		SRPCCodec.Factory[] theCodecs = aConfig.getCodecs();
+		
+		aOut.writeInt(HANDSHAKE);
+		aOut.writeByte(PROTOCOL_VERSION);
+		aOut.writeByte(theCodecs.length);
+		for (SRPCCodec.Factory theCodec : theCodecs) aOut.writeByte(theCodec.getId());
+		aOut.writeLong(itsAckDelay);
+		aOut.writeInt(aConfig.getCompressionThreshold());
+		aOut.writeBoolean(aSharedMemory);
+		aOut.flush();
+		
+		if (aIn.readInt() != HANDSHAKE) throw new IOException("Bad handshake");
+		byte theVersion = aIn.readByte();
+		if (theVersion != PROTOCOL_VERSION) throw new IOException("Unsupported protocol version: "+theVersion);
+		
+		SRPCCodec.Factory theSelected = SerializationCodec.FACTORY;
+		int theCount = aIn.readByte();
+		for (int i=0;i<theCount;i++)
+		{
+			byte theId = aIn.readByte();
+			for (SRPCCodec.Factory theCodec : theCodecs)
+			{
+				if (theCodec.getId() == theId && theId > theSelected.getId()) theSelected = theCodec;
+			}
+		}
+		
+		long thePeerAckDelay = aIn.readLong();
+		itsAckTimeout = thePeerAckDelay >= 0 ? thePeerAckDelay + ACK_TIMEOUT : -1;
+		
+		// Frames are compressed only if both sides want it, but we can always decompress.
+		int thePeerThreshold = aIn.readInt();
+		itsCompressor = new FrameCompressor(
+				aConfig.getCompressionThreshold(), 
+				aConfig.getCompressionLevel(), 
+				itsCompressionStats);
+		itsCompressing = aConfig.getCompressionThreshold() >= 0 && thePeerThreshold >= 0;
+		
+		boolean thePeerSharedMemory = aIn.readBoolean();
+		
+		itsCodec = theSelected.create(new CodecContext());
+		return aSharedMemory && thePeerSharedMemory;
 	}
 	
-	public void addEndpoint(int aPort, IRemote aEndpoint)
+	public synchronized void addEndpoint(int aPort, IRemote aEndpoint)
 	{
 		EndpointInfo theInfo = new EndpointInfo(aEndpoint, aPort, aPort);
 		itsEndpointsMap.put(aPort, theInfo);
@@ -98,7 +535,7 @@ public class SRPCChannel extends Thread
 	 * Returns the local port used by the given local remote objects,
 	 * and assigns a new port if necessary. 
 	 */
-	private EndpointInfo getEndpointInfo(IRemote aRemote)
+	private synchronized EndpointInfo getEndpointInfo(IRemote aRemote)
 	{
 		EndpointInfo theInfo = itsRemotesMap.get(aRemote);
 		if (theInfo == null)
@@ -111,9 +548,9 @@ public class SRPCChannel extends Thread
 		return theInfo;
 	}
 	
-	private synchronized long nextEndpointId()
+	private long nextEndpointId()
 	{
-		return itsNextEndpointId++;
+		return itsNextEndpointId.getAndIncrement();
 	}
 	
 	private synchronized int nextFreePort()
@@ -127,21 +564,6 @@ public class SRPCChannel extends Thread
 		itsFreedPorts.push(aPort);
 	}
 	
-	private Method[] getMethods(Class aInterface)
-	{
-		Method[] theMethods = itsMethodsMap.get(aInterface);
-		if (theMethods == null)
-		{
-			assert aInterface.isInterface();
-			assert IRemote.class.isAssignableFrom(aInterface);
-
-			theMethods = aInterface.getMethods();
-			Arrays.sort(theMethods, SRPCUtils.MethodComparator.getInstance());
-		}
-		
-		return theMethods;
-	}
-	
 	public RIRegistry getRemoteRegistry()
 	{
 		return (RIRegistry) getProxy(new RemoteObjectDesc(
@@ -153,336 +575,1055 @@ public class SRPCChannel extends Thread
 	/**
 	 * Checks if some proxies have been garbage collected, and 
 	 * inform the other side of the channel as necessary.
+	 * Notifications are batched: they are sent when enough proxies
+	 * are collected, or periodically (see {@link GCTask}).
 	 */
 	private void checkProxyRefs()
 	{
+		boolean theFull = false;
 		ProxyRef theRef;
-		while ((theRef = (ProxyRef) itsProxyRefQueue.poll()) != null) sendGC(theRef.getPort());
+		while ((theRef = (ProxyRef) itsProxyRefQueue.poll()) != null) 
+		{
+			// Don't free the port if a newer proxy is registered for it.
+			if (itsProxiesMap.remove(theRef.getPort(), theRef)) 
+			{
+				synchronized (itsPendingGCPorts)
+				{
+					itsPendingGCPorts.add(theRef.getPort());
+					theFull = itsPendingGCPorts.size() >= itsGCBatchSize;
+				}
+			}
+		}
+		
+		if (theFull) flushGC();
+	}
+	
+	/**
+	 * Sends the ports of the collected proxies to the other side.
+	 */
+	private void flushGC()
+	{
+		int[] thePorts;
+		synchronized (itsPendingGCPorts)
+		{
+			if (itsPendingGCPorts.isEmpty()) return;
+			thePorts = itsPendingGCPorts.toArray();
+			itsPendingGCPorts.clear();
+		}
+		sendGC(thePorts);
 	}
 	
 	private Proxy getProxy(RemoteObjectDesc aDesc)
 	{
-		ProxyRef theRef = itsProxiesMap.get(aDesc.port);
-		Proxy theProxy = theRef != null ? theRef.get() : null;
-		if (theProxy == null)
+		while(true)
 		{
+			ProxyRef theRef = itsProxiesMap.get(aDesc.port);
+			Proxy theProxy = theRef != null ? theRef.get() : null;
+			if (theProxy != null) return theProxy;
+			
 			theProxy = (Proxy) Proxy.newProxyInstance(
 					aDesc.cls.getClassLoader(), 
-					new Class[] { aDesc.cls }, 
-					new MyInvocationHandler(aDesc, getMethods(aDesc.cls)));
+					new Class<?>[] { aDesc.cls }, 
+					new MyInvocationHandler(aDesc, DispatchTable.get(aDesc.cls)));
 			
-			itsProxiesMap.put(aDesc.port, new ProxyRef(theProxy, itsProxyRefQueue, aDesc.port));
+			ProxyRef theNewRef = new ProxyRef(theProxy, itsProxyRefQueue, aDesc.port);
+			boolean theRegistered = theRef == null ?
+					itsProxiesMap.putIfAbsent(aDesc.port, theNewRef) == null
+					: itsProxiesMap.replace(aDesc.port, theRef, theNewRef);
+					
+			// Otherwise another thread registered a proxy in the meantime
+			if (theRegistered) return theProxy;
 		}
-		return theProxy;
 	}
 	
-	private synchronized long nextCommandId()
+	private long nextCommandId()
 	{
-		return itsNextCommandId++;
+		return itsNextCommandId.getAndIncrement();
 	}
 	
-	private Waiter createWaiter()
+	/**
+	 * @param aWaited Whether the current thread will wait for the result 
+	 * (see {@link Waiter#Waiter(long, SRPCStats.MethodStats, boolean)}).
+	 */
+	private Waiter createWaiter(SRPCStats.MethodStats aStats, boolean aWaited)
 	{
-		Waiter theWaiter = new Waiter(nextCommandId());
+		Waiter theWaiter = new Waiter(nextCommandId(), aStats, aWaited);
+		itsOutstandingCalls.incrementAndGet();
 		itsWaitersMap.put(theWaiter.getCommandId(), theWaiter);
+		
+		// The channel might have been closed before the waiter was registered.
+		if (itsClosed.get() && removeWaiter(theWaiter.getCommandId()) != null) 
+		{
+			throw new SRPCRemoteException("Channel closed");
+		}
 		return theWaiter;
 	}
 	
-	private void wakeup(long aCommandId, Object aData)
+	private Waiter removeWaiter(long aCommandId)
 	{
 		Waiter theWaiter = itsWaitersMap.remove(aCommandId);
-		theWaiter.setData(aData);
+		if (theWaiter != null) itsOutstandingCalls.decrementAndGet();
+		return theWaiter;
+	}
+	
+	/**
+	 * Returns the number of outgoing calls of this channel that have
+	 * not returned yet.
+	 */
+	public int getOutstandingCalls()
+	{
+		return itsOutstandingCalls.get();
+	}
+	
+	/**
+	 * Returns the number of incoming calls that are queued or executing.
+	 */
+	public int getRunningCalls()
+	{
+		return itsRunningCalls.size();
 	}
 	
 	private void acknowledge(long aCommandId)
 	{
 		Waiter theWaiter = itsWaitersMap.get(aCommandId);
-		theWaiter.acknowledged();
+		if (theWaiter != null) theWaiter.acknowledged();
+	}
+	
+	/**
+	 * Processes an incoming frame. Called by the transport.
+	 */
+	void processFrame(byte[] aFrame)
+	{
+		itsLastReceived = System.currentTimeMillis();
+		itsStats.itsFramesIn.incrementAndGet();
+		itsStats.itsBytesIn.addAndGet(aFrame.length+4);
+		dispatchFrame(aFrame);
 	}
 	
-	@Override
-	public void run()
+	private void dispatchFrame(byte[] aFrame)
 	{
 		try
 		{
-			while(true)
+			DataInputStream theIn = new DataInputStream(new ByteArrayInputStream(aFrame));
+			byte theCmd = theIn.readByte();
+			switch(theCmd)
 			{
-				byte theCmd;
-				
-				try
-				{
-					theCmd = itsIn.readByte();
-				}
-				catch (EOFException e)
-				{
-					break;
-				}
-				
-				switch(theCmd)
-				{
-				case CMD_CALL: processCall(); break;
-				case CMD_ACKCALL: processAckCall(); break;
-				case CMD_RETURN: processReturn(); break;
-				case CMD_GC: processGC(); break;
-				default: throw new RuntimeException("Not handled: "+theCmd);
-				}
-				checkProxyRefs();
+			case CMD_CALL: processCall(theIn); break;
+			case CMD_ACKCALL: processAckCall(theIn); break;
+			case CMD_RETURN: processReturn(theIn); break;
+			case CMD_GC: processGC(theIn); break;
+			case CMD_STREAM_DATA: itsStreams.processData(theIn); break;
+			case CMD_STREAM_END: itsStreams.processEnd(theIn); break;
+			case CMD_STREAM_CREDIT: itsStreams.processCredit(theIn); break;
+			case CMD_STREAM_CLOSE: itsStreams.processClose(theIn); break;
+			case CMD_CANCEL: processCancel(theIn); break;
+			case CMD_PING: sendCommand(CMD_PONG); break;
+			case CMD_PONG: break;
+			case CMD_CLASS: itsClassDictionary.processDefinition(theIn); break;
+			case CMD_COMPRESSED: dispatchFrame(itsCompressor.decompress(aFrame)); return;
+			default: throw new RuntimeException("Not handled: "+theCmd);
+			}
+			checkProxyRefs();
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Queues the given frame for sending.
+	 */
+	void send(Frame aFrame) throws IOException
+	{
+		aFrame.close();
+		if (itsCompressing) aFrame = itsCompressor.compress(aFrame);
+		itsStats.itsFramesOut.incrementAndGet();
+		itsStats.itsBytesOut.addAndGet(aFrame.size());
+		itsTransport.send(aFrame);
+	}
+	
+	private void sendCall(Waiter aWaiter, int aPort, long aEndpointId, int aMethod, Object[] aArgs) 
+	{
+		boolean theSent = false;
+		try
+		{
+			Frame theFrame = new Frame(CMD_CALL);
+			RunningCall theParent = itsExecutingCall.get();
+			theFrame.out.writeLong(aWaiter.getCommandId());
+			theFrame.out.writeLong(theParent != null ? theParent.commandId : 0);
+			theFrame.out.writeInt(aPort);
+			theFrame.out.writeLong(aEndpointId);
+			theFrame.out.writeInt(aMethod);
+			long t0 = System.nanoTime();
+			itsCodec.writeValue(theFrame.out, aArgs);
+			itsStats.itsSerializationTime.addAndGet(System.nanoTime()-t0);
+			send(theFrame);
+			theSent = true;
+			
+			aWaiter.itsMethodStats.itsSent.incrementAndGet();
+			aWaiter.itsMethodStats.itsRequestBytes.addAndGet(theFrame.size());
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+		finally
+		{
+			itsStreams.exportCompleted(theSent);
+		}
+	}
+	
+	private void processCall(DataInputStream aIn)
+	{
+		try
+		{
+			final long theCommandId = aIn.readLong();
+			long theParentId = aIn.readLong();
+			final int thePort = aIn.readInt();
+			final long theEndpointId = aIn.readLong();
+			final int theMethod = aIn.readInt();
+			long t0 = System.nanoTime();
+			final Object[] theArgs = (Object[]) itsCodec.readValue(aIn);
+			itsStats.itsSerializationTime.addAndGet(System.nanoTime()-t0);
+			itsStreams.resolveCompleted(true);
+			
+			final RunningCall theCall = new RunningCall(theCommandId);
+			itsRunningCalls.put(theCommandId, theCall);
+			if (itsAckDelay == 0) sendAckCall(theCommandId);
+			
+			// Stops reading the socket while too many calls are pending
+			acquirePendingCall();
+			Runnable theTask = new Runnable()
+			{
+				public void run()
+				{
+					// Not null if this is a nested call executed by a waiting thread
+					RunningCall theOuterCall = itsExecutingCall.get();
+					itsExecutingCall.set(theCall);
+					itsStats.itsQueueWait.record(System.nanoTime()-theCall.receivedNanos);
+					try
+					{
+						if (theCall.start()) 
+						{
+							processCall(theCall, thePort, theEndpointId, theMethod, theArgs);
+						}
+					}
+					finally
+					{
+						theCall.finish();
+						itsRunningCalls.remove(theCommandId);
+						itsExecutingCall.set(theOuterCall);
+						releasePendingCall();
+					}
+				}
+			};
+			
+			// A call made by the other side while executing one of our calls is 
+			// executed by the thread that waits for the outer call, if any: 
+			// this avoids a thread switch and cannot deadlock if the executor is full.
+			Waiter theParent = theParentId != 0 ? itsWaitersMap.get(theParentId) : null;
+			if (theParent == null || ! theParent.offerNestedCall(theTask)) itsExecutor.execute(theTask);
+		}
+		catch (Exception e)
+		{
+			itsStreams.resolveCompleted(false);
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Registers a new pending incoming call, and suspends reading
+	 * if the limit is reached.
+	 */
+	private void acquirePendingCall()
+	{
+		synchronized (itsPendingCallsLock)
+		{
+			itsPendingCalls++;
+			if (itsPendingCalls >= itsMaxPendingCalls && ! itsReadingSuspended)
+			{
+				itsReadingSuspended = true;
+				itsTransport.suspendReading();
+			}
+		}
+	}
+	
+	private void releasePendingCall()
+	{
+		synchronized (itsPendingCallsLock)
+		{
+			itsPendingCalls--;
+			if (itsPendingCalls < itsMaxPendingCalls && itsReadingSuspended)
+			{
+				itsReadingSuspended = false;
+				
+				// Nothing was received while suspended, that does not count as idle time
+				itsLastReceived = System.currentTimeMillis();
+				itsTransport.resumeReading();
+			}
+		}
+	}
+	
+	private void processCall(RunningCall aCall, int aPort, long aEndpointId, int aMethod, Object[] aArgs)
+	{
+		long theCommandId = aCall.commandId;
+		EndpointInfo theEndpointInfo = itsEndpointsMap.get(aPort);
+
+		// Report errors to the caller rather than letting it wait forever
+		if (theEndpointInfo == null) 
+		{
+			sendReturn(theCommandId, new SRPCRemoteException("No such endpoint: "+aPort), true);
+			return;
+		}
+		
+		if (theEndpointInfo.id != aEndpointId) 
+		{
+			sendReturn(
+					theCommandId, 
+					new SRPCRemoteException("Bad endpoint (expected "+aEndpointId+", got "+theEndpointInfo.id+")"), 
+					true);
+			return;
+		}
+		
+		DispatchTable theTable = theEndpointInfo.table;
+		SRPCStats.MethodStats theStats = itsStats.getMethodStats(theTable.getMethod(aMethod));
+		long t0 = System.nanoTime();
+		Object theResult;
+		boolean theThrown;
+		try
+		{
+			theResult = theTable.invoke(aMethod, theEndpointInfo.remote, aArgs);
+			theThrown = false;
+			
+			// Asynchronous methods: the client gets its own future, we only send the value.
+			if (theResult instanceof Future && theTable.isAsync(aMethod))
+			{
+				theResult = ((Future) theResult).get();
+			}
+		}
+		catch (InvocationTargetException e)
+		{
+			theResult = e.getCause();
+			theThrown = true;
+		}
+		catch (ExecutionException e)
+		{
+			theResult = e.getCause();
+			theThrown = true;
+		}
+		catch (InterruptedException e)
+		{
+			theResult = new SRPCRemoteException("Interrupted", e);
+			theThrown = true;
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+		
+		long theTime = System.nanoTime()-t0;
+		itsStats.itsExecution.record(theTime);
+		theStats.itsExecution.record(theTime);
+		theStats.itsReceived.incrementAndGet();
+		if (theThrown) theStats.itsErrors.incrementAndGet();
+		
+		// Nobody waits for the result of cancelled calls
+		if (! aCall.isCancelled()) sendReturn(theCommandId, theResult, theThrown);
+	}
+	
+	private void sendCancel(long aCommandId, boolean aInterrupt)
+	{
+		try
+		{
+			Frame theFrame = new Frame(CMD_CANCEL);
+			theFrame.out.writeLong(aCommandId);
+			theFrame.out.writeBoolean(aInterrupt);
+			send(theFrame);
+		}
+		catch (IOException e)
+		{
+			// The channel is closed, nothing to cancel.
+		}
+	}
+	
+	private void processCancel(DataInputStream aIn) throws IOException
+	{
+		long theCommandId = aIn.readLong();
+		boolean theInterrupt = aIn.readBoolean();
+		RunningCall theCall = itsRunningCalls.get(theCommandId);
+		if (theCall != null) theCall.cancel(theInterrupt);
+	}
+	
+	/**
+	 * Sends a frame that consists only of a command.
+	 */
+	private void sendCommand(byte aCommand)
+	{
+		try
+		{
+			send(new Frame(aCommand));
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private void sendAckCall(long aCommandId) 
+	{
+		try
+		{
+			Frame theFrame = new Frame(CMD_ACKCALL);
+			theFrame.out.writeLong(aCommandId);
+			send(theFrame);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private void processAckCall(DataInputStream aIn)
+	{
+		try
+		{
+			final long theCommandId = aIn.readLong();
+			processAckCall(theCommandId);
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private void processAckCall(long aCommandId)
+	{
+		acknowledge(aCommandId);
+	}
+	
+	private void sendReturn(long aCommandId, Object aValue, boolean aThrown)
+	{
+		boolean theSent = false;
+		try
+		{
+			Frame theFrame = new Frame(CMD_RETURN);
+			theFrame.out.writeLong(aCommandId);
+			long t0 = System.nanoTime();
+			itsCodec.writeValue(theFrame.out, aValue);
+			itsStats.itsSerializationTime.addAndGet(System.nanoTime()-t0);
+			theFrame.out.writeBoolean(aThrown);
+			send(theFrame);
+			theSent = true;
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+		finally
+		{
+			itsStreams.exportCompleted(theSent);
+		}
+	}
+	
+	private void processReturn(DataInputStream aIn)
+	{
+		try
+		{
+			int theSize = aIn.available()+5; // Remaining bytes, plus length and command
+			long theCommandId = aIn.readLong();
+			long t0 = System.nanoTime();
+			Object theValue = itsCodec.readValue(aIn);
+			itsStats.itsSerializationTime.addAndGet(System.nanoTime()-t0);
+			boolean theThrown = aIn.readBoolean();
+			itsStreams.resolveCompleted(processReturn(theCommandId, theValue, theThrown, theSize));
+		}
+		catch (Exception e)
+		{
+			itsStreams.resolveCompleted(false);
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * @return False if the call was cancelled, in which case the value is dropped.
+	 */
+	private boolean processReturn(long aCommandId, Object aValue, boolean aThrown, int aSize)
+	{
+		Waiter theWaiter = removeWaiter(aCommandId);
+		if (theWaiter == null) return false; // Cancelled
+		
+		SRPCStats.MethodStats theStats = theWaiter.itsMethodStats;
+		long theLatency = System.nanoTime()-theWaiter.itsStartNanos;
+		itsStats.itsCallLatency.record(theLatency);
+		theStats.itsLatency.record(theLatency);
+		theStats.itsReplyBytes.addAndGet(aSize);
+		if (aThrown) theStats.itsErrors.incrementAndGet();
+		
+		theWaiter.setData(new ReturnData(aValue, aThrown));
+		return true;
+	}
+	
+	private void sendGC(int[] aPorts)
+	{
+		try
+		{
+			Frame theFrame = new Frame(CMD_GC);
+			
+			// Ports for which a new proxy was created in the meantime are still in use
+			int theCount = 0;
+			for (int thePort : aPorts) if (! itsProxiesMap.containsKey(thePort)) aPorts[theCount++] = thePort;
+			if (theCount == 0) return;
+			
+			theFrame.out.writeInt(theCount);
+			for (int i=0;i<theCount;i++) theFrame.out.writeInt(aPorts[i]);
+			send(theFrame);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private void processGC(DataInputStream aIn)
+	{
+		try
+		{
+			int[] thePorts = new int[aIn.readInt()];
+			for (int i=0;i<thePorts.length;i++) thePorts[i] = aIn.readInt();
+			processGC(thePorts);
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private synchronized void processGC(int[] aPorts)
+	{
+		for (int thePort : aPorts)
+		{
+			EndpointInfo theEndpointInfo = itsEndpointsMap.remove(thePort);
+			if (theEndpointInfo == null) continue;
+			itsRemotesMap.remove(theEndpointInfo.remote);
+			portFreed(thePort);
+		}
+	}
+	
+	/**
+	 * @param aTimeout The timeout of the method (see {@link SRPCTimeout}), or 0 to use the default.
+	 */
+	private Object call(int aPort, long aEndpointId, int aMethod, Object[] aArgs, long aTimeout, SRPCStats.MethodStats aStats)
+	{
+		checkProxyRefs();
+		Waiter theWaiter = createWaiter(aStats, true);
+		sendCall(theWaiter, aPort, aEndpointId, aMethod, aArgs);
+		
+		if (aTimeout == 0) aTimeout = itsCallTimeout;
+		long theDeadline = aTimeout > 0 ? System.currentTimeMillis()+aTimeout : Long.MAX_VALUE;
+		
+		ReturnData theData;
+		if (itsExecutingCall.get() != null)
+		{
+			// The incoming call we are executing does not count as pending while
+			// we wait, otherwise the reader could stop before reading our result.
+			releasePendingCall();
+			try
+			{
+				theData = theWaiter.waitResult(theDeadline);
+			}
+			finally
+			{
+				acquirePendingCall();
+			}
+		}
+		else theData = theWaiter.waitResult(theDeadline);
+		
+		if (theData.thrown) throw new RuntimeException("Exception occurred in remote host.", (Throwable) theData.result);
+		else return theData.result;
+	}
+	
+	/**
+	 * Same as {@link #call(int, long, int, Object[], long, SRPCStats.MethodStats)} but does not wait for
+	 * the result. Many such calls can be in flight at the same time.
+	 * If there is a timeout, the returned future fails with an {@link SRPCTimeoutException}
+	 * when it is reached.
+	 */
+	private Future<Object> callAsync(int aPort, long aEndpointId, int aMethod, Object[] aArgs, long aTimeout, SRPCStats.MethodStats aStats)
+	{
+		checkProxyRefs();
+		final Waiter theWaiter = createWaiter(aStats, false);
+		sendCall(theWaiter, aPort, aEndpointId, aMethod, aArgs);
+		
+		if (aTimeout == 0) aTimeout = itsCallTimeout;
+		if (aTimeout > 0)
+		{
+			theWaiter.setTimeoutTask(TIMER.schedule(new Runnable()
+			{
+				public void run()
+				{
+					theWaiter.timedOut();
+				}
+			}, aTimeout, TimeUnit.MILLISECONDS));
+		}
+		return theWaiter;
+	}
+	
+	/**
+	 * Forgets the given waiter and cancels the call on the other side.
+	 */
+	private void cancel(Waiter aWaiter, boolean aInterrupt)
+	{
+		if (removeWaiter(aWaiter.getCommandId()) != null) sendCancel(aWaiter.getCommandId(), aInterrupt);
+	}
+	
+	/**
+	 * Invokes the given method on a remote object and returns immediately.
+	 * The result of the call can be obtained through the returned {@link Future}.
+	 * Remote interface methods whose return type is {@link Future} are always
+	 * invoked this way.
+	 * @param aRemote A remote object (ie. a stub, see {@link SRPCServer#isRemote(IRemote)}).
+	 */
+	public static Future<Object> callAsync(IRemote aRemote, Method aMethod, Object... aArgs)
+	{
+		if (SRPCServer.isLocal(aRemote)) throw new IllegalArgumentException("Not a remote object: "+aRemote);
+		InvocationHandler theHandler = Proxy.getInvocationHandler(aRemote);
+		if (theHandler instanceof MyInvocationHandler)
+		{
+			return ((MyInvocationHandler) theHandler).invokeAsync(aMethod, aArgs);
+		}
+		
+		// Stub to an object of this JVM (see SRPCConfig.LocalMode): the call is made right away.
+		FutureTask<Object> theTask = new FutureTask<Object>(new LocalCall(aRemote, aMethod, aArgs));
+		theTask.run();
+		return theTask;
+	}
+	
+	/**
+	 * Waits for the response to a command.
+	 * Also serves as the {@link Future} of asynchronous calls.
+	 * @author gpothier
+	 */
+	private class Waiter implements Future<Object>
+	{
+		private final long itsCommandId;
+		private boolean itsAcknowledged = false;
+		private boolean itsReady = false;
+		private boolean itsCancelled = false;
+		private Object itsData = null;
+		
+		/**
+		 * Set if the call failed locally (timeout, channel closed...)
+		 */
+		private RuntimeException itsFailure = null;
+		
+		private long itsStartTime = System.currentTimeMillis();
+		
+		/**
+		 * The task that fails an asynchronous call at its deadline, if any. 
+		 * It is cancelled when the call completes, so that the timer does not 
+		 * keep this waiter until the deadline.
+		 */
+		private ScheduledFuture<?> itsTimeoutTask;
+		
+		final long itsStartNanos = System.nanoTime();
+		final SRPCStats.MethodStats itsMethodStats;
+		
+		/**
+		 * Number of threads that wait for the result of this call
+		 * and can execute nested calls.
+		 */
+		private int itsWaitingThreads = 0;
+		
+		/**
+		 * Incoming calls made by the other side on behalf of this call.
+		 */
+		private LinkedList<Runnable> itsNestedCalls;
+		
+		/**
+		 * @param aWaited Whether the current thread will wait for the result with 
+		 * {@link #waitResult(long)}. Nested calls that arrive before the thread starts
+		 * waiting are then queued for it, rather than given to the executor (where they
+		 * could wait for this thread).
+		 */
+		public Waiter(long aCommandId, SRPCStats.MethodStats aMethodStats, boolean aWaited)
+		{
+			itsCommandId = aCommandId;
+			itsMethodStats = aMethodStats;
+			itsWaitingThreads = aWaited ? 1 : 0;
+		}
+
+		public long getCommandId()
+		{
+			return itsCommandId;
+		}
+		
+		public synchronized void setTimeoutTask(ScheduledFuture<?> aTask)
+		{
+			if (itsReady) aTask.cancel(false);
+			else itsTimeoutTask = aTask;
+		}
+		
+		/**
+		 * Marks the call as complete. Called with the monitor held.
+		 */
+		private void done()
+		{
+			itsReady = true;
+			if (itsTimeoutTask != null)
+			{
+				itsTimeoutTask.cancel(false);
+				itsTimeoutTask = null;
+			}
+			notifyAll();
+		}
+		
+		public synchronized void setData(Object aData)
+		{
+			if (itsReady) return; // Cancelled
+			itsData = aData;
+			done();
+		}
+		
+		/**
+		 * Terminates the call with the given exception.
+		 */
+		public synchronized void fail(RuntimeException aFailure)
+		{
+			if (itsReady) return;
+			itsFailure = aFailure;
+			done();
+		}
+		
+		/**
+		 * Called when the deadline of the call is reached.
+		 */
+		public void timedOut()
+		{
+			synchronized (this)
+			{
+				if (itsReady) return;
 			}
+			SRPCChannel.this.cancel(this, true);
+			fail(new SRPCTimeoutException("Call timed out"));
 		}
-		catch (IOException e)
+		
+		public synchronized void acknowledged()
 		{
-			throw new RuntimeException(e);
+			itsAcknowledged = true;
 		}
-	}
-	
-	private synchronized void sendCall(long aCommandId, int aPort, long aEndpointId, int aMethod, Object[] aArgs) 
-	{
-		try
+		
+		/**
+		 * Waits until the result of a call is available, or the deadline is reached.
+		 * There is also a timeout if the call is not acknowledged (see {@link SRPCChannel#itsAckTimeout}).
+		 */
+		public ReturnData waitResult(long aDeadline)
 		{
-			itsOut.writeByte(CMD_CALL);
-			itsOut.writeLong(aCommandId);
-			itsOut.writeInt(aPort);
-			itsOut.writeLong(aEndpointId);
-			itsOut.writeInt(aMethod);
-			itsOut.writeObject(aArgs);
-			itsOut.reset();
-			itsOut.flush();
+			try
+			{
+				if (! waitReady(aDeadline, true)) timedOut();
+			}
+			catch (InterruptedException e)
+			{
+				cancel(true);
+				Thread.currentThread().interrupt();
+				throw new SRPCRemoteException("Interrupted", e);
+			}
+			
+			synchronized (this)
+			{
+				if (itsFailure != null) throw itsFailure;
+				return (ReturnData) itsData;
+			}
 		}
-		catch (IOException e)
+		
+		/**
+		 * Hands an incoming nested call (ie. made by the other side while it executes 
+		 * this call) to a thread that waits for the result of this call.
+		 * @return False if no thread is waiting, in which case the caller must
+		 * execute the call.
+		 */
+		public synchronized boolean offerNestedCall(Runnable aTask)
 		{
-			throw new RuntimeException(e);
+			if (itsWaitingThreads == 0) return false;
+			if (itsNestedCalls == null) itsNestedCalls = new LinkedList<Runnable>();
+			itsNestedCalls.add(aTask);
+			notifyAll();
+			return true;
 		}
-	}
-	
-	private void processCall()
-	{
-		try
+		
+		/**
+		 * Waits until the result is available or the given deadline is reached.
+		 * Meanwhile, executes the nested calls of this call.
+		 * @param aCounted Whether the current thread is already counted as waiting
+		 * (see {@link #Waiter(long, SRPCStats.MethodStats, boolean)}).
+		 * @return Whether the result is available.
+		 */
+		private boolean waitReady(long aDeadline, boolean aCounted) throws InterruptedException
 		{
-			final long theCommandId = itsIn.readLong();
-			final int thePort = itsIn.readInt();
-			final long theEndpointId = itsIn.readLong();
-			final int theMethod = itsIn.readInt();
-			final Object[] theArgs = (Object[]) itsIn.readObject();
-			itsExecutor.execute(new Runnable()
+			if (! aCounted) synchronized (this)
 			{
-				public void run()
+				itsWaitingThreads++;
+			}
+			try
+			{
+				while (true)
 				{
-					processCall(theCommandId, thePort, theEndpointId, theMethod, theArgs);
+					Runnable theNestedCall = takeNestedCall(aDeadline);
+					if (theNestedCall == null) return isDone();
+					
+					try
+					{
+						theNestedCall.run();
+					}
+					catch (RuntimeException e)
+					{
+						// Should not happen (errors are returned to the caller), but do not fail our own call
+						e.printStackTrace();
+					}
 				}
-			});
+			}
+			finally
+			{
+				Runnable[] theOrphans = null;
+				synchronized (this)
+				{
+					itsWaitingThreads--;
+					if (itsWaitingThreads == 0 && itsNestedCalls != null && ! itsNestedCalls.isEmpty())
+					{
+						// Only when interrupted
+						theOrphans = itsNestedCalls.toArray(new Runnable[itsNestedCalls.size()]);
+						itsNestedCalls.clear();
+					}
+				}
+				if (theOrphans != null) for (Runnable theTask : theOrphans) itsExecutor.execute(theTask);
+			}
 		}
-		catch (Exception e)
+		
+		/**
+		 * Waits until there is a nested call to execute, the result is available or
+		 * the deadline is reached.
+		 * @return The nested call, or null.
+		 */
+		private synchronized Runnable takeNestedCall(long aDeadline) throws InterruptedException
 		{
-			throw new RuntimeException(e);
+			while (! itsReady && (itsNestedCalls == null || itsNestedCalls.isEmpty())) 
+			{
+				long t = System.currentTimeMillis();
+				if (t >= aDeadline) return null;
+				wait(Math.min(10, aDeadline-t));
+				if (! itsReady && ! itsAcknowledged && itsAckTimeout >= 0)
+				{
+					long t1 = System.currentTimeMillis();
+					if (t1-itsStartTime > itsAckTimeout) 
+					{
+						removeWaiter(itsCommandId);
+						fail(new SRPCRemoteException("Call not acknowledged"));
+					}
+				}
+			}
+			
+			// Pending nested calls are executed even if the result is ready
+			return itsNestedCalls != null ? itsNestedCalls.poll() : null;
 		}
-	}
-	
-	private void processCall(long aCommandId, int aPort, long aEndpointId, int aMethod, Object[] aArgs)
-	{
-		EndpointInfo theEndpointInfo = itsEndpointsMap.get(aPort);
-
-		if (theEndpointInfo == null) 
-			Utils.rtex("No such endpoint: %d", aEndpointId);
-		
-		if (theEndpointInfo.id != aEndpointId) 
-			Utils.rtex("Bad endpoint (expected %d, got %d)", aEndpointId, theEndpointInfo.id);
 		
-		sendAckCall(aCommandId);
+		public boolean cancel(boolean aMayInterruptIfRunning)
+		{
+			synchronized (this)
+			{
+				if (itsReady) return false;
+				itsCancelled = true;
+				done();
+			}
+			
+			// Sent without the monitor, which the reader needs to deliver results
+			SRPCChannel.this.cancel(this, aMayInterruptIfRunning);
+			return true;
+		}
 		
-		IRemote theRemote = theEndpointInfo.remote;
-		Method[] theMethods = getMethods(SRPCUtils.getRemoteInterface(theRemote));
-		Object theResult;
-		boolean theThrown;
-		try
+		public synchronized boolean isCancelled()
 		{
-			theResult = theMethods[aMethod].invoke(theRemote, aArgs);
-			theThrown = false;
+			return itsCancelled;
 		}
-		catch (InvocationTargetException e)
+		
+		public synchronized boolean isDone()
 		{
-			theResult = e.getCause();
-			theThrown = true;
+			return itsReady;
 		}
-		catch (Exception e)
+		
+		public Object get() throws InterruptedException, ExecutionException
 		{
-			throw new RuntimeException(e);
+			waitReady(Long.MAX_VALUE, false);
+			return getResult();
 		}
 		
-		sendReturn(aCommandId, theResult, theThrown);
-	}
-	
-	private synchronized void sendAckCall(long aCommandId) 
-	{
-		try
+		public Object get(long aTimeout, TimeUnit aUnit) 
+		throws InterruptedException, ExecutionException, TimeoutException
 		{
-			itsOut.writeByte(CMD_ACKCALL);
-			itsOut.writeLong(aCommandId);
-			itsOut.reset();
-			itsOut.flush();
+			long theDeadline = System.currentTimeMillis() + aUnit.toMillis(aTimeout);
+			if (! waitReady(theDeadline, false)) throw new TimeoutException();
+			return getResult();
 		}
-		catch (IOException e)
+		
+		private synchronized Object getResult() throws ExecutionException
 		{
-			throw new RuntimeException(e);
+			if (itsCancelled) throw new CancellationException();
+			if (itsFailure != null) throw new ExecutionException(itsFailure.getMessage(), itsFailure);
+			ReturnData theData = (ReturnData) itsData;
+			if (theData.thrown) throw new ExecutionException("Exception occurred in remote host.", (Throwable) theData.result);
+			else return theData.result;
 		}
 	}
 	
-	private void processAckCall()
+	/**
+	 * An incoming call, from its reception until its result is sent.
+	 */
+	private static class RunningCall
 	{
-		try
-		{
-			final long theCommandId = itsIn.readLong();
-			processAckCall(theCommandId);
-		}
-		catch (Exception e)
+		public final long commandId;
+		public final long startTime = System.currentTimeMillis();
+		public final long receivedNanos = System.nanoTime();
+		public boolean acknowledged = false;
+		
+		private Thread itsThread;
+		private boolean itsCancelled = false;
+		
+		public RunningCall(long aCommandId)
 		{
-			throw new RuntimeException(e);
+			commandId = aCommandId;
 		}
-	}
-	
-	private void processAckCall(long aCommandId)
-	{
-		acknowledge(aCommandId);
-	}
-	
-	private synchronized void sendReturn(long aCommandId, Object aValue, boolean aThrown)
-	{
-		try
+		
+		/**
+		 * Called by the thread that executes the call.
+		 * @return False if the call was cancelled before it started.
+		 */
+		public synchronized boolean start()
 		{
-			itsOut.writeByte(CMD_RETURN);
-			itsOut.writeLong(aCommandId);
-			itsOut.writeObject(aValue);
-			itsOut.writeBoolean(aThrown);
-			itsOut.reset();
-			itsOut.flush();
+			if (itsCancelled) return false;
+			itsThread = Thread.currentThread();
+			return true;
 		}
-		catch (IOException e)
+		
+		public synchronized void finish()
 		{
-			throw new RuntimeException(e);
+			itsThread = null;
+			
+			// Don't leave the interrupt flag on a pooled thread
+			if (itsCancelled) Thread.interrupted();
 		}
-	}
-	
-	private void processReturn()
-	{
-		try
+		
+		public synchronized void cancel(boolean aInterrupt)
 		{
-			long theCommandId = itsIn.readLong();
-			Object theValue = itsIn.readObject();
-			boolean theThrown = itsIn.readBoolean();
-			processReturn(theCommandId, theValue, theThrown);
+			itsCancelled = true;
+			if (aInterrupt && itsThread != null) itsThread.interrupt();
 		}
-		catch (Exception e)
+		
+		public synchronized boolean isCancelled()
 		{
-			throw new RuntimeException(e);
+			return itsCancelled;
 		}
 	}
 	
-	private void processReturn(long aCommandId, Object aValue, boolean aThrown)
-	{
-		wakeup(aCommandId, new ReturnData(aValue, aThrown));
-	}
-	
-	private synchronized void sendGC(int aPort)
+	/**
+	 * An asynchronous call to a stub of an object of this JVM.
+	 */
+	private static class LocalCall implements Callable<Object>
 	{
-		try
+		private final IRemote itsRemote;
+		private final Method itsMethod;
+		private final Object[] itsArgs;
+		
+		public LocalCall(IRemote aRemote, Method aMethod, Object[] aArgs)
 		{
-			itsOut.writeByte(CMD_GC);
-			itsOut.writeInt(aPort);
-			itsOut.flush();
+			itsRemote = aRemote;
+			itsMethod = aMethod;
+			itsArgs = aArgs;
 		}
-		catch (IOException e)
+
+		public Object call() throws Exception
 		{
-			throw new RuntimeException(e);
+			Object theResult;
+			try
+			{
+				theResult = itsMethod.invoke(itsRemote, itsArgs);
+			}
+			catch (InvocationTargetException e)
+			{
+				Throwable theCause = e.getCause();
+				if (theCause instanceof Exception) throw (Exception) theCause;
+				else throw (Error) theCause;
+			}
+			
+			if (theResult instanceof Future) return ((Future) theResult).get();
+			else return theResult;
 		}
 	}
 	
-	private void processGC()
+	/**
+	 * Acknowledges the incoming calls that have been running for longer
+	 * than the acknowledgment delay.
+	 */
+	private class AckTask implements Runnable
 	{
-		try
+		public void run()
 		{
-			int thePort = itsIn.readInt();
-			processGC(thePort);
-		}
-		catch (Exception e)
-		{
-			throw new RuntimeException(e);
+			long theLimit = System.currentTimeMillis() - itsAckDelay;
+			for (RunningCall theCall : itsRunningCalls.values())
+			{
+				if (! theCall.acknowledged && theCall.startTime <= theLimit)
+				{
+					theCall.acknowledged = true;
+					sendAckCall(theCall.commandId);
+				}
+			}
 		}
 	}
 	
-	private void processGC(int aPort)
-	{
-		EndpointInfo theEndpointInfo = itsEndpointsMap.remove(aPort);
-		IRemote theRemote = theEndpointInfo.remote;
-		itsRemotesMap.remove(theRemote);
-		portFreed(aPort);
-	}
-	
-	private Object call(int aPort, long aEndpointId, int aMethod, Object[] aArgs)
+	/**
+	 * Periodically notifies the other side of collected proxies.
+	 */
+	private class GCTask implements Runnable
 	{
-		checkProxyRefs();
-		Waiter theWaiter = createWaiter();
-		sendCall(theWaiter.getCommandId(), aPort, aEndpointId, aMethod, aArgs);
-		ReturnData theData = (ReturnData) theWaiter.waitReady();
-		if (theData.thrown) throw new RuntimeException("Exception occurred in remote host.", (Throwable) theData.result);
-		else return theData.result;
+		public void run()
+		{
+			try
+			{
+				checkProxyRefs();
+				flushGC();
+			}
+			catch (RuntimeException e)
+			{
+				// The channel is being closed
+				if (! isClosed()) throw e;
+			}
+		}
 	}
 	
 	/**
-	 * Waits for the response to a command
-	 * @author gpothier
+	 * Pings the other end when nothing was received for a while, and closes
+	 * the channel when nothing was received for too long.
 	 */
-	private static class Waiter
+	private class HeartbeatTask implements Runnable
 	{
-		private final long itsCommandId;
-		private boolean itsAcknowledged = false;
-		private boolean itsReady = false;
-		private Object itsData = null;
-		
-		public Waiter(long aCommandId)
-		{
-			itsCommandId = aCommandId;
-		}
-
-		public long getCommandId()
-		{
-			return itsCommandId;
-		}
-		
-		public synchronized void setData(Object aData)
-		{
-			itsReady = true;
-			itsData = aData;
-			notifyAll();
-		}
-		
-		public synchronized void acknowledged()
-		{
-			itsAcknowledged = true;
-		}
-		
-		/**
-		 * Waits until the result of a call is available.
-		 * There is a timeout of 10s if the call is not acknowledged.
-		 * @return
-		 */
-		public synchronized Object waitReady()
+		public void run()
 		{
-			try
+			// While reading is suspended the other end cannot be heard from, 
+			// but it is still pinged so that it does not time out this end.
+			long theIdle = System.currentTimeMillis() - itsLastReceived;
+			if (theIdle > itsHeartbeatTimeout && ! itsReadingSuspended) 
 			{
-				long t0 = System.currentTimeMillis();
-				while (! itsReady) 
-				{
-					wait(10);
-					if (! itsAcknowledged)
-					{
-						long t1 = System.currentTimeMillis();
-						if (t1-t0 > 10000) throw new SRPCRemoteException("Call not acknowledged");
-					}
-				}
-				return itsData;
+				close(new SRPCRemoteException("No response from the other end for "+theIdle+"ms"));
 			}
-			catch (InterruptedException e)
+			else if (theIdle >= itsHeartbeatInterval) 
 			{
-				throw new RuntimeException(e);
+				try
+				{
+					send(new Frame(CMD_PING));
+				}
+				catch (IOException e)
+				{
+					close(new SRPCRemoteException("Connection lost", e));
+				}
 			}
 		}
 	}
@@ -499,48 +1640,40 @@ public class SRPCChannel extends Thread
 		}
 	}
 	
-	private class SRPCObjectOutputStream extends ObjectOutputStream
+	private class CodecContext implements SRPCCodec.IContext
 	{
-		public SRPCObjectOutputStream(OutputStream aOut) throws IOException
+		public RemoteObjectDesc export(IRemote aRemote)
 		{
-			super(aOut);
-			enableReplaceObject(true);
+			EndpointInfo theEndpointInfo = getEndpointInfo(aRemote);
+			return new RemoteObjectDesc(
+					theEndpointInfo.port, 
+					theEndpointInfo.id, 
+					theEndpointInfo.table.getInterface());
 		}
-		
-		@Override
-		protected Object replaceObject(Object aObj) 
+
+		public Object resolve(RemoteObjectDesc aDesc)
 		{
-			if (aObj instanceof IRemote)
-			{
-				IRemote theRemote = (IRemote) aObj;
-				EndpointInfo theEndpointInfo = getEndpointInfo(theRemote);
-				return new RemoteObjectDesc(
-						theEndpointInfo.port, 
-						theEndpointInfo.id, 
-						SRPCUtils.getRemoteInterface(aObj));
-			}
-			else return aObj;
+			return getProxy(aDesc);
 		}
-		
-	}
-	
-	private class SRPCObjectInputStream extends ObjectInputStream
-	{
-		public SRPCObjectInputStream(InputStream aIn) throws IOException
+
+		public long exportStream(InputStream aStream)
 		{
-			super(aIn);
-			enableResolveObject(true);
+			return itsStreams.export(aStream);
 		}
-	
-		@Override
-		protected Object resolveObject(Object aObj) throws IOException
+
+		public InputStream resolveStream(long aId)
 		{
-			if (aObj instanceof RemoteObjectDesc)
-			{
-				RemoteObjectDesc theDesc = (RemoteObjectDesc) aObj;
-				return getProxy(theDesc);
-			}
-			else return aObj;
+			return itsStreams.resolve(aId);
+		}
+
+		public int exportClass(Class<?> aClass) throws IOException
+		{
+			return itsClassDictionary.getId(aClass);
+		}
+
+		public Class<?> resolveClass(int aId) throws IOException
+		{
+			return itsClassDictionary.getClass(aId);
 		}
 	}
 	
@@ -567,34 +1700,26 @@ public class SRPCChannel extends Thread
 		public final IRemote remote;
 		public final int port;
 		public final long id;
+		public final DispatchTable table;
 		
 		public EndpointInfo(IRemote aRemote, int aPort, long aId)
 		{
 			remote = aRemote;
 			port = aPort;
 			id = aId;
+			table = DispatchTable.forObject(aRemote);
 		}
 	}
 	
 	private class MyInvocationHandler implements InvocationHandler
 	{
 		private final RemoteObjectDesc itsDesc;
-		private final Method[] itsMethods;
+		private final DispatchTable itsTable;
 
-		public MyInvocationHandler(RemoteObjectDesc aDesc, Method[] aMethods)
+		public MyInvocationHandler(RemoteObjectDesc aDesc, DispatchTable aTable)
 		{
 			itsDesc = aDesc;
-			itsMethods = aMethods;
-		}
-
-		private int getMethodId(Method aMethod)
-		{
-			for (int i = 0; i < itsMethods.length; i++)
-			{
-				Method theMethod = itsMethods[i];
-				if (theMethod.equals(aMethod)) return i;
-			}
-			throw new RuntimeException("Unknown: "+aMethod);
+			itsTable = aTable;
 		}
 		
 		public Object invoke(Object aProxy, Method aMethod, Object[] aArgs) throws Throwable
@@ -603,12 +1728,60 @@ public class SRPCChannel extends Thread
 			{
 				return aMethod.invoke(this, aArgs);
 			}
+			else if (aMethod.getReturnType() == Future.class)
+			{
+				return invokeAsync(aMethod, aArgs);
+			}
 			else
 			{
-				int theMethodId = getMethodId(aMethod);
-				return call(itsDesc.port, itsDesc.endpointId, theMethodId, aArgs);
+				int theMethodId = itsTable.getId(aMethod);
+				return call(
+						itsDesc.port, 
+						itsDesc.endpointId, 
+						theMethodId, 
+						aArgs, 
+						itsTable.getTimeout(theMethodId), 
+						itsStats.getMethodStats(aMethod));
 			}
 		}
+		
+		public Future<Object> invokeAsync(Method aMethod, Object[] aArgs)
+		{
+			int theMethodId = itsTable.getId(aMethod);
+			return callAsync(
+					itsDesc.port, 
+					itsDesc.endpointId, 
+					theMethodId, 
+					aArgs, 
+					itsTable.getTimeout(theMethodId), 
+					itsStats.getMethodStats(aMethod));
+		}
+		
+		private SRPCChannel getChannel()
+		{
+			return SRPCChannel.this;
+		}
+		
+		/**
+		 * Called for the stubs, whose equals method is forwarded to this handler: 
+		 * stubs are equal if they designate the same remote object.
+		 */
+		@Override
+		public boolean equals(Object aObj)
+		{
+			if (aObj instanceof Proxy) aObj = Proxy.getInvocationHandler(aObj);
+			if (! (aObj instanceof MyInvocationHandler)) return false;
+			MyInvocationHandler theOther = (MyInvocationHandler) aObj;
+			return theOther.getChannel() == getChannel()
+				&& theOther.itsDesc.port == itsDesc.port
+				&& theOther.itsDesc.endpointId == itsDesc.endpointId;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return itsDesc.port*31 + (int) itsDesc.endpointId;
+		}
 	}
 	
 	private static class ProxyRef extends WeakReference<Proxy>
@@ -0,0 +1,183 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of connections to the same {@link SRPCServer}, among which calls
+ * are distributed. This gives parallel bandwidth, and prevents a call that
+ * transfers a lot of data from delaying the others.
+ * <p>
+ * Objects obtained through {@link #lookup(String)} are striped: each call
+ * goes through the connection that has the fewest outstanding calls.
+ * Remote objects returned by calls are ordinary stubs bound to the connection
+ * they came from, and local objects passed as arguments are called back
+ * through the connection of the call, so that related calls stay on the
+ * same connection.
+ */
+public class SRPCClientPool
+{
+	private final SRPCChannel[] itsChannels;
+	private final RIRegistry[] itsRegistries;
+
+	/**
+	 * Rotates the first candidate connection so that ties are spread.
+	 */
+	private final AtomicInteger itsNext = new AtomicInteger();
+
+	public SRPCClientPool(String aHost, int aPort, int aSize) throws UnknownHostException, IOException
+	{
+		this(aHost, aPort, aSize, SRPCConfig.getDefault());
+	}
+
+	public SRPCClientPool(String aHost, int aPort, int aSize, SRPCConfig aConfig) throws UnknownHostException, IOException
+	{
+		itsChannels = new SRPCChannel[aSize];
+		itsRegistries = new RIRegistry[aSize];
+		try
+		{
+			for (int i=0;i<aSize;i++)
+			{
+				itsChannels[i] = SRPCServer.openChannel(aHost, aPort, aConfig);
+				itsRegistries[i] = itsChannels[i].getRemoteRegistry();
+			}
+		}
+		catch (IOException e)
+		{
+			close();
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Closes all the connections of this pool 
+	 * (see {@link SRPCChannel#close()}).
+	 */
+	public void close()
+	{
+		for (SRPCChannel theChannel : itsChannels) 
+		{
+			if (theChannel != null) theChannel.close();
+		}
+	}
+
+	public int getSize()
+	{
+		return itsChannels.length;
+	}
+
+	public SRPCChannel getChannel(int aIndex)
+	{
+		return itsChannels[aIndex];
+	}
+
+	/**
+	 * Returns a striped stub to the object registered with the given name,
+	 * or null if there is no such object.
+	 */
+	public Object lookup(String aName)
+	{
+		IRemote[] theStubs = new IRemote[itsChannels.length];
+		for (int i=0;i<theStubs.length;i++)
+		{
+			theStubs[i] = (IRemote) itsRegistries[i].lookup(aName);
+			if (theStubs[i] == null) return null;
+		}
+
+		Class<?> theInterface = SRPCUtils.getRemoteInterface(theStubs[0]);
+		return Proxy.newProxyInstance(
+				theInterface.getClassLoader(),
+				new Class<?>[] { theInterface },
+				new StripedInvocationHandler(theStubs));
+	}
+
+	/**
+	 * Returns the index of the connection that should be used for the next call.
+	 */
+	private int select()
+	{
+		int theCount = itsChannels.length;
+		int theStart = (itsNext.getAndIncrement() & Integer.MAX_VALUE) % theCount;
+		int theBest = theStart;
+		int theBestLoad = Integer.MAX_VALUE;
+		for (int i=0;i<theCount;i++)
+		{
+			int theIndex = (theStart+i) % theCount;
+			int theLoad = itsChannels[theIndex].getOutstandingCalls();
+			if (theLoad == 0) return theIndex;
+			if (theLoad < theBestLoad)
+			{
+				theBest = theIndex;
+				theBestLoad = theLoad;
+			}
+		}
+		return theBest;
+	}
+
+	private class StripedInvocationHandler implements InvocationHandler
+	{
+		/**
+		 * Stubs to the same remote object, one per connection.
+		 */
+		private final IRemote[] itsStubs;
+
+		public StripedInvocationHandler(IRemote[] aStubs)
+		{
+			itsStubs = aStubs;
+		}
+
+		private SRPCClientPool getPool()
+		{
+			return SRPCClientPool.this;
+		}
+		
+		public Object invoke(Object aProxy, Method aMethod, Object[] aArgs) throws Throwable
+		{
+			if (aMethod.getDeclaringClass() == Object.class)
+			{
+				return aMethod.invoke(this, aArgs);
+			}
+
+			try
+			{
+				return aMethod.invoke(itsStubs[select()], aArgs);
+			}
+			catch (InvocationTargetException e)
+			{
+				throw e.getCause();
+			}
+		}
+		
+		/**
+		 * Called for the striped stubs, whose equals method is forwarded to this handler: 
+		 * they are equal if they designate the same remote object through the same pool.
+		 */
+		@Override
+		public boolean equals(Object aObj)
+		{
+			if (aObj instanceof Proxy) aObj = Proxy.getInvocationHandler(aObj);
+			if (! (aObj instanceof StripedInvocationHandler)) return false;
+			StripedInvocationHandler theOther = (StripedInvocationHandler) aObj;
+			return theOther.getPool() == getPool() && theOther.itsStubs[0].equals(itsStubs[0]);
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return itsStubs[0].hashCode();
+		}
+	}
+}
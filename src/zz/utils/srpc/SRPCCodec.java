@@ -0,0 +1,98 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import zz.utils.srpc.SRPCChannel.RemoteObjectDesc;
+
+/**
+ * Encodes the arguments and return values of remote calls.
+ * Each {@link SRPCChannel} has its own codec instance, chosen among the
+ * codecs supported by both ends during the channel handshake.
+ * Codec instances can be used concurrently by several threads.
+ */
+public abstract class SRPCCodec
+{
+	private final IContext itsContext;
+
+	public SRPCCodec(IContext aContext)
+	{
+		itsContext = aContext;
+	}
+
+	protected IContext getContext()
+	{
+		return itsContext;
+	}
+
+	/**
+	 * Writes the given value (which can be null) to the stream.
+	 */
+	public abstract void writeValue(DataOutputStream aOut, Object aValue) throws IOException;
+
+	/**
+	 * Reads a value previously written by {@link #writeValue(DataOutputStream, Object)}
+	 * at the other end of the channel.
+	 */
+	public abstract Object readValue(DataInputStream aIn) throws IOException;
+
+	/**
+	 * Gives codecs access to the remote objects tables of the channel.
+	 */
+	public interface IContext
+	{
+		/**
+		 * Returns the descriptor that represents the given local object
+		 * on the other side of the channel.
+		 */
+		public RemoteObjectDesc export(IRemote aRemote);
+
+		/**
+		 * Returns the stub that corresponds to the given descriptor.
+		 */
+		public Object resolve(RemoteObjectDesc aDesc);
+
+		/**
+		 * Starts transferring the content of the given stream to the other
+		 * side of the channel, and returns the id that identifies it.
+		 */
+		public long exportStream(InputStream aStream);
+
+		/**
+		 * Returns the stream that receives the content of the given remote stream.
+		 */
+		public InputStream resolveStream(long aId);
+		
+		/**
+		 * Returns a small id that represents the given class on the other side of the
+		 * channel. The name of the class is sent only the first time.
+		 */
+		public int exportClass(Class<?> aClass) throws IOException;
+		
+		/**
+		 * Returns the class that corresponds to an id obtained with {@link #exportClass(Class)}
+		 * on the other side.
+		 */
+		public Class<?> resolveClass(int aId) throws IOException;
+	}
+
+	/**
+	 * Creates codec instances for each channel.
+	 */
+	public interface Factory
+	{
+		/**
+		 * A unique identifier of the codec, sent during the channel handshake.
+		 * When several codecs are supported by both ends, the one with the
+		 * highest id is used.
+		 */
+		public byte getId();
+
+		public SRPCCodec create(IContext aContext);
+	}
+}
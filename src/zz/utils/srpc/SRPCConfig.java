@@ -0,0 +1,383 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+import zz.utils.net.SelectorPool;
+
+/**
+ * Tuning parameters of {@link SRPCChannel}s.
+ * A config can be shared by several channels (eg. all the channels
+ * accepted by an {@link SRPCServer}); it should not be modified once
+ * channels have been created with it.
+ */
+public class SRPCConfig
+{
+	/**
+	 * Number of threads of the executors created when none is set 
+	 * (see {@link #getExecutor()}).
+	 */
+	static final int DEFAULT_EXECUTOR_THREADS = 64;
+
+	private SRPCCodec.Factory[] itsCodecs = { BinaryCodec.FACTORY };
+	private long itsMaxFlushLatency = 0;
+	private int itsMaxFlushBatch = 256;
+	private long itsAckDelay = 1000;
+	private Executor itsExecutor;
+	private int itsMaxPendingCalls = 1024;
+	private SelectorPool itsSelectorPool;
+	private int itsStreamChunkSize = 32*1024;
+	private int itsStreamWindow = 256*1024;
+	private long itsCallTimeout = 0;
+	private long itsHeartbeatInterval = 5000;
+	private long itsHeartbeatTimeout = 20000;
+	private int itsGCBatchSize = 1024;
+	private long itsGCInterval = 1000;
+	private int itsCompressionThreshold = -1;
+	private int itsCompressionLevel = Deflater.BEST_SPEED;
+	private LocalMode itsLocalMode = LocalMode.SOCKET;
+	private boolean itsMonitored = false;
+	private String itsSharedMemoryDirectory = null;
+	private int itsSharedMemorySize = 1024*1024;
+
+	/**
+	 * Returns a new config with default settings. Each call returns a new
+	 * instance, so that changes do not affect other users of the default config.
+	 */
+	public static SRPCConfig getDefault()
+	{
+		return new SRPCConfig();
+	}
+
+	/**
+	 * The codecs supported by channels, in addition to the {@link SerializationCodec},
+	 * which is always supported.
+	 */
+	public SRPCCodec.Factory[] getCodecs()
+	{
+		return itsCodecs;
+	}
+
+	public void setCodecs(SRPCCodec.Factory... aCodecs)
+	{
+		itsCodecs = aCodecs;
+	}
+
+	/**
+	 * Maximum time, in microseconds, that the writer of a channel waits for 
+	 * additional outgoing messages before flushing the socket. 
+	 * With the default value (0), the writer only batches the messages
+	 * that are already queued.
+	 */
+	public long getMaxFlushLatency()
+	{
+		return itsMaxFlushLatency;
+	}
+
+	public void setMaxFlushLatency(long aMaxFlushLatency)
+	{
+		itsMaxFlushLatency = aMaxFlushLatency;
+	}
+
+	/**
+	 * Maximum number of outgoing messages written between two flushes.
+	 */
+	public int getMaxFlushBatch()
+	{
+		return itsMaxFlushBatch;
+	}
+
+	public void setMaxFlushBatch(int aMaxFlushBatch)
+	{
+		itsMaxFlushBatch = aMaxFlushBatch;
+	}
+
+	/**
+	 * Time, in milliseconds, after which a channel acknowledges an incoming call
+	 * that is still executing. Calls that complete before the delay are not
+	 * acknowledged: the return message is sent alone.
+	 * A value of 0 means that all calls are acknowledged as soon as they are received,
+	 * and -1 that calls are never acknowledged (in which case the caller cannot
+	 * detect lost calls).
+	 */
+	public long getAckDelay()
+	{
+		return itsAckDelay;
+	}
+
+	public void setAckDelay(long aAckDelay)
+	{
+		itsAckDelay = aAckDelay;
+	}
+
+	/**
+	 * The executor that runs the incoming calls of channels.
+	 * As channels created with the same config share the executor, the
+	 * number of threads is bounded for all of them.
+	 * If null (the default), each {@link SRPCServer} creates a pool of 64 threads
+	 * for the channels it accepts, and other channels create their own pool,
+	 * so that a busy connection does not starve unrelated ones.
+	 * @see SRPCUtils#createExecutor(int)
+	 * @see SRPCUtils#createVirtualThreadExecutor()
+	 */
+	public synchronized Executor getExecutor()
+	{
+		return itsExecutor;
+	}
+
+	public synchronized void setExecutor(Executor aExecutor)
+	{
+		itsExecutor = aExecutor;
+	}
+
+	/**
+	 * Maximum number of incoming calls of a channel that can be waiting 
+	 * for or using an executor thread. When this number is reached the
+	 * channel stops reading its socket, which pushes back on the caller. 
+	 * Calls that are themselves waiting for the result of a call to the
+	 * other end do not count.
+	 */
+	public int getMaxPendingCalls()
+	{
+		return itsMaxPendingCalls;
+	}
+
+	public void setMaxPendingCalls(int aMaxPendingCalls)
+	{
+		itsMaxPendingCalls = aMaxPendingCalls;
+	}
+
+	/**
+	 * The selector threads that perform the I/O of channels. 
+	 * If null (the default), each channel uses blocking I/O with its own
+	 * reader and writer threads. Otherwise channels whose socket has a
+	 * channel use non-blocking I/O, which lets a server handle many 
+	 * connections with a few threads.
+	 */
+	public SelectorPool getSelectorPool()
+	{
+		return itsSelectorPool;
+	}
+
+	public void setSelectorPool(SelectorPool aSelectorPool)
+	{
+		itsSelectorPool = aSelectorPool;
+	}
+
+	/**
+	 * Maximum size of the chunks in which the content of {@link java.io.InputStream}s
+	 * passed through channels is sent.
+	 */
+	public int getStreamChunkSize()
+	{
+		return itsStreamChunkSize;
+	}
+
+	public void setStreamChunkSize(int aStreamChunkSize)
+	{
+		itsStreamChunkSize = aStreamChunkSize;
+	}
+
+	/**
+	 * Maximum number of bytes of a stream that are sent but not yet 
+	 * consumed by the receiver.
+	 */
+	public int getStreamWindow()
+	{
+		return itsStreamWindow;
+	}
+
+	public void setStreamWindow(int aStreamWindow)
+	{
+		itsStreamWindow = aStreamWindow;
+	}
+
+	/**
+	 * Maximum time, in milliseconds, that callers wait for the result of
+	 * remote calls whose method has no {@link SRPCTimeout} annotation.
+	 * The default value (0) means no timeout.
+	 */
+	public long getCallTimeout()
+	{
+		return itsCallTimeout;
+	}
+
+	public void setCallTimeout(long aCallTimeout)
+	{
+		itsCallTimeout = aCallTimeout;
+	}
+
+	/**
+	 * Time, in milliseconds, after which a channel that did not receive 
+	 * anything sends a ping to the other end. 0 disables heartbeats.
+	 */
+	public long getHeartbeatInterval()
+	{
+		return itsHeartbeatInterval;
+	}
+
+	public void setHeartbeatInterval(long aHeartbeatInterval)
+	{
+		itsHeartbeatInterval = aHeartbeatInterval;
+	}
+
+	/**
+	 * Time, in milliseconds, after which a channel that did not receive
+	 * anything (not even a reply to its pings) considers the other end
+	 * dead and closes itself. Only used if heartbeats are enabled.
+	 */
+	public long getHeartbeatTimeout()
+	{
+		return itsHeartbeatTimeout;
+	}
+
+	public void setHeartbeatTimeout(long aHeartbeatTimeout)
+	{
+		itsHeartbeatTimeout = aHeartbeatTimeout;
+	}
+
+	/**
+	 * Number of garbage collected proxies after which a channel notifies the 
+	 * other end, so that it can release the corresponding objects.
+	 * @see #getGCInterval()
+	 */
+	public int getGCBatchSize()
+	{
+		return itsGCBatchSize;
+	}
+
+	public void setGCBatchSize(int aGCBatchSize)
+	{
+		itsGCBatchSize = aGCBatchSize;
+	}
+
+	/**
+	 * Maximum time, in milliseconds, between the collection of a proxy and 
+	 * the notification of the other end.
+	 */
+	public long getGCInterval()
+	{
+		return itsGCInterval;
+	}
+
+	public void setGCInterval(long aGCInterval)
+	{
+		itsGCInterval = aGCInterval;
+	}
+
+	/**
+	 * Size, in bytes, above which frames are compressed. Compression is only
+	 * used if it is enabled on both ends of a channel. The default value (-1)
+	 * disables compression, which is only worthwhile on slow links.
+	 * @see SRPCChannel#getCompressionStats()
+	 */
+	public int getCompressionThreshold()
+	{
+		return itsCompressionThreshold;
+	}
+
+	public void setCompressionThreshold(int aCompressionThreshold)
+	{
+		itsCompressionThreshold = aCompressionThreshold;
+	}
+
+	/**
+	 * The {@link Deflater} compression level.
+	 */
+	public int getCompressionLevel()
+	{
+		return itsCompressionLevel;
+	}
+
+	public void setCompressionLevel(int aCompressionLevel)
+	{
+		itsCompressionLevel = aCompressionLevel;
+	}
+
+	/**
+	 * How {@link SRPCServer#connectTo(String, int, SRPCConfig)} connects to 
+	 * servers of the same JVM. The default is {@link LocalMode#SOCKET}, as 
+	 * call timeouts are not enforced for direct calls.
+	 */
+	public LocalMode getLocalMode()
+	{
+		return itsLocalMode;
+	}
+
+	public void setLocalMode(LocalMode aLocalMode)
+	{
+		itsLocalMode = aLocalMode;
+	}
+	
+	/**
+	 * Whether the {@link SRPCChannel#getStats() statistics} of channels are
+	 * registered with the {@link zz.utils.monitoring.Monitor} and JMX
+	 * (until the channels are closed).
+	 * Statistics are collected in any case.
+	 */
+	public boolean isMonitored()
+	{
+		return itsMonitored;
+	}
+
+	public void setMonitored(boolean aMonitored)
+	{
+		itsMonitored = aMonitored;
+	}
+	
+	/**
+	 * Directory of the memory-mapped files used by channels between processes of 
+	 * the same host, typically <code>/dev/shm</code> (see {@link ShmTransport}). 
+	 * Shared memory is used only if both ends of a channel enable it, otherwise 
+	 * frames go through the socket. The default value (null) disables it.
+	 */
+	public String getSharedMemoryDirectory()
+	{
+		return itsSharedMemoryDirectory;
+	}
+
+	public void setSharedMemoryDirectory(String aSharedMemoryDirectory)
+	{
+		itsSharedMemoryDirectory = aSharedMemoryDirectory;
+	}
+
+	/**
+	 * Size, in bytes, of the memory-mapped file of each direction of a channel.
+	 * Frames larger than that are still supported.
+	 */
+	public int getSharedMemorySize()
+	{
+		return itsSharedMemorySize;
+	}
+
+	public void setSharedMemorySize(int aSharedMemorySize)
+	{
+		itsSharedMemorySize = aSharedMemorySize;
+	}
+	
+	/**
+	 * The ways of calling objects of a server of the same JVM.
+	 */
+	public static enum LocalMode
+	{
+		/**
+		 * Use a socket connection, as for other hosts.
+		 */
+		SOCKET,
+		
+		/**
+		 * Call objects directly, but copy mutable arguments and return values,
+		 * so that the semantics are those of remote calls.
+		 */
+		COPY,
+		
+		/**
+		 * Call objects directly, and pass arguments and return values by reference.
+		 * Only safe if neither side modifies the objects it passes or receives.
+		 */
+		DIRECT;
+	}
+}
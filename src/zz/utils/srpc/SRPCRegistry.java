@@ -3,32 +3,100 @@
  */
 package zz.utils.srpc;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The root object experted by an SRPC server. 
  * Similar to the RMI registry.
+ * It is safe for concurrent use.
  * @author gpothier
  */
 public class SRPCRegistry implements RIRegistry
 {
-	private Map<String, IRemote> itsRemotesMap = new HashMap<String, IRemote>();
+	private static final Method CHANGED;
+	static
+	{
+		try
+		{
+			CHANGED = RIRegistryListener.class.getMethod("changed", String.class);
+		}
+		catch (NoSuchMethodException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private ConcurrentMap<String, IRemote> itsRemotesMap = new ConcurrentHashMap<String, IRemote>();
+	
+	private List<RIRegistryListener> itsListeners = new CopyOnWriteArrayList<RIRegistryListener>();
 	
 	public Object lookup(String aName)
 	{
 		return itsRemotesMap.get(aName);
 	}
 	
+	public Object[] lookupAll(String... aNames)
+	{
+		Object[] theResult = new Object[aNames.length];
+		for (int i=0;i<aNames.length;i++) theResult[i] = itsRemotesMap.get(aNames[i]);
+		return theResult;
+	}
+	
 	public void bind(String aName, IRemote aRemote)
 	{
-		if (itsRemotesMap.containsKey(aName)) throw new RuntimeException("Already bound: "+aName);
-		itsRemotesMap.put(aName, aRemote);
+		if (itsRemotesMap.putIfAbsent(aName, aRemote) != null) throw new RuntimeException("Already bound: "+aName);
+		fireChanged(aName);
 	}
 	
 	public void rebind(String aName, IRemote aRemote)
 	{
 		itsRemotesMap.put(aName, aRemote);
+		fireChanged(aName);
+	}
+	
+	/**
+	 * Removes the object registered with the given name, if any.
+	 */
+	public void unbind(String aName)
+	{
+		if (itsRemotesMap.remove(aName) != null) fireChanged(aName);
 	}
 	
+	public void addListener(RIRegistryListener aListener)
+	{
+		itsListeners.add(aListener);
+	}
+	
+	public void removeListener(RIRegistryListener aListener)
+	{
+		itsListeners.remove(aListener);
+	}
+	
+	int getListenerCount()
+	{
+		return itsListeners.size();
+	}
+	
+	private void fireChanged(String aName)
+	{
+		for (RIRegistryListener theListener : itsListeners)
+		{
+			try
+			{
+				if (SRPCServer.isLocal(theListener)) theListener.changed(aName);
+				
+				// Do not wait for remote listeners
+				else SRPCChannel.callAsync(theListener, CHANGED, aName);
+			}
+			catch (RuntimeException e)
+			{
+				// The listener failed, eg. because its connection is closed
+				itsListeners.remove(theListener);
+			}
+		}
+	}
 }
@@ -0,0 +1,125 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client-side cache of the objects of a (remote) registry.
+ * Lookups are only forwarded to the registry for names that are not cached,
+ * and entries are invalidated when the registry notifies a change.
+ * Objects that are not bound are not cached.
+ */
+public class SRPCRegistryCache implements RIRegistry
+{
+	private final RIRegistry itsRegistry;
+	private final Map<String, Object> itsCache = new ConcurrentHashMap<String, Object>();
+	
+	/**
+	 * Incremented at each invalidation, so that the results of lookups that
+	 * were in flight during an invalidation are not cached.
+	 */
+	private final AtomicLong itsVersion = new AtomicLong();
+	
+	private final Listener itsListener = new Listener();
+	
+	public SRPCRegistryCache(RIRegistry aRegistry)
+	{
+		itsRegistry = aRegistry;
+		itsRegistry.addListener(itsListener);
+	}
+
+	public Object lookup(String aName)
+	{
+		Object theResult = itsCache.get(aName);
+		if (theResult == null)
+		{
+			long theVersion = itsVersion.get();
+			theResult = itsRegistry.lookup(aName);
+			cache(aName, theResult, theVersion);
+		}
+		return theResult;
+	}
+	
+	public Object[] lookupAll(String... aNames)
+	{
+		Object[] theResult = new Object[aNames.length];
+		List<String> theMissing = null;
+		for (int i=0;i<aNames.length;i++)
+		{
+			theResult[i] = itsCache.get(aNames[i]);
+			if (theResult[i] == null) 
+			{
+				if (theMissing == null) theMissing = new ArrayList<String>();
+				theMissing.add(aNames[i]);
+			}
+		}
+		
+		if (theMissing != null)
+		{
+			long theVersion = itsVersion.get();
+			Object[] theObjects = itsRegistry.lookupAll(theMissing.toArray(new String[theMissing.size()]));
+			
+			int j = 0;
+			for (int i=0;i<aNames.length;i++)
+			{
+				if (theResult[i] != null) continue;
+				theResult[i] = theObjects[j++];
+				cache(aNames[i], theResult[i], theVersion);
+			}
+		}
+		
+		return theResult;
+	}
+	
+	private void cache(String aName, Object aObject, long aVersion)
+	{
+		if (aObject == null) return;
+		itsCache.put(aName, aObject);
+		
+		// An invalidation might have been missed
+		if (itsVersion.get() != aVersion) itsCache.remove(aName);
+	}
+	
+	/**
+	 * Forgets all the cached objects.
+	 */
+	public void clear()
+	{
+		itsVersion.incrementAndGet();
+		itsCache.clear();
+	}
+	
+	/**
+	 * Stops listening to the changes of the registry. The cache should not be used afterwards.
+	 */
+	public void dispose()
+	{
+		itsRegistry.removeListener(itsListener);
+		clear();
+	}
+	
+	public void addListener(RIRegistryListener aListener)
+	{
+		itsRegistry.addListener(aListener);
+	}
+	
+	public void removeListener(RIRegistryListener aListener)
+	{
+		itsRegistry.removeListener(aListener);
+	}
+	
+	private class Listener implements RIRegistryListener
+	{
+		public void changed(String aName)
+		{
+			itsVersion.incrementAndGet();
+			itsCache.remove(aName);
+		}
+	}
+}
@@ -5,8 +5,15 @@ package zz.utils.srpc;
 
 import java.io.IOException;
 import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
 import zz.utils.net.Server;
 
@@ -22,15 +29,64 @@ public class SRPCServer extends Server
 	public static final int REGISTRY_PORT = 1;
 	
 	private SRPCRegistry itsRegistry = new SRPCRegistry();
+	
+	private final SRPCConfig itsConfig;
+	
+	/**
+	 * Runs the incoming calls of the accepted channels 
+	 * (see {@link SRPCConfig#getExecutor()}).
+	 */
+	private final Executor itsExecutor;
+	
+	/**
+	 * The executor created by this server if the config has none, 
+	 * which is shut down with the server.
+	 */
+	private final ExecutorService itsOwnExecutor;
+	
+	/**
+	 * The servers of this JVM, by port.
+	 */
+	private static final ConcurrentMap<Integer, SRPCServer> itsLocalServers =
+		new ConcurrentHashMap<Integer, SRPCServer>();
 
 	public SRPCServer(int aPort, boolean aDaemon)
 	{
-		super(aPort, true, aDaemon);
+		this(aPort, aDaemon, SRPCConfig.getDefault());
 	}
 
 	public SRPCServer(int aPort)
 	{
-		super(aPort, true);
+		this(aPort, false);
+	}
+	
+	/**
+	 * Creates a server whose channels use the given config.
+	 * If the config has a {@link SRPCConfig#getSelectorPool() selector pool},
+	 * accepted connections use non-blocking I/O.
+	 */
+	public SRPCServer(int aPort, boolean aDaemon, SRPCConfig aConfig)
+	{
+		super(aPort, false, aDaemon, aConfig.getSelectorPool() != null);
+		itsConfig = aConfig;
+		itsOwnExecutor = aConfig.getExecutor() == null 
+			? SRPCUtils.createExecutor(SRPCConfig.DEFAULT_EXECUTOR_THREADS) 
+			: null;
+		itsExecutor = itsOwnExecutor != null ? itsOwnExecutor : aConfig.getExecutor();
+		itsLocalServers.put(aPort, this);
+		start();
+	}
+	
+	/**
+	 * Stops accepting connections. If the server created its executor, it is shut down: 
+	 * the channels it accepted can then no longer execute incoming calls.
+	 */
+	@Override
+	public void close()
+	{
+		itsLocalServers.remove(getPort(), this);
+		super.close();
+		if (itsOwnExecutor != null) itsOwnExecutor.shutdown();
 	}
 
 	public SRPCRegistry getRegistry()
@@ -43,8 +99,7 @@ public class SRPCServer extends Server
 	{
 		try
 		{
-			SRPCChannel theChannel = new SRPCChannel(aSocket);
-			theChannel.addEndpoint(REGISTRY_PORT, itsRegistry);
+			new SRPCChannel(aSocket, itsConfig, itsRegistry, itsExecutor);
 		}
 		catch (IOException e)
 		{
@@ -54,9 +109,47 @@ public class SRPCServer extends Server
 	
 	public static RIRegistry connectTo(String aHost, int aPort) throws UnknownHostException, IOException
 	{
-		Socket theSocket = new Socket(aHost, aPort);
-		SRPCChannel theChannel = new SRPCChannel(theSocket);
-		return theChannel.getRemoteRegistry();
+		return connectTo(aHost, aPort, SRPCConfig.getDefault());
+	}
+	
+	/**
+	 * Connects to the given server.
+	 * If the server is in the same JVM, its objects are called directly,
+	 * according to the {@link SRPCConfig#getLocalMode() local mode} of the config.
+	 */
+	public static RIRegistry connectTo(String aHost, int aPort, SRPCConfig aConfig) throws UnknownHostException, IOException
+	{
+		if (aConfig.getLocalMode() != SRPCConfig.LocalMode.SOCKET)
+		{
+			SRPCServer theServer = itsLocalServers.get(aPort);
+			if (theServer != null && isLocalHost(aHost))
+			{
+				if (aConfig.getLocalMode() == SRPCConfig.LocalMode.DIRECT) return theServer.getRegistry();
+				else return (RIRegistry) LocalInvocationHandler.wrap(theServer.getRegistry());
+			}
+		}
+		
+		return openChannel(aHost, aPort, aConfig).getRemoteRegistry();
+	}
+	
+	private static boolean isLocalHost(String aHost) throws UnknownHostException
+	{
+		InetAddress theAddress = InetAddress.getByName(aHost);
+		return theAddress.isLoopbackAddress() 
+			|| theAddress.isAnyLocalAddress()
+			|| theAddress.equals(InetAddress.getLocalHost());
+	}
+	
+	/**
+	 * Opens a new connection to the given server.
+	 */
+	static SRPCChannel openChannel(String aHost, int aPort, SRPCConfig aConfig) throws UnknownHostException, IOException
+	{
+		Socket theSocket = aConfig.getSelectorPool() != null ?
+				SocketChannel.open(new InetSocketAddress(aHost, aPort)).socket()
+				: new Socket(aHost, aPort);
+		
+		return new SRPCChannel(theSocket, aConfig);
 	}
 	
 	/**
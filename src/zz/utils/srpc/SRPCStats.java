@@ -0,0 +1,328 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import zz.utils.monitoring.AggregationType;
+import zz.utils.monitoring.Histogram;
+import zz.utils.monitoring.Monitor;
+import zz.utils.monitoring.Probe;
+
+/**
+ * Counters and latency histograms of a channel.
+ * Durations are recorded in nanoseconds and reported in microseconds.
+ * Values are exposed through {@link Monitor} probes and JMX 
+ * when {@link SRPCConfig#isMonitored()} is set.
+ * @see SRPCChannel#getStats()
+ */
+public class SRPCStats implements SRPCStatsMBean
+{
+	private final SRPCChannel itsChannel;
+	
+	final AtomicLong itsBytesIn = new AtomicLong();
+	final AtomicLong itsBytesOut = new AtomicLong();
+	final AtomicLong itsFramesIn = new AtomicLong();
+	final AtomicLong itsFramesOut = new AtomicLong();
+	final AtomicLong itsSerializationTime = new AtomicLong();
+	
+	/**
+	 * Round trip time of outgoing calls.
+	 */
+	final Histogram itsCallLatency = new Histogram();
+	
+	/**
+	 * Time incoming calls spend waiting for an executor thread.
+	 */
+	final Histogram itsQueueWait = new Histogram();
+	
+	/**
+	 * Execution time of incoming calls.
+	 */
+	final Histogram itsExecution = new Histogram();
+	
+	private final Map<Method, MethodStats> itsMethodStats = new ConcurrentHashMap<Method, MethodStats>();
+	
+	SRPCStats(SRPCChannel aChannel)
+	{
+		itsChannel = aChannel;
+	}
+	
+	/**
+	 * Returns the statistics of the given method of a remote interface.
+	 */
+	public MethodStats getMethodStats(Method aMethod)
+	{
+		MethodStats theStats = itsMethodStats.get(aMethod);
+		if (theStats == null)
+		{
+			// Concurrent threads might both create stats, only one is kept.
+			synchronized (itsMethodStats)
+			{
+				theStats = itsMethodStats.get(aMethod);
+				if (theStats == null)
+				{
+					theStats = new MethodStats(aMethod);
+					itsMethodStats.put(aMethod, theStats);
+				}
+			}
+		}
+		return theStats;
+	}
+	
+	@Probe(key = "srpc bytes in", aggr = AggregationType.SUM)
+	public long getBytesIn()
+	{
+		return itsBytesIn.get();
+	}
+
+	@Probe(key = "srpc bytes out", aggr = AggregationType.SUM)
+	public long getBytesOut()
+	{
+		return itsBytesOut.get();
+	}
+
+	@Probe(key = "srpc frames in", aggr = AggregationType.SUM)
+	public long getFramesIn()
+	{
+		return itsFramesIn.get();
+	}
+
+	@Probe(key = "srpc frames out", aggr = AggregationType.SUM)
+	public long getFramesOut()
+	{
+		return itsFramesOut.get();
+	}
+
+	@Probe(key = "srpc calls sent", aggr = AggregationType.SUM)
+	public long getCallsSent()
+	{
+		long theCount = 0;
+		for (MethodStats theStats : itsMethodStats.values()) theCount += theStats.itsSent.get();
+		return theCount;
+	}
+
+	@Probe(key = "srpc calls received", aggr = AggregationType.SUM)
+	public long getCallsReceived()
+	{
+		long theCount = 0;
+		for (MethodStats theStats : itsMethodStats.values()) theCount += theStats.itsReceived.get();
+		return theCount;
+	}
+
+	/**
+	 * Number of calls that threw an exception, on either side.
+	 */
+	@Probe(key = "srpc errors", aggr = AggregationType.SUM)
+	public long getErrors()
+	{
+		long theCount = 0;
+		for (MethodStats theStats : itsMethodStats.values()) theCount += theStats.itsErrors.get();
+		return theCount;
+	}
+
+	@Probe(key = "srpc outgoing in flight", aggr = AggregationType.SUM)
+	public int getOutgoingInFlight()
+	{
+		return itsChannel.getOutstandingCalls();
+	}
+
+	@Probe(key = "srpc incoming in flight", aggr = AggregationType.SUM)
+	public int getIncomingInFlight()
+	{
+		return itsChannel.getRunningCalls();
+	}
+
+	@Probe(key = "srpc call latency p50 (us)", aggr = AggregationType.MAX)
+	public long getCallLatencyP50()
+	{
+		return itsCallLatency.getPercentile(50)/1000;
+	}
+
+	@Probe(key = "srpc call latency p99 (us)", aggr = AggregationType.MAX)
+	public long getCallLatencyP99()
+	{
+		return itsCallLatency.getPercentile(99)/1000;
+	}
+
+	@Probe(key = "srpc call latency max (us)", aggr = AggregationType.MAX)
+	public long getCallLatencyMax()
+	{
+		return itsCallLatency.getMax()/1000;
+	}
+
+	@Probe(key = "srpc queue wait p50 (us)", aggr = AggregationType.MAX)
+	public long getQueueWaitP50()
+	{
+		return itsQueueWait.getPercentile(50)/1000;
+	}
+
+	@Probe(key = "srpc queue wait p99 (us)", aggr = AggregationType.MAX)
+	public long getQueueWaitP99()
+	{
+		return itsQueueWait.getPercentile(99)/1000;
+	}
+
+	@Probe(key = "srpc queue wait max (us)", aggr = AggregationType.MAX)
+	public long getQueueWaitMax()
+	{
+		return itsQueueWait.getMax()/1000;
+	}
+
+	@Probe(key = "srpc execution p50 (us)", aggr = AggregationType.MAX)
+	public long getExecutionP50()
+	{
+		return itsExecution.getPercentile(50)/1000;
+	}
+
+	@Probe(key = "srpc execution p99 (us)", aggr = AggregationType.MAX)
+	public long getExecutionP99()
+	{
+		return itsExecution.getPercentile(99)/1000;
+	}
+
+	@Probe(key = "srpc execution max (us)", aggr = AggregationType.MAX)
+	public long getExecutionMax()
+	{
+		return itsExecution.getMax()/1000;
+	}
+
+	/**
+	 * Total time spent encoding and decoding arguments and return values.
+	 */
+	@Probe(key = "srpc serialization time (us)", aggr = AggregationType.SUM)
+	public long getSerializationTime()
+	{
+		return itsSerializationTime.get()/1000;
+	}
+	
+	public String[] getMethodStats()
+	{
+		List<String> theLines = new ArrayList<String>();
+		for (MethodStats theStats : itsMethodStats.values()) theLines.add(theStats.toString());
+		Collections.sort(theLines);
+		return theLines.toArray(new String[theLines.size()]);
+	}
+	
+	public void reset()
+	{
+		itsBytesIn.set(0);
+		itsBytesOut.set(0);
+		itsFramesIn.set(0);
+		itsFramesOut.set(0);
+		itsSerializationTime.set(0);
+		itsCallLatency.reset();
+		itsQueueWait.reset();
+		itsExecution.reset();
+		itsMethodStats.clear();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "SRPC channel "+itsChannel.getId();
+	}
+	
+	/**
+	 * Statistics of a method of a remote interface.
+	 * Outgoing calls count in {@link #getSent()}, {@link #getLatency()} and the 
+	 * request/reply sizes; incoming calls count in {@link #getReceived()} 
+	 * and {@link #getExecution()}.
+	 */
+	public static class MethodStats
+	{
+		private final Method itsMethod;
+		
+		final AtomicLong itsSent = new AtomicLong();
+		final AtomicLong itsReceived = new AtomicLong();
+		final AtomicLong itsErrors = new AtomicLong();
+		final AtomicLong itsRequestBytes = new AtomicLong();
+		final AtomicLong itsReplyBytes = new AtomicLong();
+		final Histogram itsLatency = new Histogram();
+		final Histogram itsExecution = new Histogram();
+		
+		MethodStats(Method aMethod)
+		{
+			itsMethod = aMethod;
+		}
+		
+		public Method getMethod()
+		{
+			return itsMethod;
+		}
+
+		public long getSent()
+		{
+			return itsSent.get();
+		}
+
+		public long getReceived()
+		{
+			return itsReceived.get();
+		}
+
+		public long getErrors()
+		{
+			return itsErrors.get();
+		}
+
+		/**
+		 * Size of the sent call frames (before compression).
+		 */
+		public long getRequestBytes()
+		{
+			return itsRequestBytes.get();
+		}
+
+		/**
+		 * Size of the received return frames.
+		 */
+		public long getReplyBytes()
+		{
+			return itsReplyBytes.get();
+		}
+
+		/**
+		 * Round trip time of outgoing calls, in nanoseconds.
+		 */
+		public Histogram getLatency()
+		{
+			return itsLatency;
+		}
+
+		/**
+		 * Execution time of incoming calls, in nanoseconds.
+		 */
+		public Histogram getExecution()
+		{
+			return itsExecution;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format(
+					"%s.%s: sent %d (%d/%d bytes, p50 %d us, p99 %d us, max %d us), received %d (p50 %d us, p99 %d us, max %d us), errors %d",
+					itsMethod.getDeclaringClass().getSimpleName(),
+					itsMethod.getName(),
+					getSent(),
+					getRequestBytes(),
+					getReplyBytes(),
+					itsLatency.getPercentile(50)/1000,
+					itsLatency.getPercentile(99)/1000,
+					itsLatency.getMax()/1000,
+					getReceived(),
+					itsExecution.getPercentile(50)/1000,
+					itsExecution.getPercentile(99)/1000,
+					itsExecution.getMax()/1000,
+					getErrors());
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+/**
+ * JMX view of {@link SRPCStats}. Durations are in microseconds.
+ */
+public interface SRPCStatsMBean
+{
+	public long getBytesIn();
+	public long getBytesOut();
+	public long getFramesIn();
+	public long getFramesOut();
+	public long getCallsSent();
+	public long getCallsReceived();
+	public long getErrors();
+	public int getOutgoingInFlight();
+	public int getIncomingInFlight();
+	public long getCallLatencyP50();
+	public long getCallLatencyP99();
+	public long getCallLatencyMax();
+	public long getQueueWaitP50();
+	public long getQueueWaitP99();
+	public long getQueueWaitMax();
+	public long getExecutionP50();
+	public long getExecutionP99();
+	public long getExecutionMax();
+	public long getSerializationTime();
+	
+	/**
+	 * One line of statistics per method.
+	 */
+	public String[] getMethodStats();
+	
+	public void reset();
+}
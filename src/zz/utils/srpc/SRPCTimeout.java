@@ -0,0 +1,25 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Specifies the maximum time, in milliseconds, that callers wait for the
+ * result of a remote method. Can be placed on a remote interface, in which
+ * case it applies to all its methods, or on individual methods.
+ * When the deadline is reached, the call is cancelled (the thread that
+ * executes it on the remote side is interrupted) and an
+ * {@link SRPCTimeoutException} is thrown.
+ * @see SRPCConfig#getCallTimeout()
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface SRPCTimeout
+{
+	long value();
+}
@@ -0,0 +1,18 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+/**
+ * Thrown when the result of a remote call is not received before its deadline.
+ * @see SRPCTimeout
+ */
+public class SRPCTimeoutException extends SRPCRemoteException
+{
+	private static final long serialVersionUID = 1L;
+
+	public SRPCTimeoutException(String aMessage)
+	{
+		super(aMessage);
+	}
+}
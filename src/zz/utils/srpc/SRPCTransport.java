@@ -0,0 +1,97 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Moves frames between the two ends of an {@link SRPCChannel}.
+ * Incoming frames are passed to {@link SRPCChannel#processFrame(byte[])}.
+ */
+abstract class SRPCTransport
+{
+	private SRPCChannel itsChannel;
+
+	/**
+	 * Starts delivering incoming frames to the given channel.
+	 */
+	public void start(SRPCChannel aChannel)
+	{
+		itsChannel = aChannel;
+	}
+
+	protected SRPCChannel getChannel()
+	{
+		return itsChannel;
+	}
+
+	/**
+	 * Must be called by subclasses when the connection is lost or closed.
+	 * @param aCause The cause of the failure, if any.
+	 */
+	protected void closed(Throwable aCause)
+	{
+		if (itsChannel != null) itsChannel.transportClosed(aCause);
+	}
+
+	/**
+	 * Queues a frame for sending.
+	 */
+	public abstract void send(Frame aFrame) throws IOException;
+
+	/**
+	 * Temporarily stops reading incoming frames.
+	 */
+	public abstract void suspendReading();
+
+	/**
+	 * Resumes reading after {@link #suspendReading()}.
+	 */
+	public abstract void resumeReading();
+
+	/**
+	 * Closes the connection. Does nothing if it is already closed.
+	 */
+	public abstract void close();
+
+	/**
+	 * An outgoing message.
+	 * Frames are prefixed by their length so that they can be read in one go.
+	 */
+	static class Frame extends ByteArrayOutputStream
+	{
+		public final DataOutputStream out = new DataOutputStream(this);
+
+		public Frame(byte aCommand) throws IOException
+		{
+			super(64);
+			out.writeInt(0); // Placeholder for length
+			out.writeByte(aCommand);
+		}
+
+		/**
+		 * Fills in the length of the frame
+		 */
+		@Override
+		public void close()
+		{
+			int theLength = count-4;
+			buf[0] = (byte) (theLength >>> 24);
+			buf[1] = (byte) (theLength >>> 16);
+			buf[2] = (byte) (theLength >>> 8);
+			buf[3] = (byte) theLength;
+		}
+
+		/**
+		 * Returns the internal buffer of this frame, whose {@link #size()}
+		 * first bytes are valid.
+		 */
+		public byte[] getBuffer()
+		{
+			return buf;
+		}
+	}
+}
@@ -5,6 +5,16 @@ package zz.utils.srpc;
 
 import java.lang.reflect.Method;
 import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 public class SRPCUtils
@@ -54,4 +64,159 @@ public class SRPCUtils
 		throw new RuntimeException("Can't happen");
 	}
 
+	/**
+	 * Default queue size of {@link #createExecutor(int)}.
+	 */
+	public static final int DEFAULT_EXECUTOR_QUEUE_SIZE = 1024;
+	
+	/**
+	 * Creates an executor suitable for {@link SRPCConfig#setExecutor(Executor)},
+	 * that uses at most the given number of (daemon) threads, and queues
+	 * at most {@link #DEFAULT_EXECUTOR_QUEUE_SIZE} calls.
+	 * @see #createExecutor(int, int)
+	 */
+	public static ExecutorService createExecutor(int aThreads)
+	{
+		return createExecutor(aThreads, DEFAULT_EXECUTOR_QUEUE_SIZE);
+	}
+	
+	/**
+	 * Creates an executor suitable for {@link SRPCConfig#setExecutor(Executor)},
+	 * that uses at most the given number of (daemon) threads.
+	 * When the given number of calls are queued, the thread that submits a call waits 
+	 * for room in the queue: the channel that received the call stops reading, which 
+	 * pushes back on the caller even if the executor is shared by many channels.
+	 * Threads that stay idle for a minute are stopped (on Java 6 and later).
+	 */
+	public static ExecutorService createExecutor(int aThreads, int aQueueSize)
+	{
+		ThreadPoolExecutor theExecutor = new ThreadPoolExecutor(
+				aThreads, 
+				aThreads, 
+				60, 
+				TimeUnit.SECONDS, 
+				new ArrayBlockingQueue<Runnable>(aQueueSize),
+				new ThreadFactory()
+				{
+					private int itsCount = 0;
+					
+					public synchronized Thread newThread(Runnable aRunnable)
+					{
+						Thread theThread = new Thread(aRunnable, "SRPC executor "+(itsCount++));
+						theThread.setDaemon(true);
+						return theThread;
+					}
+				},
+				new PushbackPolicy());
+		
+		allowCoreThreadTimeOut(theExecutor);
+		return theExecutor;
+	}
+	
+	/**
+	 * Lets the core threads of the given executor stop when they are idle, 
+	 * on Java 6 and later.
+	 */
+	static void allowCoreThreadTimeOut(ThreadPoolExecutor aExecutor)
+	{
+		try
+		{
+			Method theMethod = ThreadPoolExecutor.class.getMethod("allowCoreThreadTimeOut", boolean.class);
+			theMethod.invoke(aExecutor, true);
+		}
+		catch (NoSuchMethodException e)
+		{
+			// Java 5: threads are kept
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Makes the thread that submits a task wait until the queue of the 
+	 * executor has room (see {@link #createExecutor(int, int)}).
+	 */
+	private static class PushbackPolicy implements RejectedExecutionHandler
+	{
+		public void rejectedExecution(Runnable aTask, ThreadPoolExecutor aExecutor)
+		{
+			if (aExecutor.isShutdown()) throw new RejectedExecutionException("Executor shut down");
+			try
+			{
+				aExecutor.getQueue().put(aTask);
+			}
+			catch (InterruptedException e)
+			{
+				throw new RejectedExecutionException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Creates an executor that runs each task in a new virtual thread, 
+	 * or returns null if the JVM does not support virtual threads.
+	 */
+	public static Executor createVirtualThreadExecutor()
+	{
+		try
+		{
+			Method theMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (Executor) theMethod.invoke(null);
+		}
+		catch (NoSuchMethodException e)
+		{
+			return null;
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Returns an already completed {@link Future}.
+	 * Useful for implementing asynchronous remote methods (methods whose return
+	 * type is {@link Future}) that compute their result synchronously.
+	 */
+	public static <T> Future<T> future(T aValue)
+	{
+		return new DoneFuture<T>(aValue);
+	}
+	
+	private static class DoneFuture<T> implements Future<T>
+	{
+		private final T itsValue;
+
+		public DoneFuture(T aValue)
+		{
+			itsValue = aValue;
+		}
+
+		public boolean cancel(boolean aMayInterruptIfRunning)
+		{
+			return false;
+		}
+
+		public T get()
+		{
+			return itsValue;
+		}
+
+		public T get(long aTimeout, TimeUnit aUnit)
+		{
+			return itsValue;
+		}
+
+		public boolean isCancelled()
+		{
+			return false;
+		}
+
+		public boolean isDone()
+		{
+			return true;
+		}
+	}
 }
@@ -0,0 +1,174 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import zz.utils.srpc.SRPCChannel.RemoteObjectDesc;
+
+/**
+ * A codec that relies on Java serialization. It is supported by all channels
+ * and is used when both ends do not agree on anything better.
+ * Each value is written as a length-prefixed serialization stream.
+ * Streams have no header, and descriptors of serializable classes are replaced by
+ * their id in the class dictionary of the channel (see {@link IContext#exportClass(Class)}),
+ * so that they are sent once per channel rather than once per value. This assumes
+ * that both ends have the same version of the classes, as for remote interfaces.
+ */
+public class SerializationCodec extends SRPCCodec
+{
+	public static final byte ID = 0;
+
+	public static final Factory FACTORY = new Factory()
+	{
+		public byte getId()
+		{
+			return ID;
+		}
+
+		public SRPCCodec create(IContext aContext)
+		{
+			return new SerializationCodec(aContext);
+		}
+	};
+
+	public SerializationCodec(IContext aContext)
+	{
+		super(aContext);
+	}
+
+	@Override
+	public void writeValue(DataOutputStream aOut, Object aValue) throws IOException
+	{
+		ByteArrayOutputStream theBuffer = new ByteArrayOutputStream();
+		ObjectOutputStream theStream = new SRPCObjectOutputStream(theBuffer);
+		theStream.writeObject(aValue);
+		theStream.flush();
+
+		aOut.writeInt(theBuffer.size());
+		theBuffer.writeTo(aOut);
+	}
+
+	@Override
+	public Object readValue(DataInputStream aIn) throws IOException
+	{
+		byte[] theData = new byte[aIn.readInt()];
+		aIn.readFully(theData);
+
+		ObjectInputStream theStream = new SRPCObjectInputStream(new ByteArrayInputStream(theData));
+		try
+		{
+			return theStream.readObject();
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private class SRPCObjectOutputStream extends ObjectOutputStream
+	{
+		public SRPCObjectOutputStream(OutputStream aOut) throws IOException
+		{
+			super(aOut);
+			enableReplaceObject(true);
+		}
+		
+		@Override
+		protected void writeStreamHeader()
+		{
+		}
+		
+		@Override
+		protected void writeClassDescriptor(ObjectStreamClass aDesc) throws IOException
+		{
+			Class<?> theClass = aDesc.forClass();
+			if (Serializable.class.isAssignableFrom(theClass))
+			{
+				writeInt(getContext().exportClass(theClass));
+			}
+			else
+			{
+				// The descriptor could not be found by the other side
+				writeInt(-1);
+				super.writeClassDescriptor(aDesc);
+			}
+		}
+
+		@Override
+		protected Object replaceObject(Object aObj)
+		{
+			if (aObj instanceof IRemote) return getContext().export((IRemote) aObj);
+			else if (aObj instanceof InputStream) return new StreamDesc(getContext().exportStream((InputStream) aObj));
+			else return aObj;
+		}
+	}
+
+	private class SRPCObjectInputStream extends ObjectInputStream
+	{
+		public SRPCObjectInputStream(InputStream aIn) throws IOException
+		{
+			super(aIn);
+			enableResolveObject(true);
+		}
+		
+		@Override
+		protected void readStreamHeader()
+		{
+		}
+		
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException
+		{
+			int theId = readInt();
+			if (theId == -1) return super.readClassDescriptor();
+			
+			Class<?> theClass = getContext().resolveClass(theId);
+			ObjectStreamClass theDesc = ObjectStreamClass.lookup(theClass);
+			if (theDesc == null) throw new InvalidClassException(theClass.getName(), "Not serializable");
+			return theDesc;
+		}
+		
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass aDesc) throws IOException, ClassNotFoundException
+		{
+			Class<?> theClass = aDesc.forClass();
+			return theClass != null ? theClass : super.resolveClass(aDesc);
+		}
+
+		@Override
+		protected Object resolveObject(Object aObj) throws IOException
+		{
+			if (aObj instanceof RemoteObjectDesc) return getContext().resolve((RemoteObjectDesc) aObj);
+			else if (aObj instanceof StreamDesc) return getContext().resolveStream(((StreamDesc) aObj).id);
+			else return aObj;
+		}
+	}
+
+	/**
+	 * Replaces {@link InputStream}s in serialized values.
+	 */
+	private static class StreamDesc implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+		
+		public final long id;
+
+		public StreamDesc(long aId)
+		{
+			id = aId;
+		}
+	}
+}
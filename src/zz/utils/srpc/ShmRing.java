@@ -0,0 +1,460 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer, single-consumer byte pipe in a memory-mapped file, 
+ * shared by two processes of the same host (see {@link ShmTransport}).
+ * Each process uses a ring either as producer or as consumer.
+ * <p>
+ * The file starts with a header that holds the write position (updated by the
+ * producer), the read position (updated by the consumer), a closed flag and a waiting 
+ * flag, each on its own cache line. Positions only grow; the data area is used modulo its size.
+ * The Java memory model says nothing about memory shared with another process, 
+ * so the header is accessed through the volatile accessors of <code>sun.misc.Unsafe</code>,
+ * which order the accesses to the data area; rings are not available without them.
+ * <p>
+ * Waiting for space spins, then yields, then parks for increasing durations.
+ * Waiting for data does the same, then sets the waiting flag and parks until 
+ * the reading thread is unparked, as the ring cannot wake up the other process:
+ * the producer then calls its {@link IWaker} after writing.
+ */
+class ShmRing
+{
+	private static final int WRITE_POS = 0;
+	private static final int READ_POS = 64;
+	private static final int CLOSED = 128;
+	private static final int WAITING = 192;
+	private static final int DATA = 256;
+	
+	private static final String PREFIX = "srpc-";
+	private static final String SUFFIX = ".ring";
+	
+	private static final int SPIN_ROUNDS = 10000;
+	private static final int YIELD_ROUNDS = 100;
+	private static final long MIN_PARK = 1000;
+	private static final long MAX_PARK = 1000000;
+	
+	/**
+	 * Bounds the wait of a consumer whose wakeup is lost (eg. by a dead producer).
+	 */
+	private static final long MAX_IDLE_PARK = 100000000;
+	
+	private static final Object UNSAFE;
+	private static final Method GET_LONG;
+	private static final Method GET_LONG_VOLATILE;
+	private static final Method PUT_LONG_VOLATILE;
+	private static final Method GET_INT_VOLATILE;
+	private static final Method PUT_INT_VOLATILE;
+	private static final long ADDRESS_OFFSET;
+	
+	static
+	{
+		Object theUnsafe = null;
+		Method[] theMethods = new Method[5];
+		long theAddressOffset = 0;
+		try
+		{
+			Class<?> theClass = Class.forName("sun.misc.Unsafe");
+			Field theField = theClass.getDeclaredField("theUnsafe");
+			theField.setAccessible(true);
+			theMethods[0] = theClass.getMethod("getLong", Object.class, long.class);
+			theMethods[1] = theClass.getMethod("getLongVolatile", Object.class, long.class);
+			theMethods[2] = theClass.getMethod("putLongVolatile", Object.class, long.class, long.class);
+			theMethods[3] = theClass.getMethod("getIntVolatile", Object.class, long.class);
+			theMethods[4] = theClass.getMethod("putIntVolatile", Object.class, long.class, int.class);
+			Method theFieldOffset = theClass.getMethod("objectFieldOffset", Field.class);
+			Object theInstance = theField.get(null);
+			theAddressOffset = (Long) theFieldOffset.invoke(theInstance, Buffer.class.getDeclaredField("address"));
+			theUnsafe = theInstance;
+		}
+		catch (Exception e)
+		{
+			// Not available
+		}
+		UNSAFE = theUnsafe;
+		GET_LONG = theMethods[0];
+		GET_LONG_VOLATILE = theMethods[1];
+		PUT_LONG_VOLATILE = theMethods[2];
+		GET_INT_VOLATILE = theMethods[3];
+		PUT_INT_VOLATILE = theMethods[4];
+		ADDRESS_OFFSET = theAddressOffset;
+	}
+	
+	private final File itsFile;
+	private final MappedByteBuffer itsBuffer;
+	
+	/**
+	 * Used for relative bulk transfers to/from the data area
+	 */
+	private final ByteBuffer itsData;
+	
+	private final int itsCapacity;
+	
+	/**
+	 * Native address of the mapped file.
+	 */
+	private final long itsAddress;
+	
+	/**
+	 * Local copy of the position owned by this side.
+	 */
+	private long itsPosition;
+	
+	private volatile boolean itsLocallyClosed = false;
+	
+	private IWaker itsWaker;
+	
+	private ShmRing(File aFile, int aSize) throws IOException
+	{
+		itsFile = aFile;
+		RandomAccessFile theFile = new RandomAccessFile(aFile, "rw");
+		try
+		{
+			if (theFile.length() < aSize) theFile.setLength(aSize);
+			itsBuffer = theFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, aSize);
+		}
+		finally
+		{
+			// The mapping remains valid
+			theFile.close();
+		}
+		
+		itsBuffer.position(DATA);
+		itsData = itsBuffer.slice();
+		itsCapacity = aSize-DATA;
+		itsAddress = (Long) invoke(GET_LONG, itsBuffer, ADDRESS_OFFSET);
+	}
+	
+	private static Object invoke(Method aMethod, Object... aArgs)
+	{
+		try
+		{
+			return aMethod.invoke(UNSAFE, aArgs);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new RuntimeException(e);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	private static void checkAvailable() throws IOException
+	{
+		if (UNSAFE == null) throw new IOException("Ordered accesses to shared memory are not available");
+	}
+	
+	/**
+	 * Creates a new ring in a new file of the given directory.
+	 * The file is only accessible to its owner, as it contains the frames of the channel.
+	 * @param aSize Total size of the file.
+	 */
+	public static ShmRing create(File aDirectory, int aSize) throws IOException
+	{
+		checkAvailable();
+		if (aSize <= DATA) throw new IOException("Ring too small: "+aSize);
+		File theFile = File.createTempFile(PREFIX, SUFFIX, aDirectory);
+		theFile.deleteOnExit();
+		try
+		{
+			restrictToOwner(theFile);
+		}
+		catch (IOException e)
+		{
+			theFile.delete();
+			throw e;
+		}
+		return new ShmRing(theFile, aSize);
+	}
+	
+	/**
+	 * Removes the permissions of other users on the given file.
+	 * The methods are only available since Java 6, so they are called by reflection;
+	 * without them the ring is not created.
+	 */
+	private static void restrictToOwner(File aFile) throws IOException
+	{
+		try
+		{
+			Method theSetReadable = File.class.getMethod("setReadable", boolean.class, boolean.class);
+			Method theSetWritable = File.class.getMethod("setWritable", boolean.class, boolean.class);
+			boolean theDone = (Boolean) theSetReadable.invoke(aFile, false, false)
+				&& (Boolean) theSetWritable.invoke(aFile, false, false)
+				&& (Boolean) theSetReadable.invoke(aFile, true, true)
+				&& (Boolean) theSetWritable.invoke(aFile, true, true);
+			if (! theDone) throw new IOException("Cannot restrict permissions of "+aFile);
+		}
+		catch (NoSuchMethodException e)
+		{
+			throw new IOException("Cannot restrict permissions of "+aFile);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new RuntimeException(e);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Opens a ring created by another process. As the path is given by the other
+	 * process, it must designate a ring file directly in the given directory.
+	 */
+	public static ShmRing open(File aDirectory, String aPath) throws IOException
+	{
+		checkAvailable();
+		File theFile = new File(aPath).getCanonicalFile();
+		String theName = theFile.getName();
+		if (! aDirectory.getCanonicalFile().equals(theFile.getParentFile())
+				|| ! theName.startsWith(PREFIX) 
+				|| ! theName.endsWith(SUFFIX)) 
+		{
+			throw new IOException("Not a ring: "+aPath);
+		}
+		
+		if (! theFile.isFile()) throw new IOException("No such ring: "+aPath);
+		long theLength = theFile.length();
+		if (theLength <= DATA || theLength > Integer.MAX_VALUE) throw new IOException("Bad ring size: "+theLength);
+		return new ShmRing(theFile, (int) theLength);
+	}
+	
+	public String getPath()
+	{
+		return itsFile.getPath();
+	}
+	
+	/**
+	 * Removes the file of this ring. Processes that already mapped it can still use it.
+	 */
+	public void unlink()
+	{
+		itsFile.delete();
+	}
+	
+	/**
+	 * Unmaps the file of a ring that was never used by other threads. 
+	 * Otherwise the mapping is released when the ring is garbage collected.
+	 */
+	public void release()
+	{
+		try
+		{
+			try
+			{
+				UNSAFE.getClass().getMethod("invokeCleaner", ByteBuffer.class).invoke(UNSAFE, itsBuffer);
+			}
+			catch (NoSuchMethodException e)
+			{
+				// Before Java 9
+				Method theCleanerMethod = itsBuffer.getClass().getMethod("cleaner");
+				theCleanerMethod.setAccessible(true);
+				Object theCleaner = theCleanerMethod.invoke(itsBuffer);
+				if (theCleaner != null) theCleaner.getClass().getMethod("clean").invoke(theCleaner);
+			}
+		}
+		catch (Exception e)
+		{
+			// Left to the garbage collector
+		}
+	}
+	
+	/**
+	 * Marks this ring as closed for both sides.
+	 */
+	public void close()
+	{
+		itsLocallyClosed = true;
+		invoke(PUT_INT_VOLATILE, null, itsAddress+CLOSED, 1);
+	}
+	
+	public boolean isClosed()
+	{
+		return itsLocallyClosed || (Integer) invoke(GET_INT_VOLATILE, null, itsAddress+CLOSED) != 0;
+	}
+	
+	/**
+	 * Producer side: sets the object that wakes up the consumer when it waits for data.
+	 */
+	public void setWaker(IWaker aWaker)
+	{
+		itsWaker = aWaker;
+	}
+	
+	/**
+	 * Producer side: called after the write position is published.
+	 */
+	private void published() throws IOException
+	{
+		if (itsWaker != null && (Integer) invoke(GET_INT_VOLATILE, null, itsAddress+WAITING) != 0) 
+		{
+			itsWaker.wakeup();
+		}
+	}
+	
+	/**
+	 * Reads a position updated by the other side. The data written before 
+	 * the position was published can then be read.
+	 */
+	private long acquire(int aOffset)
+	{
+		return (Long) invoke(GET_LONG_VOLATILE, null, itsAddress+aOffset);
+	}
+	
+	/**
+	 * Updates a position read by the other side, after the data it covers.
+	 */
+	private void publish(int aOffset, long aPosition)
+	{
+		invoke(PUT_LONG_VOLATILE, null, itsAddress+aOffset, aPosition);
+	}
+	
+	/**
+	 * Waits a bit, depending on how long we have already waited.
+	 */
+	private static void backoff(int aRound)
+	{
+		if (aRound < SPIN_ROUNDS) return;
+		else if (aRound < SPIN_ROUNDS+YIELD_ROUNDS) Thread.yield();
+		else 
+		{
+			int theShift = Math.min(aRound-SPIN_ROUNDS-YIELD_ROUNDS, 10);
+			LockSupport.parkNanos(Math.min(MIN_PARK << theShift, MAX_PARK));
+		}
+	}
+	
+	/**
+	 * Producer side: writes the given bytes if there is enough space
+	 * for all of them.
+	 * @return Whether the bytes were written.
+	 */
+	public boolean tryWrite(byte[] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		if (itsCapacity - (itsPosition - acquire(READ_POS)) < aLength) return false;
+		put(aBuffer, aOffset, aLength);
+		publish(WRITE_POS, itsPosition);
+		published();
+		return true;
+	}
+	
+	/**
+	 * Producer side: writes the given bytes, waiting for space as needed.
+	 */
+	public void write(byte[] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		int theRound = 0;
+		while (aLength > 0)
+		{
+			if (isClosed()) throw new EOFException("Ring closed");
+			
+			int theFree = (int) (itsCapacity - (itsPosition - acquire(READ_POS)));
+			if (theFree == 0)
+			{
+				backoff(theRound++);
+				continue;
+			}
+			theRound = 0;
+			
+			int theCount = Math.min(theFree, aLength);
+			put(aBuffer, aOffset, theCount);
+			publish(WRITE_POS, itsPosition);
+			published();
+			aOffset += theCount;
+			aLength -= theCount;
+		}
+	}
+	
+	private void put(byte[] aBuffer, int aOffset, int aLength)
+	{
+		while (aLength > 0)
+		{
+			int theIndex = (int) (itsPosition % itsCapacity);
+			int theCount = Math.min(aLength, itsCapacity-theIndex);
+			itsData.position(theIndex);
+			itsData.put(aBuffer, aOffset, theCount);
+			itsPosition += theCount;
+			aOffset += theCount;
+			aLength -= theCount;
+		}
+	}
+	
+	/**
+	 * Consumer side: reads exactly the given number of bytes, waiting as needed.
+	 * After a while, waits until the calling thread is unparked.
+	 * @throws EOFException If the ring is closed and all the data was read.
+	 */
+	public void readFully(byte[] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		int theRound = 0;
+		while (aLength > 0)
+		{
+			int theAvailable = (int) (acquire(WRITE_POS) - itsPosition);
+			if (theAvailable == 0)
+			{
+				if (isClosed()) throw new EOFException("Ring closed");
+				if (theRound < SPIN_ROUNDS+YIELD_ROUNDS) backoff(theRound++);
+				else
+				{
+					// Checks again after setting the flag, so that a concurrent write is not missed
+					invoke(PUT_INT_VOLATILE, null, itsAddress+WAITING, 1);
+					if (acquire(WRITE_POS) == itsPosition && ! isClosed()) LockSupport.parkNanos(MAX_IDLE_PARK);
+					invoke(PUT_INT_VOLATILE, null, itsAddress+WAITING, 0);
+				}
+				continue;
+			}
+			theRound = 0;
+			
+			int theCount = Math.min(theAvailable, aLength);
+			while (theCount > 0)
+			{
+				int theIndex = (int) (itsPosition % itsCapacity);
+				int theChunk = Math.min(theCount, itsCapacity-theIndex);
+				itsData.position(theIndex);
+				itsData.get(aBuffer, aOffset, theChunk);
+				itsPosition += theChunk;
+				aOffset += theChunk;
+				aLength -= theChunk;
+				theCount -= theChunk;
+			}
+			publish(READ_POS, itsPosition);
+		}
+	}
+	
+	/**
+	 * Consumer side: reads a big-endian int.
+	 */
+	public int readInt(byte[] aTmp) throws IOException
+	{
+		readFully(aTmp, 0, 4);
+		return ((aTmp[0] & 0xff) << 24) | ((aTmp[1] & 0xff) << 16) | ((aTmp[2] & 0xff) << 8) | (aTmp[3] & 0xff);
+	}
+	
+	/**
+	 * Wakes up the consumer of a ring, which can be in another process.
+	 */
+	public interface IWaker
+	{
+		/**
+		 * Must unpark the thread that waits in {@link ShmRing#readFully(byte[], int, int)}.
+		 */
+		public void wakeup() throws IOException;
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.LinkedList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A transport between two processes of the same host, that exchanges frames through
+ * a pair of {@link ShmRing}s (one per direction) instead of the socket.
+ * Each end creates the ring it writes to, and maps the ring created by the other end.
+ * The files are removed as soon as both ends have mapped them.
+ * <p>
+ * The socket is kept open so that the death of the other process is noticed, and
+ * to wake up the reader of the other end when it waits for data 
+ * (see {@link ShmRing.IWaker}): each byte sent unparks it.
+ * Frames are written directly by the sending thread when there is room in the ring and 
+ * no frame is queued; otherwise they are queued and written by a writer thread.
+ */
+class ShmTransport extends SRPCTransport implements ShmRing.IWaker
+{
+	private final Socket itsSocket;
+	private final OutputStream itsWakeupStream;
+	private final ShmRing itsOut;
+	private final ShmRing itsIn;
+
+	private final Reader itsReader;
+	private final Writer itsWriter;
+	private final Watcher itsWatcher;
+	
+	/**
+	 * Frames waiting for room in the outgoing ring. The first frame 
+	 * might be being written by the writer thread.
+	 */
+	private final LinkedList<Frame> itsQueue = new LinkedList<Frame>();
+	
+	private volatile IOException itsError;
+
+	private boolean itsReadingSuspended = false;
+
+	private ShmTransport(Socket aSocket, ShmRing aOut, ShmRing aIn) throws IOException
+	{
+		itsSocket = aSocket;
+		itsWakeupStream = aSocket.getOutputStream();
+		itsOut = aOut;
+		itsIn = aIn;
+		itsOut.setWaker(this);
+		itsReader = new Reader();
+		itsWriter = new Writer();
+		itsWatcher = new Watcher(aSocket.getInputStream());
+	}
+	
+	/**
+	 * Whether shared memory can be used on this end of the given socket, ie. if it 
+	 * is enabled in the config and the other end is on the same host.
+	 */
+	public static boolean isAvailable(Socket aSocket, SRPCConfig aConfig)
+	{
+		String theDirectory = aConfig.getSharedMemoryDirectory();
+		if (theDirectory == null || ! new File(theDirectory).isDirectory()) return false;
+		
+		InetAddress theAddress = aSocket.getInetAddress();
+		if (theAddress.isLoopbackAddress()) return true;
+		try
+		{
+			return NetworkInterface.getByInetAddress(theAddress) != null;
+		}
+		catch (SocketException e)
+		{
+			return false;
+		}
+	}
+	
+	/**
+	 * Sets up the rings with the other end of the socket, once both ends have 
+	 * advertised shared memory during the handshake.
+	 * @return The new transport, or null if the rings could not be set up, in which case
+	 * the socket should be used. Both ends reach the same conclusion.
+	 */
+	public static ShmTransport connect(
+			Socket aSocket, 
+			SRPCConfig aConfig, 
+			DataInputStream aIn,
+			DataOutputStream aOut) throws IOException
+	{
+		File theDirectory = new File(aConfig.getSharedMemoryDirectory());
+		ShmRing theOut = null;
+		try
+		{
+			theOut = ShmRing.create(theDirectory, aConfig.getSharedMemorySize());
+		}
+		catch (IOException e)
+		{
+			// The socket is used
+		}
+		
+		aOut.writeUTF(theOut != null ? theOut.getPath() : "");
+		aOut.flush();
+		
+		String thePeerPath = aIn.readUTF();
+		ShmRing theIn = null;
+		if (thePeerPath.length() > 0) try
+		{
+			theIn = ShmRing.open(theDirectory, thePeerPath);
+		}
+		catch (IOException e)
+		{
+			// Not a ring: the socket is used
+		}
+		
+		aOut.writeBoolean(theIn != null);
+		aOut.flush();
+		boolean thePeerMapped = aIn.readBoolean();
+		
+		if (theOut != null) theOut.unlink();
+		
+		if (theIn != null && thePeerMapped) return new ShmTransport(aSocket, theOut, theIn);
+		
+		if (theOut != null) theOut.release();
+		if (theIn != null) theIn.release();
+		return null;
+	}
+
+	@Override
+	public void start(SRPCChannel aChannel)
+	{
+		super.start(aChannel);
+		itsWriter.start();
+		itsReader.start();
+		itsWatcher.start();
+	}
+
+	@Override
+	public void send(Frame aFrame) throws IOException
+	{
+		if (itsError != null) throw new IOException("Channel write failed: "+itsError.getMessage());
+		
+		synchronized (itsQueue)
+		{
+			if (itsQueue.isEmpty() && itsOut.tryWrite(aFrame.getBuffer(), 0, aFrame.size())) return;
+			
+			itsQueue.addLast(aFrame);
+			itsQueue.notifyAll();
+		}
+	}
+	
+	/**
+	 * Unparks the reader of the other end. Called by the only thread that 
+	 * writes to the ring at a given time.
+	 */
+	public void wakeup() throws IOException
+	{
+		itsWakeupStream.write(0);
+	}
+
+	@Override
+	public synchronized void suspendReading()
+	{
+		itsReadingSuspended = true;
+	}
+
+	@Override
+	public synchronized void resumeReading()
+	{
+		itsReadingSuspended = false;
+		notifyAll();
+	}
+
+	private synchronized void waitReading() throws InterruptedException
+	{
+		while (itsReadingSuspended) wait();
+	}
+
+	@Override
+	public void close()
+	{
+		// Closing both rings stops the threads of both ends.
+		itsOut.close();
+		itsIn.close();
+		try
+		{
+			itsWriter.interrupt();
+			itsSocket.close();
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private class Reader extends Thread
+	{
+		public Reader()
+		{
+			super("SRPCChannel shm reader");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			Throwable theCause = null;
+			byte[] theLength = new byte[4];
+			try
+			{
+				while(true)
+				{
+					waitReading();
+
+					byte[] theFrame;
+					try
+					{
+						theFrame = new byte[itsIn.readInt(theLength)];
+						itsIn.readFully(theFrame, 0, theFrame.length);
+					}
+					catch (EOFException e)
+					{
+						break;
+					}
+
+					getChannel().processFrame(theFrame);
+				}
+			}
+			catch (Exception e)
+			{
+				theCause = e;
+			}
+			closed(theCause);
+		}
+	}
+
+	/**
+	 * Writes the frames that did not fit in the ring when they were sent.
+	 */
+	private class Writer extends Thread
+	{
+		public Writer()
+		{
+			super("SRPCChannel shm writer");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while(true)
+				{
+					Frame theFrame;
+					synchronized (itsQueue)
+					{
+						while (itsQueue.isEmpty()) itsQueue.wait();
+						theFrame = itsQueue.getFirst();
+					}
+					
+					// The frame stays in the queue, so that senders do not write concurrently.
+					itsOut.write(theFrame.getBuffer(), 0, theFrame.size());
+					
+					synchronized (itsQueue)
+					{
+						itsQueue.removeFirst();
+					}
+				}
+			}
+			catch (EOFException e)
+			{
+				// Closed
+			}
+			catch (IOException e)
+			{
+				itsError = e;
+				closed(e);
+			}
+			catch (InterruptedException e)
+			{
+				// Closed
+			}
+		}
+	}
+	
+	/**
+	 * Waits for the socket to be closed by the other end, and unparks the reader
+	 * when the other end wakes it up.
+	 */
+	private class Watcher extends Thread
+	{
+		private final InputStream itsStream;
+		
+		public Watcher(InputStream aStream)
+		{
+			super("SRPCChannel shm watcher");
+			setDaemon(true);
+			itsStream = aStream;
+		}
+		
+		@Override
+		public void run()
+		{
+			Throwable theCause = null;
+			try
+			{
+				while (itsStream.read() >= 0) LockSupport.unpark(itsReader);
+			}
+			catch (IOException e)
+			{
+				if (! itsIn.isClosed()) theCause = e;
+			}
+			closed(theCause);
+		}
+	}
+}
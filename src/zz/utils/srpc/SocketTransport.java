@@ -0,0 +1,198 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A transport that uses blocking socket streams, with one reader thread
+ * and one writer thread.
+ */
+class SocketTransport extends SRPCTransport
+{
+	private final Socket itsSocket;
+	private final DataInputStream itsIn;
+	private final DataOutputStream itsOut;
+
+	private final Reader itsReader;
+	private final Writer itsWriter;
+
+	private boolean itsReadingSuspended = false;
+
+	public SocketTransport(Socket aSocket, SRPCConfig aConfig) throws IOException
+	{
+		itsSocket = aSocket;
+		itsOut = new DataOutputStream(new BufferedOutputStream(itsSocket.getOutputStream(), 65536));
+		itsIn = new DataInputStream(new BufferedInputStream(itsSocket.getInputStream(), 65536));
+		itsReader = new Reader();
+		itsWriter = new Writer(aConfig.getMaxFlushLatency(), aConfig.getMaxFlushBatch());
+	}
+
+	@Override
+	public void start(SRPCChannel aChannel)
+	{
+		super.start(aChannel);
+		itsWriter.start();
+		itsReader.start();
+	}
+
+	@Override
+	public void send(Frame aFrame) throws IOException
+	{
+		itsWriter.enqueue(aFrame);
+	}
+
+	@Override
+	public synchronized void suspendReading()
+	{
+		itsReadingSuspended = true;
+	}
+
+	@Override
+	public synchronized void resumeReading()
+	{
+		itsReadingSuspended = false;
+		notifyAll();
+	}
+
+	private synchronized void waitReading() throws InterruptedException
+	{
+		while (itsReadingSuspended) wait();
+	}
+
+	@Override
+	public void close()
+	{
+		try
+		{
+			itsWriter.interrupt();
+			itsSocket.close();
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private class Reader extends Thread
+	{
+		public Reader()
+		{
+			super("SRPCChannel reader");
+		}
+
+		@Override
+		public void run()
+		{
+			Throwable theCause = null;
+			try
+			{
+				while(true)
+				{
+					waitReading();
+
+					byte[] theFrame;
+					try
+					{
+						theFrame = new byte[itsIn.readInt()];
+					}
+					catch (EOFException e)
+					{
+						break;
+					}
+					itsIn.readFully(theFrame);
+
+					getChannel().processFrame(theFrame);
+				}
+			}
+			catch (Exception e)
+			{
+				theCause = e;
+			}
+			closed(theCause);
+		}
+	}
+
+	/**
+	 * Writes the queued frames to the socket.
+	 * All the frames that are pending when the writer wakes up are written
+	 * before the socket is flushed, so that concurrent callers share
+	 * system calls and TCP segments.
+	 */
+	private class Writer extends Thread
+	{
+		private final BlockingQueue<Frame> itsQueue = new LinkedBlockingQueue<Frame>();
+
+		/**
+		 * Maximum time (in microseconds) to wait for more frames before flushing.
+		 */
+		private final long itsMaxLatency;
+
+		/**
+		 * Maximum number of frames written before flushing.
+		 */
+		private final int itsMaxBatch;
+
+		private volatile IOException itsError;
+
+		public Writer(long aMaxLatency, int aMaxBatch)
+		{
+			super("SRPCChannel writer");
+			setDaemon(true);
+			itsMaxLatency = aMaxLatency;
+			itsMaxBatch = aMaxBatch;
+		}
+
+		public void enqueue(Frame aFrame) throws IOException
+		{
+			if (itsError != null) throw new IOException("Channel write failed: "+itsError.getMessage());
+			itsQueue.add(aFrame);
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while(true)
+				{
+					Frame theFrame = itsQueue.take();
+					long theDeadline = System.nanoTime() + itsMaxLatency*1000;
+					int theCount = 0;
+					while(theFrame != null)
+					{
+						theFrame.writeTo(itsOut);
+						if (++theCount >= itsMaxBatch) break;
+
+						theFrame = itsQueue.poll();
+						if (theFrame == null && itsMaxLatency > 0)
+						{
+							long theDelay = theDeadline - System.nanoTime();
+							if (theDelay > 0) theFrame = itsQueue.poll(theDelay, TimeUnit.NANOSECONDS);
+						}
+					}
+					itsOut.flush();
+				}
+			}
+			catch (IOException e)
+			{
+				itsError = e;
+				closed(e);
+			}
+			catch (InterruptedException e)
+			{
+				// Closed
+			}
+		}
+	}
+}
@@ -0,0 +1,517 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package zz.utils.srpc;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import zz.utils.primitive.ConcurrentLongMap;
+import zz.utils.srpc.SRPCTransport.Frame;
+
+/**
+ * Transfers the {@link InputStream}s that are passed as arguments or return
+ * values of remote calls. Instead of being materialized, the content of such
+ * streams is sent in chunks, as separate frames that are interleaved with the
+ * rest of the traffic of the channel. The receiving end grants credits as it
+ * consumes the data, so that at most {@link SRPCConfig#getStreamWindow()} bytes
+ * of a stream are buffered at any time.
+ * <p>
+ * Streams are read by pump tasks that run while the other end has credits,
+ * and are resubmitted when it grants more. They use their own threads rather than 
+ * the executor of the channel, as reading a stream can block. Pumping starts once the 
+ * frame that references the stream is sent (see {@link #exportCompleted(boolean)}),
+ * so that the data of a stream always follows the value that references it.
+ */
+class StreamManager
+{
+	/**
+	 * Maximum number of streams of the JVM that are read at the same time.
+	 */
+	private static final int MAX_PUMPS = 64;
+	
+	private static final ThreadPoolExecutor PUMPS = new ThreadPoolExecutor(
+			MAX_PUMPS, 
+			MAX_PUMPS, 
+			60, 
+			TimeUnit.SECONDS,
+			// Each stream is queued at most once
+			new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory()
+			{
+				private int itsCount = 0;
+				
+				public synchronized Thread newThread(Runnable aRunnable)
+				{
+					Thread theThread = new Thread(aRunnable, "SRPC stream pump "+(itsCount++));
+					theThread.setDaemon(true);
+					return theThread;
+				}
+			});
+	
+	static
+	{
+		SRPCUtils.allowCoreThreadTimeOut(PUMPS);
+	}
+	
+	private final SRPCChannel itsChannel;
+	private final int itsChunkSize;
+	private final int itsWindow;
+
+	private final AtomicLong itsNextStreamId = new AtomicLong(1);
+
+	/**
+	 * Local streams whose content is being sent, by id.
+	 */
+	private final ConcurrentLongMap<OutgoingStream> itsOutgoingStreams = new ConcurrentLongMap<OutgoingStream>();
+
+	/**
+	 * Streams whose content is being received, by the id assigned by the other end.
+	 */
+	private final ConcurrentLongMap<IncomingStream> itsIncomingStreams = new ConcurrentLongMap<IncomingStream>();
+	
+	/**
+	 * The streams exported by the current thread in the value being encoded,
+	 * which are started or dropped by {@link #exportCompleted(boolean)}.
+	 */
+	private final ThreadLocal<List<OutgoingStream>> itsExported = new ThreadLocal<List<OutgoingStream>>();
+	
+	/**
+	 * The streams resolved by the current thread in the value being decoded,
+	 * which are closed if the value is dropped (see {@link #resolveCompleted(boolean)}).
+	 */
+	private final ThreadLocal<List<IncomingStream>> itsResolved = new ThreadLocal<List<IncomingStream>>();
+
+	public StreamManager(SRPCChannel aChannel, SRPCConfig aConfig)
+	{
+		itsChannel = aChannel;
+		itsChunkSize = aConfig.getStreamChunkSize();
+		itsWindow = aConfig.getStreamWindow();
+	}
+
+	/**
+	 * Registers the given stream and returns its id. Its content is sent once 
+	 * the current thread calls {@link #exportCompleted(boolean)}.
+	 */
+	public long export(InputStream aStream)
+	{
+		OutgoingStream theStream = new OutgoingStream(itsNextStreamId.getAndIncrement(), aStream);
+		itsOutgoingStreams.put(theStream.itsId, theStream);
+		
+		List<OutgoingStream> theExported = itsExported.get();
+		if (theExported == null)
+		{
+			theExported = new ArrayList<OutgoingStream>();
+			itsExported.set(theExported);
+		}
+		theExported.add(theStream);
+		return theStream.itsId;
+	}
+	
+	/**
+	 * Must be called by the thread that encoded a value once the frame that 
+	 * contains it is sent, or could not be sent. 
+	 * @param aSent Whether the frame was sent. If not, the streams exported
+	 * in the value are released.
+	 */
+	public void exportCompleted(boolean aSent)
+	{
+		List<OutgoingStream> theExported = itsExported.get();
+		if (theExported == null) return;
+		itsExported.set(null);
+		
+		for (OutgoingStream theStream : theExported) 
+		{
+			if (aSent) theStream.schedule();
+			else theStream.finish();
+		}
+	}
+
+	/**
+	 * Returns the local end of the stream with the given id.
+	 */
+	public InputStream resolve(long aId)
+	{
+		IncomingStream theStream = new IncomingStream(aId);
+		itsIncomingStreams.put(aId, theStream);
+		
+		List<IncomingStream> theResolved = itsResolved.get();
+		if (theResolved == null)
+		{
+			theResolved = new ArrayList<IncomingStream>();
+			itsResolved.set(theResolved);
+		}
+		theResolved.add(theStream);
+		return theStream;
+	}
+	
+	/**
+	 * Must be called by the thread that decoded a value once it is known whether 
+	 * the value is used.
+	 * @param aDelivered Whether the value is used. If not, the streams 
+	 * resolved in the value are closed.
+	 */
+	public void resolveCompleted(boolean aDelivered)
+	{
+		List<IncomingStream> theResolved = itsResolved.get();
+		if (theResolved == null) return;
+		itsResolved.set(null);
+		
+		if (! aDelivered) for (IncomingStream theStream : theResolved) 
+		{
+			try
+			{
+				theStream.close();
+			}
+			catch (IOException e)
+			{
+				// The channel is closing
+			}
+		}
+	}
+
+	/**
+	 * The data of a stream follows the value that references it, so data 
+	 * for an unknown stream is for a stream that was closed.
+	 */
+	public void processData(DataInputStream aIn) throws IOException
+	{
+		long theId = aIn.readLong();
+		byte[] theData = new byte[aIn.readInt()];
+		aIn.readFully(theData);
+		IncomingStream theStream = itsIncomingStreams.get(theId);
+		if (theStream != null) theStream.received(theData);
+	}
+
+	public void processEnd(DataInputStream aIn) throws IOException
+	{
+		long theId = aIn.readLong();
+		String theError = aIn.readBoolean() ? aIn.readUTF() : null;
+		IncomingStream theStream = itsIncomingStreams.get(theId);
+		if (theStream != null) theStream.ended(theError);
+	}
+
+	public void processCredit(DataInputStream aIn) throws IOException
+	{
+		long theId = aIn.readLong();
+		int theCredit = aIn.readInt();
+		OutgoingStream theStream = itsOutgoingStreams.get(theId);
+		if (theStream != null) theStream.credit(theCredit);
+	}
+
+	public void processClose(DataInputStream aIn) throws IOException
+	{
+		long theId = aIn.readLong();
+		OutgoingStream theStream = itsOutgoingStreams.get(theId);
+		if (theStream != null) theStream.cancel();
+	}
+
+	/**
+	 * Called when the channel is closed: incoming streams fail and 
+	 * outgoing streams stop.
+	 */
+	public void close(Exception aCause)
+	{
+		for (IncomingStream theStream : itsIncomingStreams.clear()) theStream.ended(aCause.getMessage());
+		for (OutgoingStream theStream : itsOutgoingStreams.clear()) theStream.cancel();
+	}
+
+	/**
+	 * Reads a local stream and sends its content as long as the other end
+	 * has credits. When there are none left, the task ends and is resubmitted 
+	 * by the next credit, so that streams that are not consumed do not hold a thread.
+	 */
+	private class OutgoingStream implements Runnable
+	{
+		private final long itsId;
+		private final InputStream itsSource;
+		private int itsCredits = itsWindow;
+		private boolean itsCancelled = false;
+		
+		/**
+		 * Whether the task is submitted or running.
+		 */
+		private boolean itsScheduled = false;
+		private boolean itsFinished = false;
+		
+		private byte[] itsBuffer;
+
+		public OutgoingStream(long aId, InputStream aSource)
+		{
+			itsId = aId;
+			itsSource = aSource;
+		}
+
+		public synchronized void credit(int aCredit)
+		{
+			itsCredits += aCredit;
+			schedule();
+		}
+
+		public synchronized void cancel()
+		{
+			itsCancelled = true;
+			schedule();
+		}
+		
+		public synchronized void schedule()
+		{
+			if (itsScheduled || itsFinished) return;
+			itsScheduled = true;
+			PUMPS.execute(this);
+		}
+
+		/**
+		 * Returns the maximum number of bytes that can be sent, 
+		 * 0 if there are no credits (the task is then descheduled),
+		 * or -1 if the stream was cancelled.
+		 */
+		private synchronized int getCredits()
+		{
+			if (itsCancelled) return -1;
+			if (itsCredits <= 0) itsScheduled = false;
+			return Math.min(itsCredits, itsChunkSize);
+		}
+
+		private synchronized void consume(int aCount)
+		{
+			itsCredits -= aCount;
+		}
+
+		public void run()
+		{
+			try
+			{
+				if (itsBuffer == null) itsBuffer = new byte[itsChunkSize];
+				while(true)
+				{
+					int theMax = getCredits();
+					if (theMax == 0) return;
+					if (theMax < 0) 
+					{
+						// Lets the other end release the stream
+						sendEnd(null);
+						break;
+					}
+
+					int theCount = itsSource.read(itsBuffer, 0, theMax);
+					if (theCount == 0)
+					{
+						// Some streams do not block: single byte reads do
+						int theByte = itsSource.read();
+						if (theByte >= 0) itsBuffer[0] = (byte) theByte;
+						theCount = theByte >= 0 ? 1 : -1;
+					}
+					if (theCount < 0)
+					{
+						sendEnd(null);
+						break;
+					}
+
+					consume(theCount);
+					Frame theFrame = new Frame(SRPCChannel.CMD_STREAM_DATA);
+					theFrame.out.writeLong(itsId);
+					theFrame.out.writeInt(theCount);
+					theFrame.out.write(itsBuffer, 0, theCount);
+					itsChannel.send(theFrame);
+				}
+			}
+			catch (IOException e)
+			{
+				sendEnd(e.getMessage() != null ? e.getMessage() : e.toString());
+			}
+			catch (RuntimeException e)
+			{
+				sendEnd(e.toString());
+			}
+			
+			finish();
+		}
+		
+		/**
+		 * Releases this stream.
+		 */
+		public void finish()
+		{
+			synchronized (this)
+			{
+				itsFinished = true;
+			}
+			itsOutgoingStreams.remove(itsId);
+			try
+			{
+				itsSource.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		private void sendEnd(String aError)
+		{
+			try
+			{
+				Frame theFrame = new Frame(SRPCChannel.CMD_STREAM_END);
+				theFrame.out.writeLong(itsId);
+				theFrame.out.writeBoolean(aError != null);
+				if (aError != null) theFrame.out.writeUTF(aError);
+				itsChannel.send(theFrame);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * The receiving end of a stream. Chunks are queued as they arrive.
+	 */
+	private class IncomingStream extends InputStream
+	{
+		private final long itsId;
+		private final LinkedList<byte[]> itsChunks = new LinkedList<byte[]>();
+
+		private byte[] itsCurrent;
+		private int itsPosition;
+
+		private boolean itsEnded = false;
+		private String itsError;
+		private boolean itsClosed = false;
+
+		/**
+		 * Number of bytes consumed since credits were last granted.
+		 */
+		private int itsConsumed = 0;
+
+		public IncomingStream(long aId)
+		{
+			itsId = aId;
+		}
+
+		public synchronized void received(byte[] aData)
+		{
+			if (itsClosed) return;
+			itsChunks.add(aData);
+			notifyAll();
+		}
+
+		public synchronized void ended(String aError)
+		{
+			itsEnded = true;
+			itsError = aError;
+			if (itsClosed) itsIncomingStreams.remove(itsId);
+			notifyAll();
+		}
+
+		/**
+		 * Waits until some data is available.
+		 * @return Whether data is available (otherwise the end of the stream is reached).
+		 */
+		private boolean waitData() throws IOException
+		{
+			while (itsCurrent == null || itsPosition == itsCurrent.length)
+			{
+				if (! itsChunks.isEmpty())
+				{
+					itsCurrent = itsChunks.removeFirst();
+					itsPosition = 0;
+				}
+				else if (itsEnded)
+				{
+					itsIncomingStreams.remove(itsId);
+					if (itsError != null) throw new IOException("Remote stream failed: "+itsError);
+					return false;
+				}
+				else if (itsClosed) throw new IOException("Stream closed");
+				else
+				{
+					try
+					{
+						wait();
+					}
+					catch (InterruptedException e)
+					{
+						throw new InterruptedIOException();
+					}
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Grants credits to the sender once half of the window has been consumed.
+		 */
+		private void consumed(int aCount) throws IOException
+		{
+			itsConsumed += aCount;
+			if (itsConsumed >= itsWindow/2 && ! itsEnded)
+			{
+				Frame theFrame = new Frame(SRPCChannel.CMD_STREAM_CREDIT);
+				theFrame.out.writeLong(itsId);
+				theFrame.out.writeInt(itsConsumed);
+				itsChannel.send(theFrame);
+				itsConsumed = 0;
+			}
+		}
+
+		@Override
+		public synchronized int read() throws IOException
+		{
+			if (! waitData()) return -1;
+			int theValue = itsCurrent[itsPosition++] & 0xff;
+			consumed(1);
+			return theValue;
+		}
+
+		@Override
+		public synchronized int read(byte[] aBuffer, int aOffset, int aLength) throws IOException
+		{
+			if (aLength == 0) return 0;
+			if (! waitData()) return -1;
+			int theCount = Math.min(aLength, itsCurrent.length-itsPosition);
+			System.arraycopy(itsCurrent, itsPosition, aBuffer, aOffset, theCount);
+			itsPosition += theCount;
+			consumed(theCount);
+			return theCount;
+		}
+
+		@Override
+		public synchronized int available()
+		{
+			int theCount = itsCurrent != null ? itsCurrent.length-itsPosition : 0;
+			for (byte[] theChunk : itsChunks) theCount += theChunk.length;
+			return theCount;
+		}
+
+		@Override
+		public synchronized void close() throws IOException
+		{
+			if (itsClosed) return;
+			itsClosed = true;
+			itsChunks.clear();
+			itsCurrent = null;
+			notifyAll();
+
+			// Otherwise the stream is released when the sender acknowledges the close.
+			if (itsEnded) itsIncomingStreams.remove(itsId);
+			else
+			{
+				Frame theFrame = new Frame(SRPCChannel.CMD_STREAM_CLOSE);
+				theFrame.out.writeLong(itsId);
+				itsChannel.send(theFrame);
+			}
+		}
+	}
+}